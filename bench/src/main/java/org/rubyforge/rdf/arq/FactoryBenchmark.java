@@ -0,0 +1,80 @@
+package org.rubyforge.rdf.arq;
+
+import org.jruby.*;
+import java.util.concurrent.TimeUnit;
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.rdf.model.AnonId;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the conversion of single terms between RDF.rb values and Jena
+ * nodes, per kind of term, with the term dictionary enabled (so that
+ * recurring terms are cache hits) and disabled (so that each conversion
+ * calls into Ruby).
+ *
+ * @author Arto Bendiken
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FactoryBenchmark {
+  @Param({"URI", "NODE", "PLAIN", "LANGUAGE", "TYPED", "INTEGER"})
+  public String kind;
+
+  @Param({"true", "false"})
+  public boolean cached;
+
+  private Ruby runtime;
+  private Factory factory;
+  private Node node;
+  private RubyObject value;
+
+  @Setup
+  public void setUp() {
+    runtime = Fixtures.newRuntime();
+    factory = new Factory(runtime, cached ? Factory.DEFAULT_CACHE_SIZE : 0);
+    node    = newNode(kind);
+    value   = factory.newValue(node);
+  }
+
+  @TearDown
+  public void tearDown() {
+    runtime.tearDown();
+  }
+
+  /**
+   * Converts an RDF.rb value into a Jena node.
+   */
+  @Benchmark
+  public Node newNode() {
+    return factory.toNode(value);
+  }
+
+  /**
+   * Converts a Jena node into an RDF.rb value.
+   */
+  @Benchmark
+  public RubyObject newValue() {
+    return factory.newValue(node);
+  }
+
+  private static Node newNode(String kind) {
+    if (kind.equals("URI"))
+      return Fixtures.student(0, 42);
+    if (kind.equals("NODE"))
+      return Node.createAnon(AnonId.create("b42"));
+    if (kind.equals("PLAIN"))
+      return Node.createLiteral("Student42");
+    if (kind.equals("LANGUAGE"))
+      return Node.createLiteral("Student 42", "en", false);
+    if (kind.equals("TYPED"))
+      return Node.createLiteral("2010-06-01T12:00:00Z", null, XSDDatatype.XSDdateTime);
+    if (kind.equals("INTEGER"))
+      return Node.createLiteral("42", null, XSDDatatype.XSDinteger);
+    throw new IllegalArgumentException("unknown term kind: " + kind);
+  }
+}
@@ -0,0 +1,151 @@
+package org.rubyforge.rdf.arq;
+
+import org.jruby.*;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.vocabulary.RDF;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+/**
+ * Ruby runtimes and synthetic data shared by the benchmarks.
+ *
+ * Each runtime loads RDF.rb and rdf-arq. This project's <code>lib</code>
+ * directory is found relative to the working directory, or taken from the
+ * <code>rdf.arq.lib</code> system property, and the directories in the
+ * <code>rdf.arq.bench.path</code> property are added to the load path as
+ * well, for an RDF.rb checkout. Otherwise RDF.rb is loaded from RubyGems.
+ * JRuby 1.5 requires the benchmarks to run on Java 8 or earlier.
+ *
+ * The data follows the shape of the LUBM university benchmark: each
+ * department has 10 professors teaching 5 courses each, and 100 students
+ * taking 3 courses each and advised by one of the professors.
+ *
+ * @author Arto Bendiken
+ */
+class Fixtures {
+  static final String UB   = "http://www.lehigh.edu/~zhp2/2004/0401/univ-bench.owl#";
+  static final String DATA = "http://www.University0.edu/";
+
+  static final int PROFESSORS = 10;
+  static final int COURSES    = 5;
+  static final int STUDENTS   = 100;
+  static final int TAKES      = 3;
+
+  /**
+   * @return a new Ruby runtime with RDF.rb and rdf-arq loaded
+   */
+  static Ruby newRuntime() {
+    List<String> loadPaths = new ArrayList<String>();
+    loadPaths.add(findLibrary().getAbsolutePath());
+    String path = System.getProperty("rdf.arq.bench.path");
+    if (path != null) {
+      for (String directory : path.split(File.pathSeparator)) {
+        if (directory.length() > 0)
+          loadPaths.add(directory);
+      }
+    }
+    RubyInstanceConfig config = new RubyInstanceConfig();
+    config.setLoadPaths(loadPaths);
+    Ruby runtime = Ruby.newInstance(config);
+    runtime.evalScriptlet("begin; require 'rdf'; rescue LoadError; require 'rubygems'; require 'rdf'; end; require 'rdf/arq'");
+    return runtime;
+  }
+
+  private static File findLibrary() {
+    String library = System.getProperty("rdf.arq.lib");
+    if (library != null)
+      return new File(library);
+    for (String candidate : new String[] {"lib", "../lib"}) {
+      if (new File(candidate, "rdf/arq.rb").isFile())
+        return new File(candidate);
+    }
+    throw new IllegalStateException("cannot find rdf-arq's lib directory; set -Drdf.arq.lib");
+  }
+
+  /**
+   * @param  runtime     the Ruby runtime
+   * @param  className   the RDF.rb class to instantiate, such as <code>RDF::Repository</code>
+   * @param  triples     the triples to insert
+   * @return a new RDF.rb graph or repository holding <code>triples</code>
+   */
+  static RubyObject newRepository(Ruby runtime, String className, List<Triple> triples) {
+    Factory factory = Factory.getInstance(runtime);
+    ThreadContext context = runtime.getCurrentContext();
+    RubyObject repository = (RubyObject)runtime.evalScriptlet(className + ".new");
+    for (int i = 0; i < triples.size(); i += 1000) {
+      List<Triple> batch = triples.subList(i, Math.min(i + 1000, triples.size()));
+      IRubyObject[] statements = new IRubyObject[batch.size()];
+      for (int j = 0; j < statements.length; j++) {
+        statements[j] = factory.newStatement(batch.get(j));
+      }
+      repository.callMethod(context, "insert", statements);
+    }
+    return repository;
+  }
+
+  /**
+   * @param  departments the number of departments
+   * @return the triples describing <code>departments</code> departments
+   */
+  static List<Triple> university(int departments) {
+    List<Triple> triples = new ArrayList<Triple>();
+    Node type = RDF.type.asNode();
+    for (int d = 0; d < departments; d++) {
+      Node department = department(d);
+      triples.add(Triple.create(department, type, ub("Department")));
+      triples.add(Triple.create(department, ub("name"), Node.createLiteral("Department" + d)));
+      for (int p = 0; p < PROFESSORS; p++) {
+        Node professor = professor(d, p);
+        triples.add(Triple.create(professor, type, ub("FullProfessor")));
+        triples.add(Triple.create(professor, ub("name"), Node.createLiteral("FullProfessor" + p)));
+        triples.add(Triple.create(professor, ub("worksFor"), department));
+        for (int c = 0; c < COURSES; c++) {
+          Node course = course(d, p * COURSES + c);
+          triples.add(Triple.create(professor, ub("teacherOf"), course));
+          triples.add(Triple.create(course, type, ub("Course")));
+          triples.add(Triple.create(course, ub("name"), Node.createLiteral("Course" + (p * COURSES + c))));
+        }
+      }
+      for (int s = 0; s < STUDENTS; s++) {
+        Node student = student(d, s);
+        triples.add(Triple.create(student, type, ub("Student")));
+        triples.add(Triple.create(student, ub("name"), Node.createLiteral("Student" + s)));
+        triples.add(Triple.create(student, RDFS.label.asNode(), Node.createLiteral("Student " + s, "en", false)));
+        triples.add(Triple.create(student, ub("emailAddress"), Node.createLiteral("Student" + s + "@Department" + d + ".University0.edu")));
+        triples.add(Triple.create(student, ub("age"), Node.createLiteral(Integer.toString(18 + s % 12), null, XSDDatatype.XSDinteger)));
+        triples.add(Triple.create(student, ub("memberOf"), department));
+        triples.add(Triple.create(student, ub("advisor"), professor(d, s % PROFESSORS)));
+        for (int c = 0; c < TAKES; c++) {
+          triples.add(Triple.create(student, ub("takesCourse"), course(d, (s * 7 + c * 11) % (PROFESSORS * COURSES))));
+        }
+      }
+    }
+    return triples;
+  }
+
+  static Node ub(String name) {
+    return Node.createURI(UB + name);
+  }
+
+  static Node department(int d) {
+    return Node.createURI(DATA + "Department" + d);
+  }
+
+  static Node professor(int d, int p) {
+    return Node.createURI(DATA + "Department" + d + "/FullProfessor" + p);
+  }
+
+  static Node course(int d, int c) {
+    return Node.createURI(DATA + "Department" + d + "/Course" + c);
+  }
+
+  static Node student(int d, int s) {
+    return Node.createURI(DATA + "Department" + d + "/Student" + s);
+  }
+}
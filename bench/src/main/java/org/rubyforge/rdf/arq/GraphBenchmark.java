@@ -0,0 +1,82 @@
+package org.rubyforge.rdf.arq;
+
+import org.jruby.*;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures {@link Graph#graphBaseContains} for a present and an absent
+ * triple over an RDF::Graph of one LUBM department, and
+ * {@link Graph#performAdd} of new triples with and without write-behind
+ * buffering.
+ *
+ * @author Arto Bendiken
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GraphBenchmark {
+  private Ruby runtime;
+  private Graph graph;
+  private Triple present;
+  private Triple absent;
+
+  @Setup
+  public void setUp() {
+    runtime = Fixtures.newRuntime();
+    graph   = new Graph(Fixtures.newRepository(runtime, "RDF::Graph", Fixtures.university(1)));
+    present = Triple.create(Fixtures.student(0, 42), Fixtures.ub("advisor"), Fixtures.professor(0, 2));
+    absent  = Triple.create(Fixtures.student(0, 42), Fixtures.ub("advisor"), Fixtures.professor(0, 3));
+  }
+
+  @TearDown
+  public void tearDown() {
+    runtime.tearDown();
+  }
+
+  /**
+   * An empty RDF::Graph, recreated for each iteration, to add to.
+   */
+  @State(Scope.Benchmark)
+  public static class Target {
+    @Param({"false", "true"})
+    public boolean writeBehind;
+
+    Graph graph;
+    int next;
+
+    @Setup(Level.Iteration)
+    public void setUp(GraphBenchmark benchmark) {
+      graph = new Graph(Fixtures.newRepository(benchmark.runtime, "RDF::Graph", Collections.<Triple>emptyList()));
+      graph.setWriteBehind(writeBehind);
+      next  = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+      graph.flush();
+    }
+  }
+
+  @Benchmark
+  public boolean graphBaseContainsPresent() {
+    return graph.graphBaseContains(present);
+  }
+
+  @Benchmark
+  public boolean graphBaseContainsAbsent() {
+    return graph.graphBaseContains(absent);
+  }
+
+  @Benchmark
+  public void performAdd(Target target) {
+    int i = target.next++;
+    target.graph.performAdd(Triple.create(Fixtures.student(i / Fixtures.STUDENTS, i % Fixtures.STUDENTS), Fixtures.ub("age"), Node.createLiteral(Integer.toString(i))));
+  }
+}
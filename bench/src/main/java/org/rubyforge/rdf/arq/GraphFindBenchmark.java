@@ -0,0 +1,67 @@
+package org.rubyforge.rdf.arq;
+
+import org.jruby.*;
+import java.util.concurrent.TimeUnit;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures {@link Graph#graphBaseFind} over an RDF::Graph of one LUBM
+ * department, for each combination of bound and unbound positions. A
+ * pattern shape names the bound positions, with <code>?</code> for each
+ * unbound one.
+ *
+ * @author Arto Bendiken
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GraphFindBenchmark {
+  @Param({"SPO", "SP?", "S?O", "?PO", "S??", "?P?", "??O", "???"})
+  public String shape;
+
+  private Ruby runtime;
+  private Graph graph;
+  private Triple pattern;
+
+  @Setup
+  public void setUp() {
+    runtime = Fixtures.newRuntime();
+    graph   = new Graph(Fixtures.newRepository(runtime, "RDF::Graph", Fixtures.university(1)));
+    Triple triple = Triple.create(Fixtures.student(0, 42), Fixtures.ub("advisor"), Fixtures.professor(0, 2));
+    pattern = Triple.create(
+      (shape.charAt(0) == 'S') ? triple.getSubject()   : Node.ANY,
+      (shape.charAt(1) == 'P') ? triple.getPredicate() : Node.ANY,
+      (shape.charAt(2) == 'O') ? triple.getObject()    : Node.ANY);
+  }
+
+  @TearDown
+  public void tearDown() {
+    runtime.tearDown();
+  }
+
+  /**
+   * Reads every triple matching the pattern.
+   */
+  @Benchmark
+  public int graphBaseFind(Blackhole blackhole) {
+    ExtendedIterator<Triple> triples = graph.graphBaseFind(pattern);
+    int count = 0;
+    try {
+      while (triples.hasNext()) {
+        blackhole.consume(triples.next());
+        count++;
+      }
+    }
+    finally {
+      triples.close();
+    }
+    return count;
+  }
+}
@@ -0,0 +1,101 @@
+package org.rubyforge.rdf.arq;
+
+import org.jruby.*;
+import org.jruby.runtime.builtin.IRubyObject;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures end-to-end SPARQL queries, from parsing to the RDF.rb values of
+ * every solution, over an embedded RDF.rb repository holding five LUBM
+ * departments.
+ *
+ * The queries follow the LUBM and BSBM query mixes: a selective lookup,
+ * a triangular join, a grouped count, a filtered and ordered top-k, and
+ * an optional language-tagged label. Each runs over an in-memory
+ * RDF::Repository, wrapped as an arq.Graph, and over an
+ * RDF::ARQ::Repository, queried in Jena's indexes.
+ *
+ * @author Arto Bendiken
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryBenchmark {
+  private static final String PREFIXES =
+    "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n" +
+    "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\n" +
+    "PREFIX ub: <" + Fixtures.UB + ">\n";
+
+  private static final Map<String, String> QUERIES = new HashMap<String, String>();
+  static {
+    QUERIES.put("lookup", PREFIXES +
+      "SELECT ?x WHERE { ?x rdf:type ub:Student . ?x ub:takesCourse <" + Fixtures.course(0, 7).getURI() + "> }");
+    QUERIES.put("triangle", PREFIXES +
+      "SELECT ?x ?y ?z WHERE { ?x ub:advisor ?y . ?y ub:teacherOf ?z . ?x ub:takesCourse ?z }");
+    QUERIES.put("count", PREFIXES +
+      "SELECT ?d (COUNT(?x) AS ?n) WHERE { ?x ub:memberOf ?d } GROUP BY ?d");
+    QUERIES.put("topk", PREFIXES +
+      "SELECT ?x ?age WHERE { ?x ub:age ?age . FILTER (?age > 25) } ORDER BY DESC(?age) ?x LIMIT 10");
+    QUERIES.put("optional", PREFIXES +
+      "SELECT ?x ?label WHERE { ?x ub:advisor ?y . OPTIONAL { ?x rdfs:label ?label FILTER langMatches(lang(?label), \"en\") } }");
+  }
+
+  @Param({"lookup", "triangle", "count", "topk", "optional"})
+  public String query;
+
+  @Param({"RDF::Repository", "RDF::ARQ::Repository"})
+  public String repository;
+
+  private Ruby runtime;
+  private Graph graph;
+  private Store store;
+  private String sparql;
+
+  @Setup
+  public void setUp() {
+    runtime = Fixtures.newRuntime();
+    RubyObject data = Fixtures.newRepository(runtime, repository, Fixtures.university(5));
+    if (repository.equals("RDF::ARQ::Repository"))
+      store = (Store)data.callMethod(runtime.getCurrentContext(), "store").toJava(Store.class);
+    else
+      graph = Graph.getInstance(data);
+    sparql = QUERIES.get(query);
+  }
+
+  @TearDown
+  public void tearDown() {
+    runtime.tearDown();
+  }
+
+  /**
+   * Executes the query and converts every projected value.
+   */
+  @Benchmark
+  public int select(Blackhole blackhole) {
+    SolutionIterator solutions = (store != null) ? QueryExecutor.select(store, sparql, null, false) : QueryExecutor.select(graph, sparql);
+    List<String> variableNames = solutions.getVariableNames();
+    int count = 0;
+    try {
+      while (solutions.hasNext()) {
+        Solution solution = solutions.next();
+        for (String name : variableNames) {
+          IRubyObject value = solution.get(name);
+          blackhole.consume(value);
+        }
+        count++;
+      }
+    }
+    finally {
+      solutions.close();
+    }
+    return count;
+  }
+}
@@ -0,0 +1,63 @@
+package org.rubyforge.rdf.arq;
+
+import org.jruby.*;
+import org.rubyforge.rdf.EnumeratorIterator;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the throughput of a {@link TripleIterator} reading every
+ * statement of an RDF::Graph, for each iteration mode and for small,
+ * medium and large results. The graph is enumerated through its
+ * <code>each</code> method, as query results are, rather than handed over
+ * as an array that could be sliced without calling back into Ruby.
+ *
+ * @author Arto Bendiken
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TripleIteratorBenchmark {
+  @Param({"10", "1000", "100000"})
+  public int size;
+
+  @Param({"CHUNKED", "THREADED", "ASYNC"})
+  public EnumeratorIterator.Mode mode;
+
+  private Ruby runtime;
+  private RubyObject graph;
+
+  @Setup
+  public void setUp() {
+    runtime = Fixtures.newRuntime();
+    graph   = Fixtures.newRepository(runtime, "RDF::Graph", Fixtures.university(size / 1000 + 1).subList(0, size));
+  }
+
+  @TearDown
+  public void tearDown() {
+    runtime.tearDown();
+  }
+
+  /**
+   * Reads every statement.
+   */
+  @Benchmark
+  public int iterate(Blackhole blackhole) {
+    TripleIterator iterator = new TripleIterator(graph, mode, EnumeratorIterator.getDefaultChunkSize());
+    int count = 0;
+    try {
+      while (iterator.hasNext()) {
+        blackhole.consume(iterator.next());
+        count++;
+      }
+    }
+    finally {
+      iterator.close();
+    }
+    return count;
+  }
+}
@@ -2,6 +2,163 @@ require 'rdf'
 
 module RDF
   module ARQ
-    autoload :VERSION, 'rdf/arq/version'
+    autoload :BGP,          'rdf/arq/bgp'
+    autoload :Changes,      'rdf/arq/changes'
+    autoload :Codec,        'rdf/arq/codec'
+    autoload :DefaultGraph, 'rdf/arq/default_graph'
+    autoload :Repository,   'rdf/arq/repository'
+    autoload :Solution,     'rdf/arq/solution'
+    autoload :Solutions,    'rdf/arq/solutions'
+    autoload :Statistics,   'rdf/arq/statistics'
+    autoload :Transactions, 'rdf/arq/transactions'
+    autoload :Versioned,    'rdf/arq/versioned'
+    autoload :VERSION,      'rdf/arq/version'
+
+    ##
+    # Executes a SPARQL `SELECT` query using ARQ.
+    #
+    # Solutions are streamed from ARQ as they are consumed; breaking out
+    # of the iteration aborts the query. Parsed and optimized queries are
+    # cached by their text, so parameterized queries should pass their
+    # parameters as `:bindings` rather than interpolating them.
+    #
+    # @example Fetching the first ten names
+    #   RDF::ARQ.query(repository, "SELECT ?name WHERE { ?s foaf:name ?name }").first(10)
+    #
+    # @param  [RDF::Queryable] repository
+    # @param  [String] sparql
+    # @param  [Hash{Symbol => Object}] options
+    # @option options [Boolean] :dataset (false)
+    #   whether to query `repository` as a dataset with its contexts as named graphs
+    # @option options [Hash{Symbol => RDF::Value}] :bindings ({})
+    #   values for query parameters, substituted without re-parsing the query
+    # @yield  [solution]
+    # @yieldparam [RDF::ARQ::Solution] solution
+    # @return [RDF::ARQ::Solutions]
+    def self.query(repository, sparql, options = {}, &block)
+      solutions = Solutions.new(repository, sparql, options)
+      block_given? ? solutions.each(&block) : solutions
+    end
+
+    ##
+    # Executes a SPARQL `CONSTRUCT` or `DESCRIBE` query using ARQ.
+    #
+    # The resulting statements are streamed in batches, either inserted
+    # into the `:into` graph or repository or yielded to the block, and are
+    # never collected into one graph in memory. Duplicate statements are
+    # not removed across batches.
+    #
+    # @example Exporting into another repository
+    #   RDF::ARQ.construct(repository, "CONSTRUCT { ?s a foaf:Person } WHERE { ?s foaf:name ?name }", :into => export)
+    #
+    # @param  [RDF::Queryable] repository
+    # @param  [String] sparql
+    # @param  [Hash{Symbol => Object}] options
+    # @option options [RDF::Mutable] :into (nil)
+    #   the graph or repository to insert the statements into
+    # @option options [Integer] :batch_size (1024)
+    #   the number of statements per batch
+    # @option options [Boolean] :dataset (false)
+    #   whether to query `repository` as a dataset with its contexts as named graphs
+    # @option options [Hash{Symbol => RDF::Value}] :bindings ({})
+    #   values for query parameters, substituted without re-parsing the query
+    # @yield  [statements]
+    # @yieldparam [Array<RDF::Statement>] statements
+    # @return [Integer] the number of statements streamed
+    def self.construct(repository, sparql, options = {}, &block)
+      target = options[:into]
+      raise ArgumentError, "expected an :into option or a block" unless target || block_given?
+      stream     = execute(:triples, repository, sparql, options)
+      batch_size = options[:batch_size] || Java::OrgRubyforgeRdfArq::TripleStream::DEFAULT_BATCH_SIZE
+      count      = 0
+      begin
+        until (statements = stream.next(batch_size)).empty?
+          target ? target.insert(*statements) : block.call(statements)
+          count += statements.size
+        end
+      ensure
+        stream.close
+      end
+      count
+    end
+
+    ##
+    # Executes a SPARQL `DESCRIBE` query using ARQ.
+    #
+    # @see RDF::ARQ.construct
+    def self.describe(repository, sparql, options = {}, &block)
+      construct(repository, sparql, options, &block)
+    end
+
+    ##
+    # Executes a SPARQL query using ARQ and profiles its execution.
+    #
+    # The query is run to completion and its solutions discarded. The
+    # returned trace is the query's algebra expression, with the rows
+    # produced, patterns matched, time spent in Ruby and in Java, and
+    # statements converted by each operator; `to_s` renders it as text.
+    #
+    # @example Finding out why a query is slow
+    #   puts RDF::ARQ.trace(repository, "SELECT ?s WHERE { ?s foaf:knows ?o . ?o foaf:name ?name }")
+    #
+    # @param  [RDF::Queryable] repository
+    # @param  [String] sparql
+    # @param  [Hash{Symbol => Object}] options
+    # @option options [Boolean] :dataset (false)
+    #   whether to query `repository` as a dataset with its contexts as named graphs
+    # @option options [Hash{Symbol => RDF::Value}] :bindings ({})
+    #   values for query parameters, substituted without re-parsing the query
+    # @return [Java::OrgRubyforgeRdfArq::QueryTrace]
+    def self.trace(repository, sparql, options = {})
+      execute(:trace, repository, sparql, options)
+    end
+
+    ##
+    # Loads RDF files into `repository` using Jena's streaming parsers.
+    #
+    # Files are parsed in parallel on worker threads, and their statements
+    # inserted in large batches as parsing proceeds. The format of each file
+    # is guessed from its extension, defaulting to N-Triples.
+    #
+    # @example Loading a dump
+    #   RDF::ARQ.load(repository, 'dump1.nt', 'dump2.nq', :threads => 2)
+    #
+    # @param  [RDF::Repository] repository
+    # @param  [Array<String>] files
+    # @option options [Integer] :batch_size (10000)
+    #   the number of statements per `insert` call
+    # @option options [Integer] :threads
+    #   the maximum number of files parsed in parallel
+    # @return [Integer] the number of statements loaded
+    def self.load(repository, *files)
+      require 'java'
+      options    = files.last.is_a?(Hash) ? files.pop : {}
+      batch_size = options[:batch_size] || Java::OrgRubyforgeRdfArq::Loader::DEFAULT_BATCH_SIZE
+      threads    = options[:threads]    || Java::OrgRubyforgeRdfArq::Loader::DEFAULT_THREADS
+      target     = repository.is_a?(RDF::ARQ::Repository) ? repository.store : repository
+      loader     = Java::OrgRubyforgeRdfArq::Loader.new(target, batch_size, threads)
+      loader.load(files.flatten.map { |file| File.expand_path(file.to_s) }.to_java(:string))
+    end
+
+    ##
+    # Executes a query on the Java side, over `repository` wrapped as
+    # appropriate.
+    #
+    # @param  [Symbol] operation
+    #   the `QueryExecutor` method to call
+    # @return [Object]
+    # @private
+    def self.execute(operation, repository, sparql, options = {})
+      require 'java'
+      executor = Java::OrgRubyforgeRdfArq::QueryExecutor
+      bindings = options[:bindings] || {}
+      if repository.is_a?(RDF::ARQ::Repository)
+        executor.send(operation, repository.store, sparql.to_s, bindings, options[:dataset] ? true : false)
+      elsif options[:dataset]
+        executor.send(operation, Java::OrgRubyforgeRdfArq::DatasetGraph.new(repository), sparql.to_s, bindings)
+      else
+        executor.send(operation, Java::OrgRubyforgeRdfArq::Graph.getInstance(repository), sparql.to_s, bindings)
+      end
+    end
   end
 end
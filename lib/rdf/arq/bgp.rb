@@ -0,0 +1,47 @@
+module RDF::ARQ
+  ##
+  # Evaluates whole basic graph patterns on behalf of the Jena adapter, so
+  # that ARQ can hand a BGP over to Ruby in a single call.
+  module BGP
+    ##
+    # Returns `true` if `graph` evaluates queries natively, by overriding
+    # `RDF::Queryable#query_execute`. Other graphs would only evaluate the
+    # query pattern by pattern in Ruby, which the Jena adapter does better
+    # itself.
+    #
+    # @param  [RDF::Queryable] graph
+    # @return [Boolean]
+    def self.supported?(graph)
+      return false unless graph.respond_to?(:query_execute, true)
+      !(defined?(RDF::Queryable) && graph.method(:query_execute).owner.equal?(RDF::Queryable))
+    end
+
+    ##
+    # Evaluates a basic graph pattern against `graph`.
+    #
+    # The solutions are returned as the graph produces them, and are only
+    # turned into hashes, a chunk at a time, by {RDF::ARQ::BGP.hashes} as
+    # the Java side consumes them.
+    #
+    # @param  [RDF::Queryable] graph
+    # @param  [Array<Array>] patterns
+    #   triple patterns, with variables given as symbols
+    # @return [Array<RDF::Query::Solution>]
+    def self.execute(graph, patterns)
+      query = RDF::Query.new
+      patterns.each { |pattern| query.pattern(pattern) }
+      solutions = []
+      graph.send(:query_execute, query) { |solution| solutions << solution }
+      solutions
+    end
+
+    ##
+    # Converts a chunk of solutions into hashes.
+    #
+    # @param  [Array<RDF::Query::Solution>] solutions
+    # @return [Array<Hash{Symbol => RDF::Value}>]
+    def self.hashes(solutions)
+      solutions.map { |solution| solution.to_hash }
+    end
+  end # module BGP
+end # module RDF::ARQ
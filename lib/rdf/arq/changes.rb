@@ -0,0 +1,76 @@
+module RDF::ARQ
+  ##
+  # Writes batches of statements to a graph or repository, reporting which
+  # of them actually changed it.
+  #
+  # The Java side writes through this module while it maintains statement
+  # counts, so that it learns which statements were new, or present, from
+  # the same call that writes them.
+  module Changes
+    ##
+    # Inserts those of `statements` that `graph` does not yet contain.
+    #
+    # @param  [RDF::Mutable] graph
+    # @param  [Array<RDF::Statement>, String] statements
+    #   distinct statements or triples, or a batch packed by {RDF::ARQ::Codec}
+    # @return [Array<Integer>] the positions of the inserted statements
+    def self.insert(graph, statements)
+      statements = statements_from(statements)
+      positions  = select(graph, statements, false)
+      graph.insert(*positions.map { |i| statements[i] }) unless positions.empty?
+      positions
+    end
+
+    ##
+    # Deletes those of `statements` that `graph` contains.
+    #
+    # @param  [RDF::Mutable] graph
+    # @param  [Array<RDF::Statement>, String] statements
+    #   distinct statements or triples, or a batch packed by {RDF::ARQ::Codec}
+    # @return [Array<Integer>] the positions of the deleted statements
+    def self.delete(graph, statements)
+      statements = statements_from(statements)
+      positions  = select(graph, statements, true)
+      graph.delete(*positions.map { |i| statements[i] }) unless positions.empty?
+      positions
+    end
+
+    ##
+    # Returns the positions of those of `statements` that `graph` contains,
+    # or does not contain.
+    #
+    # @param  [RDF::Queryable] graph
+    # @param  [Array<RDF::Statement>, String] statements
+    #   statements or triples, or a batch packed by {RDF::ARQ::Codec}
+    # @param  [Boolean] present
+    # @return [Array<Integer>]
+    def self.select(graph, statements, present)
+      statements = statements_from(statements)
+      positions  = []
+      statements.each_with_index do |statement, i|
+        positions << i if include?(graph, statement) == present
+      end
+      positions
+    end
+
+    ##
+    # @private
+    def self.statements_from(batch)
+      return Codec.unpack(batch) if batch.is_a?(String)
+      batch.map do |statement|
+        next statement if statement.is_a?(RDF::Statement)
+        RDF::Statement.new(statement[0], statement[1], statement[2], :context => statement[3])
+      end
+    end
+
+    ##
+    # @private
+    def self.include?(graph, statement)
+      if statement.context
+        !graph.query(statement).to_a.empty?
+      else
+        graph.has_triple?(statement.to_triple)
+      end
+    end
+  end # module Changes
+end # module RDF::ARQ
@@ -0,0 +1,173 @@
+require 'stringio'
+
+module RDF::ARQ
+  ##
+  # Packs batches of statements into byte strings, and unpacks them, in
+  # the binary format of `org.rubyforge.rdf.arq.Codec`.
+  #
+  # A packed batch crosses into Java as one string, which is decoded there
+  # without calling back into Ruby for each term.
+  #
+  # @example Round-tripping a batch
+  #   RDF::ARQ::Codec.unpack(RDF::ARQ::Codec.pack(statements)) == statements
+  module Codec
+    NIL       = 0
+    URI       = 1
+    NODE      = 2
+    PLAIN     = 3
+    LANGUAGE  = 4
+    TYPED     = 5
+    REFERENCE = 6
+
+    ##
+    # Packs statements, or patterns with `nil` as the wildcard.
+    #
+    # The statements are enumerated once, with `each`, and need not be
+    # collected into an array first.
+    #
+    # @param  [Enumerable<RDF::Statement>] statements
+    # @return [String]
+    def self.pack(statements)
+      terms  = {}
+      count  = 0
+      buffer = [0].pack('N')
+      statements.each do |statement|
+        buffer << pack_term(statement.subject, terms)
+        buffer << pack_term(statement.predicate, terms)
+        buffer << pack_term(statement.object, terms)
+        buffer << pack_term(statement.context, terms)
+        count += 1
+      end
+      buffer[0, 4] = [count].pack('N')
+      buffer
+    end
+
+    ##
+    # Unpacks statements.
+    #
+    # @param  [String] buffer
+    # @return [Array<RDF::Statement>]
+    def self.unpack(buffer)
+      input = StringIO.new(buffer)
+      terms = []
+      (0...read_int(input)).map do
+        subject, predicate, object, context = (0...4).map { unpack_term(input, terms) }
+        RDF::Statement.new(subject, predicate, object, :context => context)
+      end
+    end
+
+    ##
+    # Inserts a packed batch into `graph`.
+    #
+    # @param  [RDF::Mutable] graph
+    # @param  [String] buffer
+    # @return [void]
+    def self.insert(graph, buffer)
+      graph.insert(*unpack(buffer))
+    end
+
+    ##
+    # Deletes a packed batch from `graph`.
+    #
+    # @param  [RDF::Mutable] graph
+    # @param  [String] buffer
+    # @return [void]
+    def self.delete(graph, buffer)
+      graph.delete(*unpack(buffer))
+    end
+
+    ##
+    # Queries `graph` for a packed pattern, and packs the matches.
+    #
+    # @param  [RDF::Queryable] graph
+    # @param  [String] buffer
+    # @return [String]
+    def self.query(graph, buffer)
+      pack(graph.enum_for(:query, unpack(buffer).first))
+    end
+
+    ##
+    # Queries `graph` for each of a packed batch of patterns, and packs the
+    # matches of each pattern as a batch of its own, in the same order.
+    # Matches are packed as the graph yields them, without collecting them
+    # into an array per pattern.
+    #
+    # @param  [RDF::Queryable] graph
+    # @param  [String] buffer
+    # @return [String]
+    def self.match(graph, buffer)
+      unpack(buffer).inject(String.new) do |matches, pattern|
+        matches << pack(graph.enum_for(:query, pattern))
+      end
+    end
+
+    ##
+    # @private
+    def self.pack_term(term, terms)
+      packed = case term
+        when nil          then return [NIL].pack('C')
+        when RDF::Node    then [NODE].pack('C') << pack_string(term.id)
+        when RDF::URI     then [URI].pack('C') << pack_string(term.to_s)
+        when RDF::Literal
+          case
+            when term.datatype then [TYPED].pack('C') << pack_string(term.value) << pack_string(term.datatype)
+            when term.language then [LANGUAGE].pack('C') << pack_string(term.value) << pack_string(term.language)
+            else [PLAIN].pack('C') << pack_string(term.value)
+          end
+        else raise ArgumentError, "cannot pack #{term.inspect}"
+      end
+      if index = terms[packed]
+        [REFERENCE, index].pack('CN')
+      else
+        terms[packed] = terms.size
+        packed
+      end
+    end
+
+    ##
+    # Packs a string as its length in bytes followed by its UTF-8 bytes.
+    # On Ruby 1.9, the bytes are appended as binary, as appending a UTF-8
+    # string to the binary buffer would otherwise fail or change its
+    # encoding.
+    #
+    # @private
+    def self.pack_string(string)
+      string = string.to_s
+      string = string.dup.force_encoding('BINARY') if string.respond_to?(:force_encoding)
+      [string.bytesize].pack('N') << string
+    end
+
+    ##
+    # @private
+    def self.unpack_term(input, terms)
+      term = case tag = input.read(1).unpack('C').first
+        when NIL       then return nil
+        when REFERENCE then return terms.fetch(read_int(input))
+        when URI       then RDF::URI.new(read_string(input))
+        when NODE      then RDF::Node.new(read_string(input))
+        when PLAIN     then RDF::Literal.new(read_string(input))
+        when LANGUAGE  then RDF::Literal.new(read_string(input), :language => read_string(input).to_sym)
+        when TYPED     then RDF::Literal.new(read_string(input), :datatype => RDF::URI.new(read_string(input)))
+        else raise ArgumentError, "invalid term tag: #{tag}"
+      end
+      terms << term
+      term
+    end
+
+    ##
+    # @private
+    def self.read_int(input)
+      input.read(4).unpack('N').first
+    end
+
+    ##
+    # Reads a string packed by {pack_string}, as UTF-8 on Ruby 1.9.
+    #
+    # @private
+    def self.read_string(input)
+      string = input.read(read_int(input)).to_s
+      string.force_encoding('UTF-8') if string.respond_to?(:force_encoding)
+      string
+    end
+  end # module Codec
+end # module RDF::ARQ
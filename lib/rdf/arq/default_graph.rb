@@ -0,0 +1,22 @@
+module RDF::ARQ
+  ##
+  # Matches patterns against the default graph of a repository, which holds
+  # the statements without a context.
+  #
+  # RDF.rb patterns cannot select these, as a `nil` context is a wildcard,
+  # so they are selected here, in the same call that queries the repository.
+  module DefaultGraph
+    ##
+    # Queries `repository` for the statements without a context matching
+    # `pattern`.
+    #
+    # @param  [RDF::Queryable] repository
+    # @param  [RDF::Query::Pattern] pattern
+    # @return [Array<RDF::Statement>]
+    def self.query(repository, pattern)
+      statements = []
+      repository.query(pattern) { |statement| statements << statement unless statement.context }
+      statements
+    end
+  end # module DefaultGraph
+end # module RDF::ARQ
@@ -0,0 +1,239 @@
+require 'java'
+require 'jruby'
+
+module RDF::ARQ
+  ##
+  # An RDF.rb repository stored in Jena's in-memory indexes, or persisted
+  # in a Jena TDB database.
+  #
+  # Statements are kept as Jena quads, indexed by subject, predicate and
+  # object, instead of as Ruby objects. Lookups run on the Java side, and
+  # only matching statements are converted back into RDF.rb values.
+  #
+  # A TDB database memory-maps its B+tree indexes and node table, so
+  # opening an existing database is immediate and its working set is paged
+  # in by the operating system.
+  #
+  # @example Creating an in-memory repository
+  #   repository = RDF::ARQ::Repository.new
+  #   repository << [RDF::Node.new, RDF.type, RDF::RDFS.Resource]
+  #   repository.count   #=> 1
+  #
+  # @example Opening a TDB database
+  #   repository = RDF::ARQ::Repository.new(:path => '/var/db/rdf')
+  #   repository.durable?   #=> true
+  #   repository.close
+  class Repository < RDF::Repository
+    ##
+    # The number of statements converted per call when enumerating.
+    BATCH_SIZE = Java::OrgRubyforgeRdfArq::Store::DEFAULT_BATCH_SIZE
+
+    ##
+    # @param  [Hash{Symbol => Object}] options
+    # @option options [String] :path (nil)
+    #   the directory of a TDB database to open or create
+    # @option options [Symbol] :transport (:objects)
+    #   `:binary` to pass inserted and deleted statements to the store
+    #   packed by `RDF::ARQ::Codec`
+    # @yield  [repository]
+    # @yieldparam [RDF::ARQ::Repository] repository
+    def initialize(options = {}, &block)
+      @store = options.delete(:store) || case path = options[:path]
+        when nil then Java::OrgRubyforgeRdfArq::Store.new(JRuby.runtime)
+        else Java::OrgRubyforgeRdfArq::Store.open(JRuby.runtime, File.expand_path(path.to_s))
+      end
+      @binary = options.delete(:transport) == :binary
+      super(options, &block)
+    end
+
+    ##
+    # Returns the Java store backing this repository.
+    #
+    # @return [Java::OrgRubyforgeRdfArq::Store]
+    def store
+      @store
+    end
+
+    ##
+    # Returns the underlying Jena dataset.
+    #
+    # @return [Java::ComHpHplJenaSparqlCore::DatasetGraph]
+    def dataset
+      @store.getDataset
+    end
+
+    ##
+    # Returns `true` if this repository is stored in a TDB database.
+    #
+    # @return [Boolean]
+    def durable?
+      @store.isDurable
+    end
+
+    ##
+    # Writes any changes to disk, if this repository is durable.
+    #
+    # @return [void]
+    def sync
+      @store.sync
+    end
+
+    ##
+    # Writes any changes to disk and closes this repository.
+    #
+    # @return [void]
+    def close
+      @store.close
+    end
+
+    ##
+    # Returns `true` as contexts are supported.
+    #
+    # @param  [Symbol, #to_sym] feature
+    # @return [Boolean]
+    def supports?(feature)
+      feature.to_sym == :context || super
+    end
+
+    ##
+    # Returns `true` if this repository contains no statements.
+    #
+    # @return [Boolean]
+    def empty?
+      count.zero?
+    end
+
+    ##
+    # Returns the number of statements in this repository.
+    #
+    # @return [Integer]
+    def count
+      @store.count
+    end
+    alias_method :size, :count
+    alias_method :length, :count
+
+    ##
+    # Returns `true` if this repository contains `statement`. A `nil`
+    # context matches any context.
+    #
+    # @param  [RDF::Statement] statement
+    # @return [Boolean]
+    def has_statement?(statement)
+      @store.contains(statement_from(statement))
+    end
+
+    ##
+    # Enumerates each statement in this repository.
+    #
+    # @yield  [statement]
+    # @yieldparam [RDF::Statement] statement
+    # @return [Enumerator]
+    def each(&block)
+      return enum_for(:each) unless block_given?
+      each_match(RDF::Statement.new, &block)
+    end
+    alias_method :each_statement, :each
+
+    ##
+    # Returns the contexts in this repository.
+    #
+    # @return [Array<RDF::Resource>]
+    def contexts
+      @store.contexts.to_a
+    end
+
+    ##
+    # Returns `true` if `value` is a context in this repository.
+    #
+    # @param  [RDF::Resource] value
+    # @return [Boolean]
+    def has_context?(value)
+      contexts.include?(value)
+    end
+
+    ##
+    # Queries this repository for statements matching `pattern`, with
+    # `nil` as the wildcard. Other queries are handled by `RDF::Queryable`.
+    #
+    # @param  [RDF::Statement, Array, Hash] pattern
+    # @yield  [statement]
+    # @yieldparam [RDF::Statement] statement
+    # @return [Array<RDF::Statement>]
+    def query(pattern, &block)
+      case pattern
+        when RDF::Statement, Array, Hash
+          statements = @store.query(statement_from(pattern)).to_a
+          statements.each(&block) if block_given?
+          statements
+        else super
+      end
+    end
+
+    ##
+    # Inserts statements in a single call to the store.
+    #
+    # @param  [Array<RDF::Statement>] statements
+    # @return [RDF::ARQ::Repository]
+    def insert(*statements)
+      statements = statements.map { |statement| statement_from(statement) }
+      @binary ? @store.insertPacked(Codec.pack(statements).to_java_bytes) : @store.insert(statements)
+      self
+    end
+
+    ##
+    # Deletes statements in a single call to the store.
+    #
+    # @param  [Array<RDF::Statement>] statements
+    # @return [RDF::ARQ::Repository]
+    def delete(*statements)
+      statements = statements.map { |statement| statement_from(statement) }
+      @binary ? @store.deletePacked(Codec.pack(statements).to_java_bytes) : @store.delete(statements)
+      self
+    end
+
+    ##
+    # Deletes all statements from this repository.
+    #
+    # @return [RDF::ARQ::Repository]
+    def clear
+      @store.clear
+      self
+    end
+
+    ##
+    # @private
+    def insert_statement(statement)
+      @store.insert([statement])
+    end
+
+    ##
+    # @private
+    def delete_statement(statement)
+      @store.delete([statement])
+    end
+
+    protected
+
+    ##
+    # @private
+    def each_match(pattern, &block)
+      quads = @store.find(pattern)
+      until (statements = @store.next(quads, BATCH_SIZE)).empty?
+        statements.each(&block)
+      end
+    end
+
+    ##
+    # @private
+    def statement_from(value)
+      case value
+        when RDF::Statement then value
+        when Hash           then RDF::Statement.new(value)
+        else
+          subject, predicate, object, context = value.to_a
+          RDF::Statement.new(subject, predicate, object, :context => context)
+      end
+    end
+  end # class Repository
+end # module RDF::ARQ
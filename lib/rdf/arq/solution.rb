@@ -0,0 +1,84 @@
+module RDF::ARQ
+  ##
+  # A SPARQL query solution.
+  #
+  # Bound values are converted from Jena nodes only when they are read.
+  #
+  # @example Reading a bound value
+  #   solution[:name]   #=> RDF::Literal("Alice")
+  #   solution.name     #=> RDF::Literal("Alice")
+  class Solution
+    include Enumerable
+
+    ##
+    # @param  [Java::OrgRubyforgeRdfArq::Solution] solution
+    def initialize(solution)
+      @solution = solution
+    end
+
+    ##
+    # Returns the value bound to the variable `name`.
+    #
+    # @param  [Symbol, #to_s] name
+    # @return [RDF::Value]
+    def [](name)
+      @solution.get(name.to_s)
+    end
+
+    ##
+    # Returns `true` if the variable `name` is bound.
+    #
+    # @param  [Symbol, #to_s] name
+    # @return [Boolean]
+    def bound?(name)
+      @solution.isBound(name.to_s)
+    end
+
+    ##
+    # Returns the names of the bound variables.
+    #
+    # @return [Array<Symbol>]
+    def variable_names
+      @solution.getVariableNames.map { |name| name.to_sym }
+    end
+
+    ##
+    # Enumerates the variable bindings.
+    #
+    # @yield  [name, value]
+    # @yieldparam [Symbol] name
+    # @yieldparam [RDF::Value] value
+    # @return [Enumerator]
+    def each_binding(&block)
+      return enum_for(:each_binding) unless block_given?
+      variable_names.each { |name| block.call(name, self[name]) }
+    end
+    alias_method :each, :each_binding
+
+    ##
+    # @return [Hash{Symbol => RDF::Value}]
+    def to_hash
+      hash = {}
+      each_binding { |name, value| hash[name] = value }
+      hash
+    end
+
+    ##
+    # @return [String]
+    def inspect
+      sprintf("#<%s:%#0x(%s)>", self.class.name, object_id, to_hash.inspect)
+    end
+
+    protected
+
+    ##
+    # @private
+    def method_missing(name, *args, &block)
+      if args.empty? && bound?(name)
+        self[name]
+      else
+        super
+      end
+    end
+  end # class Solution
+end # module RDF::ARQ
@@ -0,0 +1,54 @@
+require 'java'
+
+module RDF::ARQ
+  ##
+  # The solutions of a SPARQL `SELECT` query, executed anew on each
+  # enumeration.
+  class Solutions
+    include Enumerable
+
+    ##
+    # @param  [RDF::Queryable] repository
+    # @param  [String] sparql
+    # @param  [Hash{Symbol => Object}] options
+    def initialize(repository, sparql, options = {})
+      @repository, @sparql, @options = repository, sparql.to_s, options
+    end
+
+    ##
+    # Enumerates the solutions, aborting the query if the block breaks
+    # out early.
+    #
+    # @yield  [solution]
+    # @yieldparam [RDF::ARQ::Solution] solution
+    # @return [Enumerator]
+    def each(&block)
+      return enum_for(:each) unless block_given?
+      iterator = execute
+      begin
+        block.call(Solution.new(iterator.next)) while iterator.hasNext
+      ensure
+        iterator.close
+      end
+      self
+    end
+
+    ##
+    # Returns the names of the projected variables, taken from the query
+    # plan without executing the query.
+    #
+    # @return [Array<Symbol>]
+    def variable_names
+      executor = Java::OrgRubyforgeRdfArq::QueryExecutor
+      executor.getVariableNames(@sparql).map { |name| name.to_sym }
+    end
+
+    protected
+
+    ##
+    # @return [Java::OrgRubyforgeRdfArq::SolutionIterator]
+    def execute
+      RDF::ARQ.execute(:select, @repository, @sparql, @options)
+    end
+  end # class Solutions
+end # module RDF::ARQ
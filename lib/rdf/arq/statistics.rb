@@ -0,0 +1,25 @@
+module RDF::ARQ
+  ##
+  # Estimates the cardinalities of triple patterns, for ARQ to order the
+  # patterns of a query by.
+  module Statistics
+    ##
+    # Counts the statements matching `pattern`, stopping once `limit` is
+    # reached rather than enumerating all of them.
+    #
+    # @param  [RDF::Queryable] graph
+    # @param  [RDF::Query::Pattern] pattern
+    # @param  [Integer] limit
+    # @param  [Boolean] unnamed
+    #   whether to count only the statements without a context
+    # @return [Integer] the count, or `limit` if there are at least as many
+    def self.count(graph, pattern, limit, unnamed = false)
+      count = 0
+      graph.query(pattern) do |statement|
+        next if unnamed && statement.context
+        break if (count += 1) >= limit
+      end
+      count
+    end
+  end # module Statistics
+end # module RDF::ARQ
@@ -0,0 +1,54 @@
+module RDF::ARQ
+  ##
+  # Carries Jena transactions on an `RDF::ARQ::Graph` through to the
+  # transactions of the underlying RDF.rb graph or repository.
+  #
+  # The Java side buffers the changes made within a transaction, and passes
+  # them here in one call when it commits.
+  #
+  # @see RDF::Repository#transaction
+  module Transactions
+    ##
+    # Returns `true` if `graph` supports RDF.rb transactions.
+    #
+    # @param  [RDF::Mutable] graph
+    # @return [Boolean]
+    def self.supported?(graph)
+      graph.respond_to?(:begin_transaction, true)
+    end
+
+    ##
+    # Begins a transaction on `graph`.
+    #
+    # @param  [RDF::Mutable] graph
+    # @param  [RDF::Resource] context
+    # @return [RDF::Transaction]
+    def self.begin(graph, context)
+      graph.send(:begin_transaction, context)
+    end
+
+    ##
+    # Records `deletes` and `inserts` in `transaction`, and commits it.
+    #
+    # @param  [RDF::Mutable] graph
+    # @param  [RDF::Transaction] transaction
+    # @param  [Array<RDF::Statement>] inserts
+    # @param  [Array<RDF::Statement>] deletes
+    # @return [void]
+    def self.commit(graph, transaction, inserts, deletes)
+      deletes.each { |statement| transaction.delete(statement) }
+      inserts.each { |statement| transaction.insert(statement) }
+      graph.send(:commit_transaction, transaction)
+    end
+
+    ##
+    # Rolls back `transaction`.
+    #
+    # @param  [RDF::Mutable] graph
+    # @param  [RDF::Transaction] transaction
+    # @return [void]
+    def self.rollback(graph, transaction)
+      graph.send(:rollback_transaction, transaction)
+    end
+  end # module Transactions
+end # module RDF::ARQ
@@ -0,0 +1,50 @@
+module RDF::ARQ
+  ##
+  # Maintains a mutation version on an `RDF::Mutable` instance.
+  #
+  # The Jena adapter caches statement counts on the Java side; extending a
+  # graph or repository with this module lets it detect changes made from
+  # Ruby and recount. Without it, changes made from Ruby leave the counts,
+  # and the cached query results based on them, stale until the adapter is
+  # invalidated.
+  #
+  # @example Tracking changes to a repository
+  #   repository = RDF::Repository.new
+  #   repository.extend(RDF::ARQ::Versioned)
+  #   repository.arq_version   #=> 0
+  #   repository << [RDF::Node.new, RDF.type, RDF::RDFS.Resource]
+  #   repository.arq_version   #=> 1
+  module Versioned
+    ##
+    # Returns the number of mutations made so far.
+    #
+    # @return [Integer]
+    def arq_version
+      @arq_version ||= 0
+    end
+
+    ##
+    # @private
+    def insert_statement(statement)
+      result = super
+      @arq_version = arq_version + 1
+      result
+    end
+
+    ##
+    # @private
+    def delete_statement(statement)
+      result = super
+      @arq_version = arq_version + 1
+      result
+    end
+
+    ##
+    # @private
+    def clear
+      result = super
+      @arq_version = arq_version + 1
+      result
+    end
+  end # module Versioned
+end # module RDF::ARQ
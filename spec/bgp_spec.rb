@@ -0,0 +1,46 @@
+require File.join(File.dirname(__FILE__), 'spec_helper')
+
+describe RDF::ARQ::BGP do
+  before :each do
+    @graph = RDF::Graph.new
+  end
+
+  describe ".supported?" do
+    it "returns false for graphs without a query engine of their own" do
+      RDF::ARQ::BGP.supported?(@graph).should be_false
+    end
+
+    it "returns true for graphs overriding #query_execute" do
+      def @graph.query_execute(query, &block)
+        query.execute(self).each(&block)
+      end
+      RDF::ARQ::BGP.supported?(@graph).should be_true
+    end
+  end
+
+  describe "when joining triple patterns" do
+    before :each do
+      @metrics = Java::OrgRubyforgeRdf::Metrics.getInstance
+      @metrics.setEnabled(true)
+      @count = 1000
+      @count.times do |i|
+        person = RDF::URI.new("http://example.org/person/#{i}")
+        @graph.insert([RDF::URI.new("http://example.org/group"), RDF::URI.new("http://example.org/member"), person])
+        @graph.insert([person, RDF::URI.new("http://example.org/name"), RDF::Literal.new("Person #{i}")])
+      end
+    end
+
+    after :each do
+      @metrics.setEnabled(false)
+    end
+
+    it "calls into Ruby once per block of input bindings" do
+      query = @metrics.getCall(Java::OrgRubyforgeRdf::Metrics::Call::QUERY)
+      calls = query.getCount
+      solutions = RDF::ARQ.query(@graph, "SELECT ?name WHERE { <http://example.org/group> <http://example.org/member> ?person . ?person <http://example.org/name> ?name }").to_a
+      solutions.size.should == @count
+      blocks = (@count.to_f / Java::OrgRubyforgeRdfArq::BlockJoinIterator::DEFAULT_BLOCK_SIZE).ceil
+      (query.getCount - calls).should <= 1 + blocks
+    end
+  end
+end
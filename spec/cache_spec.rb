@@ -0,0 +1,44 @@
+require File.join(File.dirname(__FILE__), 'spec_helper')
+require 'jruby'
+
+describe Java::OrgRubyforgeRdf::Cache do
+  before :each do
+    @cache = Java::OrgRubyforgeRdf::Cache.new(3, 1)
+  end
+
+  it "evicts the least recently used entry once full" do
+    %w(a b c).each { |key| @cache.put(key, key.upcase) }
+    @cache.get("a").should == "A"
+    @cache.put("d", "D")
+    @cache.size.should == 3
+    @cache.get("b").should be_nil
+    %w(a c d).each { |key| @cache.get(key).should == key.upcase }
+    @cache.getEvictions.should == 1
+  end
+
+  it "counts hits and misses" do
+    @cache.put("a", "A")
+    @cache.get("a")
+    @cache.get("b")
+    @cache.getHits.should == 1
+    @cache.getMisses.should == 1
+    @cache.getHitRate.should == 0.5
+  end
+
+  it "caches nothing with a capacity of 0" do
+    @cache.setCapacity(0)
+    @cache.put("a", "A")
+    @cache.get("a").should be_nil
+    @cache.size.should == 0
+  end
+end
+
+describe Java::OrgRubyforgeRdfArq::Factory do
+  it "returns the same RDF.rb value for a recurring Jena node" do
+    factory = Java::OrgRubyforgeRdfArq::Factory.new(JRuby.runtime, 10)
+    node    = Java::ComHpHplJenaGraph::Node.createURI("http://example.org/")
+    value   = factory.newValue(node)
+    factory.newValue(Java::ComHpHplJenaGraph::Node.createURI("http://example.org/")).should equal(value)
+    factory.toNode(value).should equal(node)
+  end
+end
@@ -0,0 +1,47 @@
+# -*- encoding: utf-8 -*-
+require File.join(File.dirname(__FILE__), 'spec_helper')
+
+describe RDF::ARQ::Codec do
+  before :each do
+    @s, @p = RDF::URI.new("http://example.org/s"), RDF::URI.new("http://example.org/p")
+    @statements = [
+      RDF::Statement.new(@s, @p, RDF::URI.new("http://example.org/o")),
+      RDF::Statement.new(@s, @p, RDF::Literal.new("héllo wörld")),
+      RDF::Statement.new(@s, @p, RDF::Literal.new("日本語", :language => :ja)),
+      RDF::Statement.new(@s, @p, RDF::Literal.new("5", :datatype => RDF::URI.new("http://www.w3.org/2001/XMLSchema#integer"))),
+      RDF::Statement.new(RDF::Node.new("b1"), @p, RDF::Literal.new("ünïcode"), :context => RDF::URI.new("http://example.org/g")),
+    ]
+  end
+
+  def summary(statements)
+    statements.map do |statement|
+      object  = statement.object
+      literal = object.is_a?(RDF::Literal)
+      [statement.subject.to_s, statement.predicate.to_s, object.to_s,
+       (object.language.to_s if literal), (object.datatype.to_s if literal && object.datatype),
+       statement.context.to_s]
+    end
+  end
+
+  it "round-trips statements with non-ASCII literals" do
+    summary(RDF::ARQ::Codec.unpack(RDF::ARQ::Codec.pack(@statements))).should == summary(@statements)
+  end
+
+  it "round-trips repeated terms as references" do
+    statements = (1..300).map { |i| RDF::Statement.new(@s, @p, RDF::Literal.new("ä #{i % 3}")) }
+    packed = RDF::ARQ::Codec.pack(statements)
+    summary(RDF::ARQ::Codec.unpack(packed)).should == summary(statements)
+  end
+
+  it "packs from any enumerable" do
+    summary(RDF::ARQ::Codec.unpack(RDF::ARQ::Codec.pack(@statements.to_enum))).should == summary(@statements)
+  end
+
+  it "round-trips non-ASCII literals through the Java codec" do
+    codec = Java::OrgRubyforgeRdfArq::Codec
+    quads = codec.decode(RDF::ARQ::Codec.pack(@statements).to_java_bytes)
+    quads.map { |quad| quad.getObject.isLiteral ? quad.getObject.getLiteralLexicalForm : nil }.compact.should ==
+      ["héllo wörld", "日本語", "5", "ünïcode"]
+    summary(RDF::ARQ::Codec.unpack(String.from_java_bytes(codec.encode(quads)))).should == summary(@statements)
+  end
+end
@@ -0,0 +1,73 @@
+require File.join(File.dirname(__FILE__), 'spec_helper')
+
+describe Java::OrgRubyforgeRdf::EnumeratorIterator do
+  before :each do
+    @graph = RDF::Graph.new
+    1000.times do |i|
+      @graph.insert([RDF::URI.new("http://example.org/person/#{i}"), RDF::URI.new("http://example.org/name"), RDF::Literal.new("Person #{i}")])
+    end
+    def @graph.each(*args, &block)
+      @finished = false
+      super
+    ensure
+      sleep 0.2
+      @finished = true
+    end
+    @metrics = Java::OrgRubyforgeRdf::Metrics.getInstance
+  end
+
+  def live
+    @metrics.getLiveGeneratorThreads
+  end
+
+  def wait_until_stopped(count)
+    deadline = Time.now + 5
+    sleep 0.01 until live == count || Time.now > deadline
+  end
+
+  describe "in CHUNKED mode" do
+    it "enumerates without a generator thread" do
+      before   = live
+      iterator = Java::OrgRubyforgeRdfArq::TripleIterator.new(@graph, Java::OrgRubyforgeRdf::EnumeratorIterator::Mode::CHUNKED, 16)
+      5.times { iterator.next }
+      live.should == before
+      @graph.instance_variable_get(:@finished).should be_true
+      count = 5
+      while iterator.hasNext
+        iterator.next
+        count += 1
+      end
+      count.should == 1000
+      live.should == before
+    end
+  end
+
+  %w(THREADED ASYNC).map { |name| Java::OrgRubyforgeRdf::EnumeratorIterator::Mode.valueOf(name) }.each do |mode|
+    describe "in #{mode} mode" do
+      it "counts its generator thread as live until the thread stops" do
+        before   = live
+        iterator = Java::OrgRubyforgeRdfArq::TripleIterator.new(@graph, mode, 16)
+        5.times { iterator.next }
+        live.should == before + 1
+        iterator.close
+        wait_until_stopped(before)
+        live.should == before
+        @graph.instance_variable_get(:@finished).should be_true
+      end
+
+      it "stops counting its generator thread once exhausted" do
+        before   = live
+        iterator = Java::OrgRubyforgeRdfArq::TripleIterator.new(@graph, mode, 16)
+        count    = 0
+        while iterator.hasNext
+          iterator.next
+          count += 1
+        end
+        count.should == 1000
+        wait_until_stopped(before)
+        live.should == before
+        @graph.instance_variable_get(:@finished).should be_true
+      end
+    end
+  end
+end
@@ -0,0 +1,37 @@
+require File.join(File.dirname(__FILE__), 'spec_helper')
+require 'jruby'
+
+describe Java::OrgRubyforgeRdfArq::Factory do
+  before :each do
+    @factory = Java::OrgRubyforgeRdfArq::Factory.getInstance(JRuby.runtime)
+  end
+
+  describe ".getInstance" do
+    it "shares one factory per runtime with the base class" do
+      Java::OrgRubyforgeRdf::Factory.getInstance(JRuby.runtime).should equal(@factory)
+      Java::OrgRubyforgeRdfArq::Factory.getInstance(JRuby.runtime).should equal(@factory)
+    end
+  end
+
+  describe "#toNode" do
+    def lexical_form(literal)
+      @factory.toNode(literal).getLiteralLexicalForm
+    end
+
+    it "converts canonical integer and boolean literals by value" do
+      node = @factory.toNode(RDF::Literal::Integer.new("42"))
+      node.getLiteralValue.should == 42
+      node.getLiteralDatatypeURI.should == "http://www.w3.org/2001/XMLSchema#integer"
+      @factory.toNode(RDF::Literal::Boolean.new("true")).getLiteralLexicalForm.should == "true"
+    end
+
+    it "keeps the lexical forms of non-canonical integers" do
+      lexical_form(RDF::Literal::Integer.new("01")).should == "01"
+      lexical_form(RDF::Literal::Integer.new("+5")).should == "+5"
+    end
+
+    it "keeps the lexical forms of non-canonical booleans" do
+      lexical_form(RDF::Literal::Boolean.new("1")).should == "1"
+    end
+  end
+end
@@ -0,0 +1,92 @@
+require File.join(File.dirname(__FILE__), 'spec_helper')
+
+describe Java::OrgRubyforgeRdfArq::Graph do
+  before :each do
+    @graph = RDF::Graph.new
+    @count = 100
+    @count.times do |i|
+      @graph.insert([RDF::URI.new("http://example.org/person/#{i}"), RDF::URI.new("http://example.org/name"), RDF::Literal.new("Person #{i}")])
+    end
+    @jena  = Java::OrgRubyforgeRdfArq::Graph.getInstance(@graph)
+    @query = "SELECT (count(*) AS ?count) WHERE { ?s <http://example.org/name> ?name }"
+  end
+
+  def count
+    RDF::ARQ.query(@graph, @query).map { |solution| solution[:count].to_s.to_i }.first
+  end
+
+  def triple(id, name)
+    node = Java::ComHpHplJenaGraph::Node
+    Java::ComHpHplJenaGraph::Triple.create(node.createURI("http://example.org/person/#{id}"),
+      node.createURI("http://example.org/name"), node.createLiteral(name))
+  end
+
+  describe "within a transaction" do
+    it "blocks queries on other threads until it commits" do
+      @jena.getTransactionHandler.begin
+      @jena.add(triple("new", "New"))
+      reader = Thread.new { count }
+      sleep 0.2
+      reader.should be_alive
+      @jena.getTransactionHandler.commit
+      reader.value.should == @count + 1
+    end
+
+    it "is never observed by concurrent readers when aborted" do
+      readers = (1..4).map { Thread.new { (1..10).map { count } } }
+      writer  = Thread.new do
+        10.times do |i|
+          @jena.getTransactionHandler.begin
+          @jena.add(triple("new#{i}", "New #{i}"))
+          @jena.delete(triple(i, "Person #{i}"))
+          @jena.getTransactionHandler.abort
+        end
+      end
+      writer.join
+      readers.map { |reader| reader.value }.flatten.uniq.should == [@count]
+      count.should == @count
+    end
+  end
+
+  describe "when joining triple patterns" do
+    before :each do
+      @join = "SELECT * WHERE { ?s <http://example.org/name> ?name . ?s <http://example.org/name> ?other }"
+    end
+
+    it "joins every input binding with its matches" do
+      RDF::ARQ.query(@graph, @join).map { |solution| solution[:other].to_s }.sort.should ==
+        (0...@count).map { |i| "Person #{i}" }.sort
+    end
+
+    it "returns only as many solutions as the LIMIT allows" do
+      RDF::ARQ.query(@graph, @join + " LIMIT 1").to_a.size.should == 1
+      RDF::ARQ.query(@graph, "SELECT * WHERE { ?s ?p ?o } LIMIT 1").to_a.size.should == 1
+    end
+  end
+
+  describe "in write-behind mode" do
+    it "writes pending changes to the RDF::Graph once they are due, without another write" do
+      @jena.setWriteBehind(1000, 100)
+      @jena.add(triple("new", "New"))
+      @graph.count.should == @count
+      deadline = Time.now + 5
+      sleep 0.05 until @graph.count > @count || Time.now > deadline
+      @graph.count.should == @count + 1
+      @jena.setWriteBehind(false)
+    end
+  end
+
+  describe "when written to while being read on the same thread" do
+    it "raises an error rather than deadlocking" do
+      jena, added = @jena, triple("new", "New")
+      def @graph.query(pattern, &block)
+        @callback.call
+        super
+      end
+      @graph.instance_variable_set(:@callback, lambda { jena.add(added) })
+      lambda { count }.should raise_error(NativeException, /while reading it/)
+      @graph.instance_variable_set(:@callback, lambda {})
+      count.should == @count
+    end
+  end
+end
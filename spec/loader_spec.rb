@@ -0,0 +1,54 @@
+require File.join(File.dirname(__FILE__), 'spec_helper')
+
+describe Java::OrgRubyforgeRdfArq::Loader do
+  before :each do
+    require 'tmpdir'
+    require 'fileutils'
+    @dir = File.join(Dir.tmpdir, "rdf-arq-spec-#{$$}-#{rand(1 << 30)}")
+    FileUtils.mkdir_p(@dir)
+    @files = (1..4).map do |n|
+      file = File.join(@dir, "#{n}.nt")
+      File.open(file, 'w') do |out|
+        100.times { |i| out.puts "<http://example.org/s#{n}_#{i}> <http://example.org/p> \"#{i}\" ." }
+      end
+      file
+    end
+  end
+
+  after :each do
+    FileUtils.rm_rf(@dir)
+  end
+
+  def loader_threads
+    deadline = Time.now + 5
+    loop do
+      threads = java.lang.Thread.getAllStackTraces.keySet.select { |thread| thread.getName == "Loader" }
+      return threads.size if threads.empty? || Time.now > deadline
+      sleep 0.05
+    end
+  end
+
+  it "loads every file in batches" do
+    repository = RDF::Repository.new
+    RDF::ARQ.load(repository, @files, :batch_size => 30, :threads => 2).should == 400
+    repository.count.should == 400
+  end
+
+  it "cancels the other workers and rethrows when a file fails to parse" do
+    File.open(@files[2], 'a') { |out| out.puts "this is not N-Triples" }
+    repository = RDF::Repository.new
+    lambda { RDF::ARQ.load(repository, @files, :batch_size => 10, :threads => 2) }.should raise_error
+    loader_threads.should == 0
+  end
+
+  it "cancels the workers and rethrows when an insert fails" do
+    repository = RDF::Repository.new
+    def repository.insert(*statements)
+      @inserts = (@inserts || 0) + 1
+      raise ArgumentError, "insert failed"
+    end
+    lambda { RDF::ARQ.load(repository, @files, :batch_size => 10, :threads => 2) }.should raise_error(ArgumentError, /insert failed/)
+    repository.instance_variable_get(:@inserts).should == 1
+    loader_threads.should == 0
+  end
+end
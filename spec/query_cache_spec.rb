@@ -0,0 +1,48 @@
+require File.join(File.dirname(__FILE__), 'spec_helper')
+
+describe Java::OrgRubyforgeRdfArq::QueryCache do
+  before :each do
+    @cache = Java::OrgRubyforgeRdfArq::QueryCache.new(10)
+  end
+
+  def normalize(sparql)
+    Java::OrgRubyforgeRdfArq::QueryCache.normalize(sparql)
+  end
+
+  describe ".normalize" do
+    it "collapses runs of whitespace" do
+      normalize("  SELECT  ?s\n\tWHERE {\n  ?s ?p ?o }  ").should == "SELECT ?s WHERE { ?s ?p ?o }"
+    end
+
+    it "strips comments" do
+      normalize("SELECT ?s # the subjects\nWHERE { ?s ?p ?o }").should == "SELECT ?s WHERE { ?s ?p ?o }"
+    end
+
+    it "leaves string literals untouched" do
+      normalize("SELECT ?s WHERE { ?s ?p \"a  # b\" }").should == "SELECT ?s WHERE { ?s ?p \"a  # b\" }"
+      normalize("SELECT ?s WHERE { ?s ?p '''a\n\n b''' }").should == "SELECT ?s WHERE { ?s ?p '''a\n\n b''' }"
+    end
+
+    it "leaves IRIs untouched" do
+      normalize("SELECT ?s WHERE { ?s <http://example.org/a#b> ?o }").should == "SELECT ?s WHERE { ?s <http://example.org/a#b> ?o }"
+    end
+
+    it "does not mistake a less-than operator for an IRI" do
+      normalize("SELECT ?s WHERE { ?s ?p ?o FILTER (?o < 5) # five\n}").should == "SELECT ?s WHERE { ?s ?p ?o FILTER (?o < 5) }"
+    end
+  end
+
+  describe "#get" do
+    it "returns the same plan for queries differing only in layout" do
+      plan = @cache.get("SELECT ?s WHERE { ?s ?p ?o }")
+      @cache.get("SELECT ?s\nWHERE {\n  ?s ?p ?o # all\n}").should equal(plan)
+      @cache.getHits.should == 1
+      @cache.getMisses.should == 1
+    end
+
+    it "returns a different plan for queries differing in a literal" do
+      @cache.get("SELECT ?s WHERE { ?s ?p \"a b\" }").should_not equal(@cache.get("SELECT ?s WHERE { ?s ?p \"a  b\" }"))
+      @cache.getMisses.should == 2
+    end
+  end
+end
@@ -0,0 +1,92 @@
+require File.join(File.dirname(__FILE__), 'spec_helper')
+
+shared_examples_for "an RDF::ARQ::Repository" do
+  before :each do
+    @s, @p = RDF::URI.new("http://example.org/s"), RDF::URI.new("http://example.org/p")
+    @g1, @g2 = RDF::URI.new("http://example.org/g1"), RDF::URI.new("http://example.org/g2")
+    @statements = [
+      RDF::Statement.new(@s, @p, RDF::Literal.new("default")),
+      RDF::Statement.new(@s, @p, RDF::Literal.new("one"), :context => @g1),
+      RDF::Statement.new(@s, @p, RDF::Literal.new("two"), :context => @g2),
+      RDF::Statement.new(RDF::Node.new, @p, RDF::Literal.new(5), :context => @g2),
+    ]
+    @repository.insert(*@statements)
+  end
+
+  it "counts its statements" do
+    @repository.count.should == 4
+    @repository.should_not be_empty
+  end
+
+  it "finds statements by pattern" do
+    @repository.query([@s, @p, nil]).map { |statement| statement.object.to_s }.sort.should == %w(default one two)
+    @repository.query([nil, nil, RDF::Literal.new(5)]).size.should == 1
+    @repository.query([nil, nil, nil, @g2]).map { |statement| statement.object.to_s }.sort.should == %w(5 two)
+  end
+
+  it "enumerates every statement with its context" do
+    @repository.map { |statement| [statement.object.to_s, statement.context.to_s] }.sort.should ==
+      [["5", @g2.to_s], ["default", ""], ["one", @g1.to_s], ["two", @g2.to_s]]
+  end
+
+  it "returns its contexts" do
+    @repository.contexts.map { |context| context.to_s }.sort.should == [@g1.to_s, @g2.to_s]
+    @repository.should have_context(@g1)
+  end
+
+  it "deletes statements" do
+    @repository.delete(@statements[1])
+    @repository.count.should == 3
+    @repository.should_not have_statement(@statements[1])
+    @repository.contexts.map { |context| context.to_s }.should == [@g2.to_s]
+  end
+end
+
+describe RDF::ARQ::Repository do
+  describe "in memory" do
+    before :each do
+      @repository = RDF::ARQ::Repository.new
+    end
+
+    it_should_behave_like "an RDF::ARQ::Repository"
+
+    it "is not durable" do
+      @repository.should_not be_durable
+    end
+  end
+
+  describe "with the binary transport" do
+    before :each do
+      @repository = RDF::ARQ::Repository.new(:transport => :binary)
+    end
+
+    it_should_behave_like "an RDF::ARQ::Repository"
+  end
+
+  describe "in a TDB database" do
+    before :each do
+      require 'tmpdir'
+      require 'fileutils'
+      @path = File.join(Dir.tmpdir, "rdf-arq-spec-#{$$}-#{rand(1 << 30)}")
+      @repository = RDF::ARQ::Repository.new(:path => @path)
+    end
+
+    after :each do
+      @repository.close
+      FileUtils.rm_rf(@path)
+    end
+
+    it_should_behave_like "an RDF::ARQ::Repository"
+
+    it "is durable" do
+      @repository.should be_durable
+    end
+
+    it "keeps its statements once closed and reopened" do
+      @repository.close
+      @repository = RDF::ARQ::Repository.new(:path => @path)
+      @repository.count.should == 4
+      @repository.contexts.map { |context| context.to_s }.sort.should == [@g1.to_s, @g2.to_s]
+    end
+  end
+end
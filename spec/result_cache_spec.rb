@@ -0,0 +1,33 @@
+require File.join(File.dirname(__FILE__), 'spec_helper')
+
+describe Java::OrgRubyforgeRdfArq::ResultCache do
+  before :each do
+    @cache = Java::OrgRubyforgeRdfArq::ResultCache.getInstance
+    @cache.setMaxWeight(1 << 20)
+    @graph = RDF::Graph.new
+    @graph.extend(RDF::ARQ::Versioned)
+    @graph.insert([RDF::URI.new("http://example.org/person/1"), RDF::URI.new("http://example.org/name"), RDF::Literal.new("Person 1")])
+    @query = "SELECT ?name WHERE { ?s <http://example.org/name> ?name }"
+  end
+
+  after :each do
+    @cache.setMaxWeight(0)
+  end
+
+  def names
+    RDF::ARQ.query(@graph, @query).map { |solution| solution[:name].to_s }.sort
+  end
+
+  it "reuses the solutions of an unchanged graph" do
+    names.should == ["Person 1"]
+    hits = @cache.getHits
+    names.should == ["Person 1"]
+    @cache.getHits.should == hits + 1
+  end
+
+  it "does not return the solutions cached before the graph changed" do
+    names.should == ["Person 1"]
+    @graph.insert([RDF::URI.new("http://example.org/person/2"), RDF::URI.new("http://example.org/name"), RDF::Literal.new("Person 2")])
+    names.should == ["Person 1", "Person 2"]
+  end
+end
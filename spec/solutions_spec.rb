@@ -0,0 +1,20 @@
+require File.join(File.dirname(__FILE__), 'spec_helper')
+
+describe RDF::ARQ::Solutions do
+  before :each do
+    @graph = RDF::Graph.new
+    @graph.insert([RDF::URI.new("http://example.org/person/1"), RDF::URI.new("http://example.org/name"), RDF::Literal.new("Person 1")])
+    @solutions = RDF::ARQ.query(@graph, "SELECT ?name ?s WHERE { ?s <http://example.org/name> ?name }")
+  end
+
+  it "returns the projected variable names without executing the query" do
+    def @graph.query(*args)
+      raise "queried"
+    end
+    @solutions.variable_names.should == [:name, :s]
+  end
+
+  it "enumerates the solutions" do
+    @solutions.map { |solution| solution[:name].to_s }.should == ["Person 1"]
+  end
+end
@@ -0,0 +1,192 @@
+package org.rubyforge.rdf;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread-safe LRU cache.
+ *
+ * Entries are spread over a number of independently locked segments, each
+ * evicting its least recently used entries once it exceeds its share of
+ * the total capacity. Hits, misses and evictions are counted for tuning.
+ *
+ * @author Arto Bendiken
+ */
+public class Cache<K, V> implements Metrics.CacheStatistics {
+  public static final int DEFAULT_CONCURRENCY = 16;
+
+  private final List<Segment> segments;
+  private volatile int capacity;
+  private final AtomicLong hits      = new AtomicLong();
+  private final AtomicLong misses    = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param  capacity    the maximum number of entries
+   */
+  public Cache(int capacity) {
+    this(capacity, DEFAULT_CONCURRENCY);
+  }
+
+  /**
+   * @param  capacity    the maximum number of entries
+   * @param  concurrency the number of segments
+   */
+  public Cache(int capacity, int concurrency) {
+    this.segments = new ArrayList<Segment>(concurrency);
+    for (int i = 0; i < concurrency; i++) {
+      segments.add(new Segment());
+    }
+    setCapacity(capacity);
+  }
+
+  /**
+   * @return the maximum number of entries
+   */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Changes the capacity. Shrinking takes effect as entries are added.
+   *
+   * @param  capacity    the maximum number of entries, or 0 to disable caching
+   */
+  public void setCapacity(int capacity) {
+    this.capacity = Math.max(0, capacity);
+    int share = (this.capacity + segments.size() - 1) / segments.size();
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        segment.capacity = share;
+      }
+    }
+  }
+
+  /**
+   * @param  key         the key to look up
+   * @return the cached value, or <code>null</code>
+   */
+  public V get(K key) {
+    if (capacity == 0)
+      return null;
+    Segment segment = getSegment(key);
+    V value;
+    synchronized (segment) {
+      value = segment.get(key);
+    }
+    (value != null ? hits : misses).incrementAndGet();
+    return value;
+  }
+
+  /**
+   * @param  key         the key to store under
+   * @param  value       the value to store
+   */
+  public void put(K key, V value) {
+    if (capacity == 0)
+      return;
+    Segment segment = getSegment(key);
+    synchronized (segment) {
+      segment.put(key, value);
+    }
+  }
+
+  /**
+   * @param  key         the key to remove
+   */
+  public void remove(K key) {
+    Segment segment = getSegment(key);
+    synchronized (segment) {
+      segment.remove(key);
+    }
+  }
+
+  /**
+   * Removes all entries.
+   */
+  public void clear() {
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        segment.clear();
+      }
+    }
+  }
+
+  /**
+   * @return the current number of entries
+   */
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.size();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * @return the number of lookups that found an entry
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of lookups that found no entry
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return the number of entries evicted to stay within capacity
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * @return the ratio of hits to lookups, or 0 if there were no lookups
+   */
+  public double getHitRate() {
+    long hits = getHits(), lookups = hits + getMisses();
+    return (lookups == 0) ? 0.0 : (double)hits / lookups;
+  }
+
+  /**
+   * Resets the hit, miss and eviction counters.
+   */
+  public void resetStatistics() {
+    hits.set(0);
+    misses.set(0);
+    evictions.set(0);
+  }
+
+  private Segment getSegment(Object key) {
+    int hash = key.hashCode();
+    hash ^= (hash >>> 16);
+    return segments.get((hash & 0x7fffffff) % segments.size());
+  }
+
+  private class Segment extends LinkedHashMap<K, V> {
+    private static final long serialVersionUID = 1L;
+    int capacity;
+
+    Segment() {
+      super(16, 0.75f, true);
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+      if (size() > capacity) {
+        evictions.incrementAndGet();
+        return true;
+      }
+      return false;
+    }
+  }
+}
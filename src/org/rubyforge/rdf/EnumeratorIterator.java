@@ -1,18 +1,77 @@
 package org.rubyforge.rdf;
 
 import org.jruby.*;
+import org.jruby.runtime.Arity;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.BlockCallback;
+import org.jruby.runtime.CallBlock;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Wraps a <code>java.util.Iterator&lt;T2&gt;</code> interface around a
  * Ruby <code>RDF::Enumerator&lt;T1&gt;</code> instance.
  *
+ * In the default chunked mode, the Ruby collection is read lazily in
+ * chunks of <code>chunkSize</code> elements, each chunk being converted
+ * into a Java-side buffer in one go, so that an iterator abandoned early
+ * converts no more than one chunk beyond what was consumed. No threads are
+ * involved: arrays, which is what RDF.rb query results come down to, are
+ * sliced as they are, and other enumerables are read into an array with a
+ * single <code>to_a</code> call on the first pull, as pulling them a chunk
+ * at a time through an external enumerator would take a generator thread
+ * under JRuby. The asynchronous mode runs a background producer
+ * that drains the enumerator into a bounded queue, converting elements as
+ * it goes, so that Ruby enumeration overlaps with whatever the consumer is
+ * doing. The threaded mode runs the same producer in lock step with the
+ * consumer, handing over one element at a time, which streams arbitrary
+ * enumerators at the cost of one thread per iterator.
+ *
+ * Iterators should be closed when abandoned before exhaustion, which
+ * cancels any background producer and releases the enumerator. They close
+ * themselves once exhausted. Openings, closings and abandonments, and the
+ * threads enumerating Ruby collections, are counted in {@link Metrics}.
+ *
  * @author Arto Bendiken
  */
 public abstract class EnumeratorIterator<T> implements Iterable<T>, Iterator<T> {
+  /**
+   * The iteration modes.
+   */
+  public enum Mode { THREADED, CHUNKED, ASYNC }
+
+  public static final int DEFAULT_CHUNK_SIZE = 1024;
+
+  private static volatile Mode defaultMode = Mode.valueOf(System.getProperty("rdf.arq.iterator.mode", "CHUNKED"));
+  private static volatile int defaultChunkSize = Integer.getInteger("rdf.arq.iterator.chunk", DEFAULT_CHUNK_SIZE);
+
+  private static final Object END = new Object();
+  private static final RuntimeException CANCELLED = new RuntimeException("EnumeratorIterator#close");
+  private static ExecutorService producers;
+
   private Factory factory;
-  private RubyEnumerator enumerator;
-  private RubyObject generator;
+  private Mode mode;
+  private int chunkSize;
+  private RubyArray array;
+  private int offset;
+  private IRubyObject enumerable;
+  private List<T> buffer;
+  private int position;
+  private BlockingQueue<Object> queue;
+  private volatile boolean closed;
+  private boolean exhausted;
+  private Object lookahead;
+  private IRubyObject source;
 
   public EnumeratorIterator() {} // FIXME
 
@@ -20,17 +79,190 @@ public abstract class EnumeratorIterator<T> implements Iterable<T>, Iterator<T>
    * @param  object      a Ruby object responding to #to_enum
    */
   public EnumeratorIterator(RubyObject object) {
-    this((RubyEnumerator)object.callMethod("to_enum"));
+    this(object, getDefaultMode(), getDefaultChunkSize());
+  }
+
+  /**
+   * @param  object      a Ruby object responding to #to_enum
+   * @param  mode        the iteration mode
+   * @param  chunkSize   the number of elements to convert per round trip
+   */
+  public EnumeratorIterator(RubyObject object, Mode mode, int chunkSize) {
+    this.factory   = Factory.getInstance(object.getRuntime());
+    this.mode      = mode;
+    this.chunkSize = Math.max(1, chunkSize);
+    Metrics.iteratorOpened();
+    switch (mode) {
+      case THREADED:
+        initProducer(object, 1);
+        break;
+      case CHUNKED:
+        initArray(object);
+        break;
+      case ASYNC:
+        initProducer(object, this.chunkSize);
+        break;
+    }
   }
 
   /**
    * @param  enumerator  a Ruby enumerator
    */
   public EnumeratorIterator(RubyEnumerator enumerator) {
-    this.factory    = new Factory(enumerator.getRuntime());
-    factory.require("generator");
-    this.generator  = factory.newInstance(factory.getClass("Generator").getClass("Threaded"), enumerator);
-    this.enumerator = enumerator;
+    this(enumerator, getDefaultMode(), getDefaultChunkSize());
+  }
+
+  /**
+   * @param  enumerator  a Ruby enumerator
+   * @param  mode        the iteration mode
+   * @param  chunkSize   the number of elements to convert per round trip
+   */
+  public EnumeratorIterator(RubyEnumerator enumerator, Mode mode, int chunkSize) {
+    this((RubyObject)enumerator, mode, chunkSize);
+  }
+
+  /**
+   * @return the mode used by iterators constructed without an explicit mode
+   */
+  public static Mode getDefaultMode() {
+    return defaultMode;
+  }
+
+  /**
+   * @param  mode        the mode to use for iterators constructed without an explicit mode
+   */
+  public static void setDefaultMode(Mode mode) {
+    defaultMode = mode;
+  }
+
+  /**
+   * @return the chunk size used by iterators constructed without an explicit chunk size
+   */
+  public static int getDefaultChunkSize() {
+    return defaultChunkSize;
+  }
+
+  /**
+   * @param  chunkSize   the chunk size to use for iterators constructed without an explicit chunk size
+   */
+  public static void setDefaultChunkSize(int chunkSize) {
+    defaultChunkSize = Math.max(1, chunkSize);
+  }
+
+  /**
+   * @return the iteration mode
+   */
+  public Mode getMode() {
+    return mode;
+  }
+
+  /**
+   * @return the factory used by this iterator
+   */
+  protected Factory getFactory() {
+    return factory;
+  }
+
+  private void initArray(IRubyObject object) {
+    if (object instanceof RubyArray) {
+      this.array  = (RubyArray)object;
+      this.buffer = new ArrayList<T>(Math.min(chunkSize, array.getLength()));
+    }
+    else {
+      this.enumerable = object;
+      this.buffer     = new ArrayList<T>(chunkSize);
+    }
+  }
+
+  private void initProducer(IRubyObject object, int capacity) {
+    this.queue  = new ArrayBlockingQueue<Object>(capacity);
+    this.source = object;
+  }
+
+  /**
+   * Starts the producer on first use, once subclasses are fully constructed.
+   */
+  private void startProducer() {
+    final IRubyObject object = source;
+    source = null;
+    getProducers().execute(new Runnable() {
+      public void run() {
+        produce(object);
+      }
+    });
+  }
+
+  /**
+   * Drains the enumerator into the queue. Runs on a producer thread.
+   *
+   * @param  object      a Ruby object responding to #each
+   */
+  private void produce(IRubyObject object) {
+    Metrics.generatorStarted();
+    ThreadContext context = factory.getCurrentContext();
+    try {
+      Block block = CallBlock.newCallClosure(object, object.getMetaClass(), Arity.ONE_ARGUMENT, new BlockCallback() {
+        public IRubyObject call(ThreadContext context, IRubyObject[] args, Block block) {
+          enqueue(yield((RubyObject)args[0]));
+          return context.getRuntime().getNil();
+        }
+      }, context);
+      object.callMethod(context, "each", IRubyObject.NULL_ARRAY, block);
+      enqueue(END);
+    }
+    catch (Throwable error) {
+      if (error != CANCELLED && !closed) {
+        try {
+          enqueue(error);
+        }
+        catch (RuntimeException cancelled) {}
+      }
+    }
+    finally {
+      Metrics.generatorStopped();
+    }
+  }
+
+  /**
+   * Puts an element into the queue, blocking while the queue is full.
+   *
+   * @param  element     a converted element, an error, or the end marker
+   */
+  private void enqueue(Object element) {
+    try {
+      while (!queue.offer(element, 100, TimeUnit.MILLISECONDS)) {
+        if (closed)
+          throw CANCELLED;
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw CANCELLED;
+    }
+    if (closed)
+      throw CANCELLED;
+  }
+
+  /**
+   * @return the executor used to run asynchronous producers
+   */
+  private static synchronized ExecutorService getProducers() {
+    if (producers == null) {
+      try {
+        // Use virtual threads on runtimes that provide them.
+        producers = (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      }
+      catch (Exception e) {
+        producers = Executors.newCachedThreadPool(new ThreadFactory() {
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "EnumeratorIterator");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+      }
+    }
+    return producers;
   }
 
   /**
@@ -46,15 +278,47 @@ public abstract class EnumeratorIterator<T> implements Iterable<T>, Iterator<T>
    */
   @Override
   public boolean hasNext() {
-    return generator.callMethod("next?").isTrue();
+    if (closed)
+      return false;
+    switch (mode) {
+      case THREADED:
+      case ASYNC:
+        return (lookahead != null) || take();
+      default:
+        return (position < buffer.size()) || fetch() || finish();
+    }
+  }
+
+  /**
+   * Closes this iterator once it is exhausted.
+   *
+   * @return <code>false</code>
+   */
+  private boolean finish() {
+    exhausted = true;
+    close();
+    return false;
   }
 
   /**
    * @see java.util.Iterator#next()
    */
   @Override
+  @SuppressWarnings("unchecked")
   public T next() {
-    return yield((RubyObject)generator.callMethod("next"));
+    switch (mode) {
+      case THREADED:
+      case ASYNC:
+        if (!hasNext())
+          throw new NoSuchElementException();
+        T element = (T)lookahead;
+        lookahead = null;
+        return element;
+      default:
+        if (!hasNext())
+          throw new NoSuchElementException();
+        return buffer.get(position++);
+    }
   }
 
   /**
@@ -65,5 +329,106 @@ public abstract class EnumeratorIterator<T> implements Iterable<T>, Iterator<T>
     throw new UnsupportedOperationException("EnumeratorIterator#remove");
   }
 
+  /**
+   * Cancels any background producer and releases the enumerator. Further
+   * calls to <code>hasNext()</code> return <code>false</code>.
+   */
+  public void close() {
+    if (closed)
+      return;
+    closed = true;
+    Metrics.iteratorClosed(exhausted);
+    array      = null;
+    enumerable = null;
+    buffer     = null;
+    lookahead  = null;
+    source     = null;
+    if (queue != null)
+      queue.clear();
+  }
+
+  /**
+   * @return <code>true</code> if this iterator has been closed
+   */
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Takes the next element from the producer's queue.
+   *
+   * @return <code>true</code> if an element was taken
+   */
+  private boolean take() {
+    if (source != null)
+      startProducer();
+    Object element;
+    try {
+      element = queue.take();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      close();
+      return false;
+    }
+    if (element == END)
+      return finish();
+    if (element instanceof Throwable) {
+      close();
+      if (element instanceof RuntimeException)
+        throw (RuntimeException)element;
+      if (element instanceof Error)
+        throw (Error)element;
+      throw new RuntimeException((Throwable)element);
+    }
+    lookahead = element;
+    return true;
+  }
+
+  /**
+   * Converts the next chunk of the underlying collection into the buffer.
+   *
+   * @return <code>true</code> if any elements were fetched
+   */
+  private boolean fetch() {
+    RubyArray chunk = nextChunk();
+    if (chunk == null)
+      return false;
+    buffer.clear();
+    position = 0;
+    yield(chunk, buffer);
+    return !buffer.isEmpty() || fetch();
+  }
+
+  /**
+   * @return the next chunk of the underlying collection, or <code>null</code> if there are no more
+   */
+  private RubyArray nextChunk() {
+    if (enumerable != null) {
+      array      = enumerable.callMethod(factory.getCurrentContext(), "to_a").convertToArray();
+      enumerable = null;
+    }
+    if (array == null || offset >= array.getLength())
+      return null;
+    int length = Math.min(chunkSize, array.getLength() - offset);
+    RubyArray chunk = (RubyArray)array.subseq(offset, length);
+    offset += length;
+    return chunk;
+  }
+
+  /**
+   * Converts a chunk of Ruby objects, appending the results to the buffer.
+   * Subclasses able to convert a whole chunk in one call into Ruby should
+   * override this.
+   *
+   * @param  chunk       the Ruby objects to convert
+   * @param  buffer      the buffer to append to
+   */
+  protected void yield(RubyArray chunk, List<T> buffer) {
+    for (int i = 0; i < chunk.getLength(); i++) {
+      buffer.add(yield((RubyObject)chunk.entry(i)));
+    }
+  }
+
   protected abstract T yield(RubyObject object);
 }
@@ -5,15 +5,34 @@ import org.jruby.runtime.builtin.IRubyObject;
 import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.Block;
 import org.jruby.exceptions.RaiseException;
+import java.math.BigInteger;
 
 /**
  * A factory class for instantiating RDF.rb objects.
  *
+ * Factories are meant to be shared: use {@link #getInstance(Ruby)} to
+ * obtain the one for a given runtime, which resolves the RDF.rb classes
+ * only once. The shared factory is kept in the runtime itself, so that it
+ * lives exactly as long as the runtime does, and subclasses share the same
+ * slot, so that a runtime never has more than one shared factory.
+ *
  * @author Arto Bendiken
  */
 public class Factory {
+  private static final String INSTANCE = "rdf_factory";
+
   private Ruby runtime;
   private RubyModule module;
+  private RubyClass repositoryClass;
+  private RubyClass graphClass;
+  private RubyClass patternClass;
+  private RubyClass variableClass;
+  private RubyClass statementClass;
+  private RubyClass valueClass;
+  private RubyClass resourceClass;
+  private RubyClass nodeClass;
+  private RubyClass uriClass;
+  private RubyClass literalClass;
 
   public Factory() {
     this(Ruby.getGlobalRuntime());
@@ -27,6 +46,35 @@ public class Factory {
     getRDF();
   }
 
+  /**
+   * @param  runtime     the Ruby runtime to use
+   * @return the shared factory for <code>runtime</code>
+   */
+  public static synchronized Factory getInstance(Ruby runtime) {
+    Factory factory = getSharedInstance(runtime);
+    if (factory == null)
+      setSharedInstance(runtime, factory = new Factory(runtime));
+    return factory;
+  }
+
+  /**
+   * Callers creating the shared factory must hold the lock on this class.
+   *
+   * @param  runtime     the Ruby runtime
+   * @return the shared factory for <code>runtime</code>, or <code>null</code> if there is none yet
+   */
+  protected static Factory getSharedInstance(Ruby runtime) {
+    return (Factory)runtime.getObject().getInternalVariables().getInternalVariable(INSTANCE);
+  }
+
+  /**
+   * @param  runtime     the Ruby runtime
+   * @param  factory     the factory to share for <code>runtime</code> from now on
+   */
+  protected static void setSharedInstance(Ruby runtime, Factory factory) {
+    runtime.getObject().getInternalVariables().setInternalVariable(INSTANCE, factory);
+  }
+
   /**
    * @param  runtime     the Ruby runtime to use
    */
@@ -82,70 +130,70 @@ public class Factory {
    * @return the RDF::Repository class
    */
   public RubyClass getRepositoryClass() {
-    return getRDF().getClass("Repository");
+    return (repositoryClass != null) ? repositoryClass : (repositoryClass = getRDF().getClass("Repository"));
   }
 
   /**
    * @return the RDF::Graph class
    */
   public RubyClass getGraphClass() {
-    return getRDF().getClass("Graph");
+    return (graphClass != null) ? graphClass : (graphClass = getRDF().getClass("Graph"));
   }
 
   /**
    * @return the RDF::Pattern class
    */
   public RubyClass getPatternClass() {
-    return getRDF().getClass("Pattern");
+    return (patternClass != null) ? patternClass : (patternClass = getRDF().getClass("Pattern"));
   }
 
   /**
    * @return the RDF::Variable class
    */
   public RubyClass getVariableClass() {
-    return getRDF().getClass("Variable");
+    return (variableClass != null) ? variableClass : (variableClass = getRDF().getClass("Variable"));
   }
 
   /**
    * @return the RDF::Statement class
    */
   public RubyClass getStatementClass() {
-    return getRDF().getClass("Statement");
+    return (statementClass != null) ? statementClass : (statementClass = getRDF().getClass("Statement"));
   }
 
   /**
    * @return the RDF::Value class
    */
   public RubyClass getValueClass() {
-    return getRDF().getClass("Value");
+    return (valueClass != null) ? valueClass : (valueClass = getRDF().getClass("Value"));
   }
 
   /**
    * @return the RDF::Resource class
    */
   public RubyClass getResourceClass() {
-    return getRDF().getClass("Resource");
+    return (resourceClass != null) ? resourceClass : (resourceClass = getRDF().getClass("Resource"));
   }
 
   /**
    * @return the RDF::Node class
    */
   public RubyClass getNodeClass() {
-    return getRDF().getClass("Node");
+    return (nodeClass != null) ? nodeClass : (nodeClass = getRDF().getClass("Node"));
   }
 
   /**
    * @return the RDF::URI class
    */
   public RubyClass getURIClass() {
-    return getRDF().getClass("URI");
+    return (uriClass != null) ? uriClass : (uriClass = getRDF().getClass("URI"));
   }
 
   /**
    * @return the RDF::Literal class
    */
   public RubyClass getLiteralClass() {
-    return getRDF().getClass("Literal");
+    return (literalClass != null) ? literalClass : (literalClass = getRDF().getClass("Literal"));
   }
 
   /**
@@ -212,6 +260,15 @@ public class Factory {
     return (RubyObject)klass.newInstance(getCurrentContext(), new IRubyObject[]{arg1}, Block.NULL_BLOCK);
   }
 
+  /**
+   * @param  klass       the class to instantiate
+   * @param  args        the constructor arguments
+   * @return a Ruby object instance
+   */
+  public RubyObject newInstance(RubyClass klass, IRubyObject[] args) {
+    return (RubyObject)klass.newInstance(getCurrentContext(), args, Block.NULL_BLOCK);
+  }
+
   /**
    * @return an RDF::Repository instance
    */
@@ -277,7 +334,7 @@ public class Factory {
    * @return an RDF::Statement instance
    */
   public RubyObject newStatement(IRubyObject subject, IRubyObject predicate, IRubyObject object) {
-    return newTriple(subject, predicate, object); // FIXME
+    return newInstance(getStatementClass(), new IRubyObject[] {subject, predicate, object});
   }
 
   /**
@@ -288,7 +345,11 @@ public class Factory {
    * @return an RDF::Statement instance
    */
   public RubyObject newStatement(IRubyObject subject, IRubyObject predicate, IRubyObject object, IRubyObject context) {
-    return newQuad(subject, predicate, object, context); // FIXME
+    if (context == null || context.isNil())
+      return newStatement(subject, predicate, object);
+    RubyHash options = RubyHash.newHash(getRuntime());
+    options.fastASet(getRuntime().newSymbol("context"), context);
+    return newInstance(getStatementClass(), new IRubyObject[] {subject, predicate, object, options});
   }
 
   /**
@@ -352,11 +413,11 @@ public class Factory {
   }
 
   /**
-   * @param  value       the literal's value
+   * @param  value       the literal's value, converted as by {@link #newObject(Object)}
    * @return an RDF::Literal instance
    */
   public RubyObject newLiteral(Object value) {
-    return newLiteral(newString(value.toString()));
+    return newLiteral(newObject(value));
   }
 
   /**
@@ -376,20 +437,55 @@ public class Factory {
   }
 
   /**
-   * @param  value       the literal's value
+   * @param  value       the literal's value, converted as by {@link #newObject(Object)}
    * @param  language    the language tag
    * @return an RDF::Literal instance
    */
-  public RubyObject newLiteralWithLanguage(Object value, String language) { // TODO
-    return newInstance(getLiteralClass(), newString(value.toString())); // FIXME
+  public RubyObject newLiteralWithLanguage(Object value, String language) {
+    RubyHash options = RubyHash.newHash(getRuntime());
+    options.fastASet(getRuntime().newSymbol("language"), getRuntime().newSymbol(language));
+    return newInstance(getLiteralClass(), new IRubyObject[] {newObject(value), options});
   }
 
   /**
-   * @param  value       the literal's value
+   * @param  value       the literal's value, converted as by {@link #newObject(Object)}
    * @param  datatype    the datatype URI string
    * @return an RDF::Literal instance
    */
-  public RubyObject newLiteralWithDatatype(Object value, String datatype) { // TODO
-    return newInstance(getLiteralClass(), newString(value.toString())); // FIXME
+  public RubyObject newLiteralWithDatatype(Object value, String datatype) {
+    return newLiteralWithDatatype(value, newURI(datatype));
+  }
+
+  /**
+   * @param  value       the literal's value, converted as by {@link #newObject(Object)}
+   * @param  datatype    the datatype as an RDF::URI instance
+   * @return an RDF::Literal instance
+   */
+  public RubyObject newLiteralWithDatatype(Object value, IRubyObject datatype) {
+    RubyHash options = RubyHash.newHash(getRuntime());
+    options.fastASet(getRuntime().newSymbol("datatype"), datatype);
+    return newInstance(getLiteralClass(), new IRubyObject[] {newObject(value), options});
+  }
+
+  /**
+   * Converts a Java value into the corresponding Ruby value. Numbers and
+   * booleans become Ruby numbers and booleans, so that RDF.rb need not
+   * parse them; anything else becomes a string.
+   *
+   * @param  value       a Java value, or a Ruby object
+   * @return a Ruby object
+   */
+  public IRubyObject newObject(Object value) {
+    if (value instanceof IRubyObject)
+      return (IRubyObject)value;
+    if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte)
+      return getRuntime().newFixnum(((Number)value).longValue());
+    if (value instanceof BigInteger)
+      return RubyBignum.bignorm(getRuntime(), (BigInteger)value);
+    if (value instanceof Double || value instanceof Float)
+      return getRuntime().newFloat(((Number)value).doubleValue());
+    if (value instanceof Boolean)
+      return getRuntime().newBoolean((Boolean)value);
+    return newString(value.toString());
   }
 }
@@ -0,0 +1,551 @@
+package org.rubyforge.rdf;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * A registry of metrics for the boundary between Ruby and Java.
+ *
+ * Calls into RDF.rb graphs are counted and timed per method, and
+ * statements converted by the factories are counted. Both are measured
+ * only while metrics are enabled, either with {@link #setEnabled(boolean)}
+ * or the <code>rdf.arq.metrics</code> system property. When disabled and
+ * no thread is traced, {@link #begin()} costs two volatile reads,
+ * {@link #end(Call, long)} none, and each other measuring point one.
+ * Iterators, generator threads and cache statistics are always kept, as
+ * they change only once per iterator or are counted by the caches
+ * themselves.
+ *
+ * The metrics are registered with the platform MBean server as
+ * <code>org.rubyforge.rdf:type=Metrics</code>, with one
+ * <code>org.rubyforge.rdf:type=RubyCall,name=...</code> bean per method,
+ * and can also be pushed periodically to a {@link Sink}.
+ *
+ * A {@link Tracer} installed on a thread additionally receives that
+ * thread's Ruby calls, pattern probes and conversions as they happen,
+ * whether or not metrics are enabled, for profiling a single query.
+ *
+ * @author Arto Bendiken
+ */
+public class Metrics implements MetricsMXBean {
+  public static final String DOMAIN = "org.rubyforge.rdf";
+
+  /**
+   * The RDF.rb methods called across the boundary.
+   */
+  public enum Call {
+    QUERY("query"), HAS_TRIPLE("has_triple?"), INSERT("insert"), DELETE("delete"), COUNT("count");
+
+    private final String method;
+
+    Call(String method) {
+      this.method = method;
+    }
+
+    /**
+     * @return the name of the Ruby method
+     */
+    public String getMethod() {
+      return method;
+    }
+  }
+
+  /**
+   * Receives snapshots of the metrics, for forwarding to a monitoring
+   * system.
+   */
+  public interface Sink {
+    /**
+     * @param  metrics     the metric values keyed by dotted name
+     */
+    void report(Map<String, Number> metrics);
+  }
+
+  /**
+   * Receives the measurements taken on one thread, for profiling.
+   */
+  public interface Tracer {
+    /**
+     * @param  call        the method called
+     * @param  nanos       the duration of the call in nanoseconds
+     */
+    void called(Call call, long nanos);
+
+    /**
+     * @param  patterns    the number of triple patterns matched
+     */
+    void probed(int patterns);
+
+    /**
+     * @param  count       the number of statements converted
+     * @param  bytes       the bytes allocated by the conversion, or 0 if unknown
+     */
+    void converted(int count, long bytes);
+  }
+
+  /**
+   * A source of cache hit and miss counts.
+   */
+  public interface CacheStatistics {
+    long getHits();
+    long getMisses();
+  }
+
+  /**
+   * The JMX management interface of a call histogram.
+   */
+  public interface CallMXBean {
+    long getCount();
+    double getTotalMillis();
+    double getMeanMicros();
+    double getMaxMicros();
+    double getP50Micros();
+    double getP90Micros();
+    double getP99Micros();
+  }
+
+  private static volatile boolean enabled = Boolean.getBoolean("rdf.arq.metrics");
+  private static final Metrics instance = new Metrics();
+  private static final AtomicInteger tracers = new AtomicInteger();
+  private static final ThreadLocal<Tracer> tracer = new ThreadLocal<Tracer>();
+  private static final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+  private final Map<Call, Histogram> calls = new EnumMap<Call, Histogram>(Call.class);
+  private final AtomicLong conversions        = new AtomicLong();
+  private final AtomicLong iteratorsOpened    = new AtomicLong();
+  private final AtomicLong iteratorsClosed    = new AtomicLong();
+  private final AtomicLong iteratorsAbandoned = new AtomicLong();
+  private final AtomicLong generatorThreads   = new AtomicLong();
+  private final Map<CacheStatistics, String> caches = new WeakHashMap<CacheStatistics, String>();
+  private volatile long resetTime = System.nanoTime();
+  private ScheduledExecutorService reporter;
+  private ScheduledFuture<?> report;
+
+  static {
+    instance.register();
+  }
+
+  private Metrics() {
+    for (Call call : Call.values()) {
+      calls.put(call, new Histogram());
+    }
+  }
+
+  /**
+   * @return the shared registry
+   */
+  public static Metrics getInstance() {
+    return instance;
+  }
+
+  /**
+   * Starts timing a call into Ruby.
+   *
+   * @return the start time, or 0 if metrics are disabled and the thread is not traced
+   */
+  public static long begin() {
+    return (enabled || tracers.get() > 0) ? System.nanoTime() : 0;
+  }
+
+  /**
+   * Finishes timing a call into Ruby.
+   *
+   * @param  call        the method called
+   * @param  start       the value returned by {@link #begin()}
+   */
+  public static void end(Call call, long start) {
+    if (start == 0)
+      return;
+    long nanos = System.nanoTime() - start;
+    if (enabled)
+      instance.calls.get(call).record(nanos);
+    Tracer tracer = getTracer();
+    if (tracer != null)
+      tracer.called(call, nanos);
+  }
+
+  /**
+   * Counts triple patterns matched against an RDF.rb graph, for tracing.
+   *
+   * @param  patterns    the number of triple patterns
+   */
+  public static void probed(int patterns) {
+    Tracer tracer = getTracer();
+    if (tracer != null)
+      tracer.probed(patterns);
+  }
+
+  /**
+   * Starts measuring a conversion.
+   *
+   * @return a mark to pass to {@link #converted(int, long)}, or 0 if the thread is not traced
+   */
+  public static long converting() {
+    return (getTracer() != null) ? Math.max(1, getAllocatedBytes()) : 0;
+  }
+
+  /**
+   * Counts converted statements.
+   *
+   * @param  count       the number of statements converted
+   * @param  mark        the value returned by {@link #converting()}
+   */
+  public static void converted(int count, long mark) {
+    if (enabled)
+      instance.conversions.addAndGet(count);
+    Tracer tracer = (mark != 0) ? getTracer() : null;
+    if (tracer != null) {
+      long bytes = getAllocatedBytes();
+      tracer.converted(count, (mark > 1 && bytes > mark) ? bytes - mark : 0);
+    }
+  }
+
+  /**
+   * Installs a tracer on the current thread.
+   *
+   * @param  tracer      the tracer, or <code>null</code> to remove the current one
+   * @return the tracer previously installed, or <code>null</code>
+   */
+  public static Tracer setTracer(Tracer tracer) {
+    Tracer previous = Metrics.tracer.get();
+    if (previous == tracer)
+      return previous;
+    if (tracer == null)
+      Metrics.tracer.remove();
+    else
+      Metrics.tracer.set(tracer);
+    if (previous == null)
+      tracers.incrementAndGet();
+    else if (tracer == null)
+      tracers.decrementAndGet();
+    return previous;
+  }
+
+  private static Tracer getTracer() {
+    return (tracers.get() == 0) ? null : tracer.get();
+  }
+
+  /**
+   * @return the bytes allocated so far by the current thread, or 0 if the
+   *         JVM does not measure allocations
+   */
+  private static long getAllocatedBytes() {
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean)threads;
+      if (allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled())
+        return allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return 0;
+  }
+
+  /**
+   * Counts an opened iterator.
+   */
+  public static void iteratorOpened() {
+    instance.iteratorsOpened.incrementAndGet();
+  }
+
+  /**
+   * Counts a closed iterator.
+   *
+   * @param  exhausted   whether the iterator was read to the end
+   */
+  public static void iteratorClosed(boolean exhausted) {
+    instance.iteratorsClosed.incrementAndGet();
+    if (!exhausted)
+      instance.iteratorsAbandoned.incrementAndGet();
+  }
+
+  /**
+   * Counts a thread that started enumerating a Ruby collection.
+   */
+  public static void generatorStarted() {
+    instance.generatorThreads.incrementAndGet();
+  }
+
+  /**
+   * Counts a thread that stopped enumerating a Ruby collection. This is
+   * called once the thread has actually left the enumeration, rather than
+   * when its iterator is closed.
+   */
+  public static void generatorStopped() {
+    instance.generatorThreads.decrementAndGet();
+  }
+
+  /**
+   * Registers a cache whose hit rate is reported. Caches are held weakly,
+   * and the rates of caches registered under the same name are combined.
+   *
+   * @param  name        the name to report the cache under
+   * @param  cache       the cache
+   */
+  public static void registerCache(String name, CacheStatistics cache) {
+    synchronized (instance.caches) {
+      instance.caches.put(cache, name);
+    }
+  }
+
+  /**
+   * @param  call        an RDF.rb method
+   * @return the histogram of calls to <code>call</code>
+   */
+  public CallMXBean getCall(Call call) {
+    return calls.get(call);
+  }
+
+  /**
+   * @see org.rubyforge.rdf.MetricsMXBean#isEnabled()
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @see org.rubyforge.rdf.MetricsMXBean#setEnabled(boolean)
+   */
+  public void setEnabled(boolean enabled) {
+    Metrics.enabled = enabled;
+  }
+
+  /**
+   * @see org.rubyforge.rdf.MetricsMXBean#getConversions()
+   */
+  public long getConversions() {
+    return conversions.get();
+  }
+
+  /**
+   * @see org.rubyforge.rdf.MetricsMXBean#getConversionRate()
+   */
+  public double getConversionRate() {
+    double seconds = (System.nanoTime() - resetTime) / 1e9;
+    return (seconds > 0) ? conversions.get() / seconds : 0.0;
+  }
+
+  /**
+   * @see org.rubyforge.rdf.MetricsMXBean#getIteratorsOpened()
+   */
+  public long getIteratorsOpened() {
+    return iteratorsOpened.get();
+  }
+
+  /**
+   * @see org.rubyforge.rdf.MetricsMXBean#getIteratorsClosed()
+   */
+  public long getIteratorsClosed() {
+    return iteratorsClosed.get();
+  }
+
+  /**
+   * @see org.rubyforge.rdf.MetricsMXBean#getIteratorsAbandoned()
+   */
+  public long getIteratorsAbandoned() {
+    return iteratorsAbandoned.get();
+  }
+
+  /**
+   * @see org.rubyforge.rdf.MetricsMXBean#getLiveGeneratorThreads()
+   */
+  public long getLiveGeneratorThreads() {
+    return generatorThreads.get();
+  }
+
+  /**
+   * @see org.rubyforge.rdf.MetricsMXBean#getCacheHitRates()
+   */
+  public Map<String, Double> getCacheHitRates() {
+    Map<String, long[]> counts = new LinkedHashMap<String, long[]>();
+    synchronized (caches) {
+      for (Map.Entry<CacheStatistics, String> entry : caches.entrySet()) {
+        long[] count = counts.get(entry.getValue());
+        if (count == null)
+          counts.put(entry.getValue(), count = new long[2]);
+        count[0] += entry.getKey().getHits();
+        count[1] += entry.getKey().getMisses();
+      }
+    }
+    Map<String, Double> rates = new LinkedHashMap<String, Double>();
+    for (Map.Entry<String, long[]> entry : counts.entrySet()) {
+      long lookups = entry.getValue()[0] + entry.getValue()[1];
+      rates.put(entry.getKey(), (lookups == 0) ? 0.0 : (double)entry.getValue()[0] / lookups);
+    }
+    return rates;
+  }
+
+  /**
+   * @see org.rubyforge.rdf.MetricsMXBean#reset()
+   */
+  public void reset() {
+    for (Histogram histogram : calls.values()) {
+      histogram.reset();
+    }
+    conversions.set(0);
+    iteratorsOpened.set(0);
+    iteratorsClosed.set(0);
+    iteratorsAbandoned.set(0);
+    resetTime = System.nanoTime();
+  }
+
+  /**
+   * @return the current metric values keyed by dotted name
+   */
+  public Map<String, Number> snapshot() {
+    Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+    for (Map.Entry<Call, Histogram> entry : calls.entrySet()) {
+      String prefix = "calls." + entry.getKey().getMethod() + ".";
+      Histogram histogram = entry.getValue();
+      metrics.put(prefix + "count", histogram.getCount());
+      metrics.put(prefix + "mean_us", histogram.getMeanMicros());
+      metrics.put(prefix + "p99_us", histogram.getP99Micros());
+      metrics.put(prefix + "max_us", histogram.getMaxMicros());
+    }
+    metrics.put("conversions", getConversions());
+    metrics.put("conversions.rate", getConversionRate());
+    metrics.put("iterators.opened", getIteratorsOpened());
+    metrics.put("iterators.closed", getIteratorsClosed());
+    metrics.put("iterators.abandoned", getIteratorsAbandoned());
+    metrics.put("generators.live", getLiveGeneratorThreads());
+    for (Map.Entry<String, Double> entry : getCacheHitRates().entrySet()) {
+      metrics.put("caches." + entry.getKey() + ".hit_rate", entry.getValue());
+    }
+    return metrics;
+  }
+
+  /**
+   * Reports snapshots to a sink at a fixed period, replacing any earlier
+   * sink.
+   *
+   * @param  sink        the sink, or <code>null</code> to stop reporting
+   * @param  period      the reporting period in milliseconds
+   */
+  public synchronized void setSink(final Sink sink, long period) {
+    if (report != null) {
+      report.cancel(false);
+      report = null;
+    }
+    if (sink == null)
+      return;
+    if (reporter == null) {
+      reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "Metrics");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    report = reporter.scheduleAtFixedRate(new Runnable() {
+      public void run() {
+        sink.report(snapshot());
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  private void register() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      register(server, new ObjectName(DOMAIN + ":type=Metrics"), this);
+      for (Map.Entry<Call, Histogram> entry : calls.entrySet()) {
+        register(server, new ObjectName(DOMAIN + ":type=RubyCall,name=" + ObjectName.quote(entry.getKey().getMethod())), entry.getValue());
+      }
+    }
+    catch (Exception e) {
+      // JMX is unavailable or restricted; the metrics remain readable directly.
+    }
+  }
+
+  private static void register(MBeanServer server, ObjectName name, Object bean) throws Exception {
+    // Another copy of this library, loaded by a different class loader, may have registered first.
+    if (!server.isRegistered(name))
+      server.registerMBean(bean, name);
+  }
+
+  /**
+   * A latency histogram with power-of-two buckets of nanoseconds.
+   */
+  static class Histogram implements CallMXBean {
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max   = new AtomicLong();
+
+    void record(long nanos) {
+      if (nanos < 0)
+        nanos = 0;
+      buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos) - ((nanos == 0) ? 0 : 1));
+      count.incrementAndGet();
+      total.addAndGet(nanos);
+      long previous;
+      while (nanos > (previous = max.get()) && !max.compareAndSet(previous, nanos));
+    }
+
+    void reset() {
+      for (int i = 0; i < buckets.length(); i++) {
+        buckets.set(i, 0);
+      }
+      count.set(0);
+      total.set(0);
+      max.set(0);
+    }
+
+    public long getCount() {
+      return count.get();
+    }
+
+    public double getTotalMillis() {
+      return total.get() / 1e6;
+    }
+
+    public double getMeanMicros() {
+      long count = this.count.get();
+      return (count == 0) ? 0.0 : total.get() / 1e3 / count;
+    }
+
+    public double getMaxMicros() {
+      return max.get() / 1e3;
+    }
+
+    public double getP50Micros() {
+      return getPercentile(0.50);
+    }
+
+    public double getP90Micros() {
+      return getPercentile(0.90);
+    }
+
+    public double getP99Micros() {
+      return getPercentile(0.99);
+    }
+
+    /**
+     * @param  quantile    the quantile, between 0 and 1
+     * @return the upper bound of the bucket holding the quantile, in microseconds
+     */
+    double getPercentile(double quantile) {
+      long count = 0;
+      for (int i = 0; i < buckets.length(); i++) {
+        count += buckets.get(i);
+      }
+      long rank = (long)Math.ceil(count * quantile), seen = 0;
+      for (int i = 0; i < buckets.length() && count > 0; i++) {
+        seen += buckets.get(i);
+        if (seen >= rank)
+          return Math.min((double)(1L << Math.min(i + 1, 62)), max.get()) / 1e3;
+      }
+      return 0.0;
+    }
+  }
+}
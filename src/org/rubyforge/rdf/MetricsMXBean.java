@@ -0,0 +1,62 @@
+package org.rubyforge.rdf;
+
+import java.util.Map;
+
+/**
+ * The JMX management interface of {@link Metrics}, registered as
+ * <code>org.rubyforge.rdf:type=Metrics</code>.
+ *
+ * @author Arto Bendiken
+ */
+public interface MetricsMXBean {
+  /**
+   * @return <code>true</code> if calls and conversions are being measured
+   */
+  boolean isEnabled();
+
+  /**
+   * @param  enabled     whether to measure calls and conversions
+   */
+  void setEnabled(boolean enabled);
+
+  /**
+   * @return the number of statements converted between Ruby and Java
+   */
+  long getConversions();
+
+  /**
+   * @return the statements converted per second since the last reset
+   */
+  double getConversionRate();
+
+  /**
+   * @return the number of Ruby enumeration iterators opened
+   */
+  long getIteratorsOpened();
+
+  /**
+   * @return the number of Ruby enumeration iterators closed or exhausted
+   */
+  long getIteratorsClosed();
+
+  /**
+   * @return the number of Ruby enumeration iterators closed before they were exhausted
+   */
+  long getIteratorsAbandoned();
+
+  /**
+   * @return the number of threads currently enumerating Ruby collections,
+   *         including those of closed iterators that have yet to stop
+   */
+  long getLiveGeneratorThreads();
+
+  /**
+   * @return the hit rates of the registered caches, keyed by cache name
+   */
+  Map<String, Double> getCacheHitRates();
+
+  /**
+   * Resets all counters and histograms.
+   */
+  void reset();
+}
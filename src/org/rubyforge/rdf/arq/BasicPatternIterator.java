@@ -0,0 +1,114 @@
+package org.rubyforge.rdf.arq;
+
+import org.jruby.*;
+import org.jruby.runtime.builtin.IRubyObject;
+import java.util.ArrayList;
+import java.util.List;
+import org.rubyforge.rdf.EnumeratorIterator;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.sparql.core.BasicPattern;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.ExecutionContext;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterRepeatApply;
+
+/**
+ * Evaluates a whole basic graph pattern in Ruby for each input binding.
+ *
+ * The pattern, with the input binding substituted in, is sent to the
+ * RDF::Graph in a single call. The solutions are converted into ARQ
+ * bindings as they are consumed, a chunk at a time, with one more call per
+ * chunk to turn the solutions into hashes.
+ *
+ * @author Arto Bendiken
+ */
+public class BasicPatternIterator extends QueryIterRepeatApply {
+  private Graph graph;
+  private BasicPattern pattern;
+
+  /**
+   * @param  graph       the graph to evaluate the pattern against
+   * @param  pattern     the basic graph pattern
+   * @param  input       the input bindings
+   * @param  execCxt     the execution context
+   */
+  public BasicPatternIterator(Graph graph, BasicPattern pattern, QueryIterator input, ExecutionContext execCxt) {
+    super(input, execCxt);
+    this.graph   = graph;
+    this.pattern = pattern;
+  }
+
+  /**
+   * @see com.hp.hpl.jena.sparql.engine.iterator.QueryIterRepeatApply#nextStage(Binding)
+   */
+  @Override
+  protected QueryIterator nextStage(final Binding binding) {
+    final Factory factory = graph.getFactory();
+    final RubyModule bgp = graph.getBGPModule();
+    RubyArray solutions = graph.solve(substitute(pattern, binding));
+    return new QueryIterPlainWrapper(new EnumeratorIterator<Binding>(solutions, EnumeratorIterator.Mode.CHUNKED, EnumeratorIterator.getDefaultChunkSize()) {
+      protected void yield(RubyArray chunk, List<Binding> buffer) {
+        RubyArray hashes = (RubyArray)bgp.callMethod(factory.getCurrentContext(), "hashes", chunk);
+        for (int i = 0; i < hashes.getLength(); i++) {
+          buffer.add(toBinding((RubyHash)hashes.entry(i)));
+        }
+      }
+
+      protected Binding yield(RubyObject solution) {
+        return toBinding((RubyHash)solution.callMethod(factory.getCurrentContext(), "to_hash"));
+      }
+
+      private Binding toBinding(RubyHash solution) {
+        final Binding result = new BindingMap(binding);
+        solution.visitAll(new RubyHash.Visitor() {
+          public void visit(IRubyObject name, IRubyObject value) {
+            Var var = Var.alloc(name.asJavaString());
+            if (!value.isNil() && !result.contains(var))
+              result.add(var, factory.toNode(value));
+          }
+        });
+        return result;
+      }
+    }, getExecContext());
+  }
+
+  /**
+   * @param  pattern     a basic graph pattern
+   * @param  binding     the bindings to substitute
+   * @return the triple patterns with bound variables replaced by their values
+   */
+  static List<Triple> substitute(BasicPattern pattern, Binding binding) {
+    List<Triple> triples = new ArrayList<Triple>(pattern.size());
+    for (Triple triple : pattern) {
+      triples.add(substitute(triple, binding));
+    }
+    return triples;
+  }
+
+  /**
+   * @param  triple      a triple pattern
+   * @param  binding     the bindings to substitute
+   * @return the triple pattern with bound variables replaced by their values
+   */
+  static Triple substitute(Triple triple, Binding binding) {
+    Node subject   = substitute(triple.getSubject(), binding);
+    Node predicate = substitute(triple.getPredicate(), binding);
+    Node object    = substitute(triple.getObject(), binding);
+    if (subject == triple.getSubject() && predicate == triple.getPredicate() && object == triple.getObject())
+      return triple;
+    return Triple.create(subject, predicate, object);
+  }
+
+  private static Node substitute(Node node, Binding binding) {
+    if (node.isVariable()) {
+      Node value = binding.get(Var.alloc(node));
+      if (value != null)
+        return value;
+    }
+    return node;
+  }
+}
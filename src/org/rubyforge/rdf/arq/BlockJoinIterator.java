@@ -0,0 +1,253 @@
+package org.rubyforge.rdf.arq;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.ExecutionContext;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIter1;
+import com.hp.hpl.jena.util.iterator.ClosableIterator;
+
+/**
+ * Joins a stream of input bindings against a triple pattern, a block of
+ * input bindings at a time.
+ *
+ * For each block, the triple pattern is instantiated with every input
+ * binding, and the distinct resulting patterns are matched against the
+ * RDF::Graph in a single Ruby call. The matches are then joined with the
+ * input bindings on the Java side, as the joined bindings are consumed.
+ *
+ * A block that instantiates the pattern only once, as with a leading
+ * pattern or one sharing no variable with the input, is matched through
+ * {@link Graph#stream} instead, so that a query stopping early, such as
+ * with LIMIT or ASK, does not convert every match.
+ *
+ * @author Arto Bendiken
+ */
+public class BlockJoinIterator extends QueryIter1 {
+  public static final int DEFAULT_BLOCK_SIZE = 256;
+
+  private Graph graph;
+  private Triple pattern;
+  private int blockSize;
+  private Iterator<Binding> output = Collections.<Binding>emptyList().iterator();
+  private ClosableIterator<Triple> matches;
+
+  /**
+   * @param  graph       the graph to match against
+   * @param  pattern     the triple pattern
+   * @param  input       the input bindings
+   * @param  execCxt     the execution context
+   */
+  public BlockJoinIterator(Graph graph, Triple pattern, QueryIterator input, ExecutionContext execCxt) {
+    this(graph, pattern, input, execCxt, DEFAULT_BLOCK_SIZE);
+  }
+
+  /**
+   * @param  graph       the graph to match against
+   * @param  pattern     the triple pattern
+   * @param  input       the input bindings
+   * @param  execCxt     the execution context
+   * @param  blockSize   the number of input bindings per Ruby call
+   */
+  public BlockJoinIterator(Graph graph, Triple pattern, QueryIterator input, ExecutionContext execCxt, int blockSize) {
+    super(input, execCxt);
+    this.graph     = graph;
+    this.pattern   = pattern;
+    this.blockSize = Math.max(1, blockSize);
+  }
+
+  /**
+   * @see com.hp.hpl.jena.sparql.engine.iterator.QueryIteratorBase#hasNextBinding()
+   */
+  @Override
+  protected boolean hasNextBinding() {
+    while (!output.hasNext()) {
+      closeMatches();
+      if (!getInput().hasNext())
+        return false;
+      output = join();
+    }
+    return true;
+  }
+
+  /**
+   * @see com.hp.hpl.jena.sparql.engine.iterator.QueryIteratorBase#moveToNextBinding()
+   */
+  @Override
+  protected Binding moveToNextBinding() {
+    return output.next();
+  }
+
+  /**
+   * @see com.hp.hpl.jena.sparql.engine.iterator.QueryIter1#closeSubIterator()
+   */
+  @Override
+  protected void closeSubIterator() {
+    closeMatches();
+    output = Collections.<Binding>emptyList().iterator();
+  }
+
+  private void closeMatches() {
+    if (matches != null) {
+      matches.close();
+      matches = null;
+    }
+  }
+
+  /**
+   * Joins the next block of input bindings.
+   *
+   * @return the joined bindings
+   */
+  private Iterator<Binding> join() {
+    List<Binding> inputs = new ArrayList<Binding>(blockSize);
+    List<Triple> patterns = new ArrayList<Triple>(blockSize);
+    Map<Triple, Integer> distinct = new LinkedHashMap<Triple, Integer>();
+    while (inputs.size() < blockSize && getInput().hasNext()) {
+      Binding binding = getInput().nextBinding();
+      Triple triple = BasicPatternIterator.substitute(pattern, binding);
+      if (!distinct.containsKey(triple))
+        distinct.put(triple, distinct.size());
+      inputs.add(binding);
+      patterns.add(triple);
+    }
+
+    if (distinct.size() == 1) {
+      matches = graph.stream(patterns.get(0));
+      return new StreamedJoin(patterns.get(0), inputs, matches);
+    }
+    return new BatchedJoin(patterns, inputs, distinct, graph.findAll(new ArrayList<Triple>(distinct.keySet())));
+  }
+
+  /**
+   * Joins a block of input bindings with their matches, a joined binding
+   * at a time.
+   */
+  private abstract static class Join implements Iterator<Binding> {
+    protected static final Binding END = new BindingMap();
+
+    private Binding next;
+
+    /**
+     * @return the next joined binding, <code>null</code> if the next match
+     *         does not join, or {@link #END} once there are no more matches
+     */
+    protected abstract Binding advance();
+
+    public boolean hasNext() {
+      while (next == null) {
+        next = advance();
+      }
+      return next != END;
+    }
+
+    public Binding next() {
+      if (!hasNext())
+        throw new NoSuchElementException();
+      Binding binding = next;
+      next = null;
+      return binding;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * Joins every input binding of a block with each match of the one
+   * pattern that the block instantiates, as the matches are streamed.
+   */
+  private static class StreamedJoin extends Join {
+    private Triple pattern;
+    private List<Binding> inputs;
+    private Iterator<Triple> matches;
+    private Triple match;
+    private int index;
+
+    StreamedJoin(Triple pattern, List<Binding> inputs, Iterator<Triple> matches) {
+      this.pattern = pattern;
+      this.inputs  = inputs;
+      this.matches = matches;
+    }
+
+    protected Binding advance() {
+      if (match == null || index == inputs.size()) {
+        if (!matches.hasNext())
+          return END;
+        match = matches.next();
+        index = 0;
+      }
+      return bind(pattern, match, inputs.get(index++));
+    }
+  }
+
+  /**
+   * Joins each input binding of a block with the matches of the pattern
+   * it instantiates, in input order.
+   */
+  private static class BatchedJoin extends Join {
+    private List<Triple> patterns;
+    private List<Binding> inputs;
+    private Map<Triple, Integer> distinct;
+    private List<List<Triple>> matches;
+    private Iterator<Triple> current;
+    private int index = -1;
+
+    BatchedJoin(List<Triple> patterns, List<Binding> inputs, Map<Triple, Integer> distinct, List<List<Triple>> matches) {
+      this.patterns = patterns;
+      this.inputs   = inputs;
+      this.distinct = distinct;
+      this.matches  = matches;
+    }
+
+    protected Binding advance() {
+      while (current == null || !current.hasNext()) {
+        if (++index == inputs.size())
+          return END;
+        current = matches.get(distinct.get(patterns.get(index))).iterator();
+      }
+      return bind(patterns.get(index), current.next(), inputs.get(index));
+    }
+  }
+
+  /**
+   * @param  pattern     an instantiated triple pattern
+   * @param  match       a triple matching the pattern
+   * @param  parent      the input binding
+   * @return the extended binding, or <code>null</code> if a variable
+   *         occurring more than once in the pattern is matched inconsistently
+   */
+  private static Binding bind(Triple pattern, Triple match, Binding parent) {
+    Binding binding = new BindingMap(parent);
+    if (!bind(binding, pattern.getSubject(), match.getSubject()))
+      return null;
+    if (!bind(binding, pattern.getPredicate(), match.getPredicate()))
+      return null;
+    if (!bind(binding, pattern.getObject(), match.getObject()))
+      return null;
+    return binding;
+  }
+
+  private static boolean bind(Binding binding, Node node, Node value) {
+    if (!node.isVariable())
+      return true;
+    Var var = Var.alloc(node);
+    Node current = binding.get(var);
+    if (current == null) {
+      binding.add(var, value);
+      return true;
+    }
+    return current.equals(value);
+  }
+}
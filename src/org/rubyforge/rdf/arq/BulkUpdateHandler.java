@@ -0,0 +1,205 @@
+package org.rubyforge.rdf.arq;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import com.hp.hpl.jena.graph.GraphEvents;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.impl.SimpleBulkUpdateHandler;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * Maps Jena's bulk updates onto batched RDF::Mutable#insert and #delete
+ * calls, so that each batch of triples crosses into Ruby only once.
+ *
+ * @author Arto Bendiken
+ */
+public class BulkUpdateHandler extends SimpleBulkUpdateHandler {
+  public static final int DEFAULT_BATCH_SIZE = 1024;
+
+  private Graph graph;
+  private int batchSize;
+
+  /**
+   * @param  graph       the graph to update
+   */
+  public BulkUpdateHandler(Graph graph) {
+    this(graph, DEFAULT_BATCH_SIZE);
+  }
+
+  /**
+   * @param  graph       the graph to update
+   * @param  batchSize   the maximum number of triples per Ruby call
+   */
+  public BulkUpdateHandler(Graph graph, int batchSize) {
+    super(graph);
+    this.graph     = graph;
+    this.batchSize = Math.max(1, batchSize);
+  }
+
+  /**
+   * @see com.hp.hpl.jena.graph.BulkUpdateHandler#add(Triple[])
+   */
+  @Override
+  public void add(Triple[] triples) {
+    addAll(Arrays.asList(triples));
+    manager.notifyAddArray(graph, triples);
+  }
+
+  /**
+   * @see com.hp.hpl.jena.graph.impl.SimpleBulkUpdateHandler#add(List, boolean)
+   */
+  @Override
+  protected void add(List<Triple> triples, boolean notify) {
+    addAll(triples);
+    if (notify)
+      manager.notifyAddList(graph, triples);
+  }
+
+  /**
+   * @see com.hp.hpl.jena.graph.impl.SimpleBulkUpdateHandler#addIterator(Iterator, boolean)
+   */
+  @Override
+  public void addIterator(Iterator<Triple> iterator, boolean notify) {
+    List<Triple> triples = addAll(iterator, notify && manager.listening());
+    if (notify)
+      manager.notifyAddIterator(graph, triples);
+  }
+
+  /**
+   * @see com.hp.hpl.jena.graph.BulkUpdateHandler#add(com.hp.hpl.jena.graph.Graph, boolean)
+   */
+  @Override
+  public void add(com.hp.hpl.jena.graph.Graph source, boolean withReifications) {
+    ExtendedIterator<Triple> iterator = source.find(Node.ANY, Node.ANY, Node.ANY);
+    try {
+      addAll(iterator, false);
+    }
+    finally {
+      iterator.close();
+    }
+    if (withReifications)
+      addReifications(graph, source);
+    manager.notifyAddGraph(graph, source);
+  }
+
+  /**
+   * @see com.hp.hpl.jena.graph.BulkUpdateHandler#delete(Triple[])
+   */
+  @Override
+  public void delete(Triple[] triples) {
+    deleteAll(Arrays.asList(triples));
+    manager.notifyDeleteArray(graph, triples);
+  }
+
+  /**
+   * @see com.hp.hpl.jena.graph.impl.SimpleBulkUpdateHandler#delete(List, boolean)
+   */
+  @Override
+  protected void delete(List<Triple> triples, boolean notify) {
+    deleteAll(triples);
+    if (notify)
+      manager.notifyDeleteList(graph, triples);
+  }
+
+  /**
+   * @see com.hp.hpl.jena.graph.impl.SimpleBulkUpdateHandler#deleteIterator(Iterator, boolean)
+   */
+  @Override
+  public void deleteIterator(Iterator<Triple> iterator, boolean notify) {
+    List<Triple> triples = deleteAll(iterator, notify && manager.listening());
+    if (notify)
+      manager.notifyDeleteIterator(graph, triples);
+  }
+
+  /**
+   * @see com.hp.hpl.jena.graph.BulkUpdateHandler#delete(com.hp.hpl.jena.graph.Graph, boolean)
+   */
+  @Override
+  public void delete(com.hp.hpl.jena.graph.Graph source, boolean withReifications) {
+    ExtendedIterator<Triple> iterator = source.find(Node.ANY, Node.ANY, Node.ANY);
+    try {
+      deleteAll(iterator, false);
+    }
+    finally {
+      iterator.close();
+    }
+    if (withReifications)
+      deleteReifications(graph, source);
+    manager.notifyDeleteGraph(graph, source);
+  }
+
+  /**
+   * @see com.hp.hpl.jena.graph.BulkUpdateHandler#removeAll()
+   */
+  @Override
+  public void removeAll() {
+    graph.performRemove(Node.ANY, Node.ANY, Node.ANY);
+    notifyRemoveAll();
+  }
+
+  /**
+   * @see com.hp.hpl.jena.graph.BulkUpdateHandler#remove(Node, Node, Node)
+   */
+  @Override
+  public void remove(Node subject, Node predicate, Node object) {
+    graph.performRemove(subject, predicate, object);
+    manager.notifyEvent(graph, GraphEvents.remove(subject, predicate, object));
+  }
+
+  private void addAll(List<Triple> triples) {
+    for (int i = 0; i < triples.size(); i += batchSize) {
+      graph.performAdd(triples.subList(i, Math.min(i + batchSize, triples.size())));
+    }
+  }
+
+  private void deleteAll(List<Triple> triples) {
+    for (int i = 0; i < triples.size(); i += batchSize) {
+      graph.performDelete(triples.subList(i, Math.min(i + batchSize, triples.size())));
+    }
+  }
+
+  /**
+   * @param  iterator    the triples to add
+   * @param  retain      whether to return all the triples added
+   * @return the triples added if <code>retain</code> is set, else an empty list
+   */
+  private List<Triple> addAll(Iterator<Triple> iterator, boolean retain) {
+    List<Triple> triples = new ArrayList<Triple>();
+    List<Triple> batch = retain ? triples : new ArrayList<Triple>(batchSize);
+    int start = 0;
+    while (iterator.hasNext()) {
+      batch.add(iterator.next());
+      if (batch.size() - start == batchSize) {
+        graph.performAdd(batch.subList(start, batch.size()));
+        if (retain) start = batch.size(); else batch.clear();
+      }
+    }
+    if (batch.size() > start)
+      graph.performAdd(batch.subList(start, batch.size()));
+    return triples;
+  }
+
+  /**
+   * @param  iterator    the triples to delete
+   * @param  retain      whether to return all the triples deleted
+   * @return the triples deleted if <code>retain</code> is set, else an empty list
+   */
+  private List<Triple> deleteAll(Iterator<Triple> iterator, boolean retain) {
+    List<Triple> triples = new ArrayList<Triple>();
+    List<Triple> batch = retain ? triples : new ArrayList<Triple>(batchSize);
+    int start = 0;
+    while (iterator.hasNext()) {
+      batch.add(iterator.next());
+      if (batch.size() - start == batchSize) {
+        graph.performDelete(batch.subList(start, batch.size()));
+        if (retain) start = batch.size(); else batch.clear();
+      }
+    }
+    if (batch.size() > start)
+      graph.performDelete(batch.subList(start, batch.size()));
+    return triples;
+  }
+}
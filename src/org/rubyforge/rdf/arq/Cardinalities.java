@@ -0,0 +1,67 @@
+package org.rubyforge.rdf.arq;
+
+import java.util.HashMap;
+import java.util.Map;
+import com.hp.hpl.jena.graph.Node;
+
+/**
+ * Exact triple counts for a graph, in total and per predicate.
+ *
+ * @author Arto Bendiken
+ */
+public class Cardinalities {
+  private long size;
+  private final Map<Node, Long> predicates = new HashMap<Node, Long>();
+
+  /**
+   * @param  predicate   the predicate of the triples added or removed
+   * @param  delta       the number of triples added, or negative if removed
+   */
+  public synchronized void add(Node predicate, long delta) {
+    size += delta;
+    Long count = predicates.get(predicate);
+    long total = ((count != null) ? count : 0) + delta;
+    if (total > 0)
+      predicates.put(predicate, total);
+    else
+      predicates.remove(predicate);
+  }
+
+  /**
+   * Resets all counts to zero.
+   */
+  public synchronized void clear() {
+    size = 0;
+    predicates.clear();
+  }
+
+  /**
+   * @return the total number of triples
+   */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  /**
+   * @param  predicate   a predicate node
+   * @return the number of triples with the given predicate
+   */
+  public synchronized long getCount(Node predicate) {
+    Long count = predicates.get(predicate);
+    return (count != null) ? count : 0;
+  }
+
+  /**
+   * @return the number of distinct predicates
+   */
+  public synchronized int getPredicateCount() {
+    return predicates.size();
+  }
+
+  /**
+   * @return a snapshot of the per-predicate counts
+   */
+  public synchronized Map<Node, Long> getCounts() {
+    return new HashMap<Node, Long>(predicates);
+  }
+}
@@ -0,0 +1,263 @@
+package org.rubyforge.rdf.arq;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.rubyforge.rdf.Metrics;
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.AnonId;
+import com.hp.hpl.jena.sparql.core.Quad;
+
+/**
+ * Encodes and decodes batches of statements in a compact binary format,
+ * so that a whole batch crosses between Ruby and Java as a single byte
+ * string instead of as RDF.rb objects that are taken apart term by term.
+ * <code>RDF::ARQ::Codec</code> implements the same format in Ruby.
+ *
+ * A batch is a 32-bit statement count followed by the statements, each
+ * made up of its subject, predicate, object and context terms. Integers
+ * are big-endian, and strings are a 32-bit byte length followed by the
+ * UTF-8 bytes. Each term starts with a tag byte:
+ *
+ * <pre>
+ *   0  nil, or the default graph
+ *   1  URI                      string
+ *   2  blank node               string (identifier)
+ *   3  plain literal            string (lexical form)
+ *   4  language-tagged literal  string (lexical form), string (language)
+ *   5  typed literal            string (lexical form), string (datatype URI)
+ *   6  back-reference           int (index of an earlier term in the batch)
+ * </pre>
+ *
+ * Every term other than nil and back-references is numbered in order of
+ * appearance, starting from zero, and a term that recurs within the batch
+ * is encoded as a back-reference to its first occurrence.
+ *
+ * @author Arto Bendiken
+ */
+public class Codec {
+  public static final byte NIL       = 0;
+  public static final byte URI       = 1;
+  public static final byte NODE      = 2;
+  public static final byte PLAIN     = 3;
+  public static final byte LANGUAGE  = 4;
+  public static final byte TYPED     = 5;
+  public static final byte REFERENCE = 6;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * @param  quads       the quads to encode
+   * @return the encoded batch
+   */
+  public static byte[] encode(Collection<Quad> quads) {
+    long mark = Metrics.converting();
+    Encoder encoder = new Encoder(quads.size());
+    for (Quad quad : quads) {
+      encoder.write(quad.getSubject(), quad.getPredicate(), quad.getObject(), quad.getGraph());
+    }
+    byte[] batch = encoder.toByteArray();
+    Metrics.converted(quads.size(), mark);
+    return batch;
+  }
+
+  /**
+   * @param  triples     the triples to encode
+   * @param  context     the context of the triples, or <code>null</code>
+   * @return the encoded batch
+   */
+  public static byte[] encode(Collection<Triple> triples, Node context) {
+    long mark = Metrics.converting();
+    Encoder encoder = new Encoder(triples.size());
+    for (Triple triple : triples) {
+      encoder.write(triple.getSubject(), triple.getPredicate(), triple.getObject(), context);
+    }
+    byte[] batch = encoder.toByteArray();
+    Metrics.converted(triples.size(), mark);
+    return batch;
+  }
+
+  /**
+   * @param  batch       the encoded batch
+   * @return the decoded quads, in the default graph if they have no context
+   */
+  public static List<Quad> decode(byte[] batch) {
+    return decode(ByteBuffer.wrap(batch));
+  }
+
+  /**
+   * Decodes a batch, leaving the buffer positioned after it. Wildcards in
+   * a batch of patterns are decoded as <code>Node.ANY</code>.
+   *
+   * @param  buffer      the encoded batch
+   * @return the decoded quads, in the default graph if they have no context
+   * @throws IllegalArgumentException if the batch is malformed
+   */
+  public static List<Quad> decode(ByteBuffer buffer) {
+    long mark = Metrics.converting();
+    try {
+      int count = buffer.getInt();
+      List<Quad> quads = new ArrayList<Quad>(Math.min(count, buffer.remaining() / 4));
+      List<Node> terms = new ArrayList<Node>();
+      for (int i = 0; i < count; i++) {
+        Node subject   = read(buffer, terms);
+        Node predicate = read(buffer, terms);
+        Node object    = read(buffer, terms);
+        Node context   = read(buffer, terms);
+        quads.add(new Quad((context != null) ? context : Quad.defaultGraphNodeGenerated,
+          (subject != null) ? subject : Node.ANY,
+          (predicate != null) ? predicate : Node.ANY,
+          (object != null) ? object : Node.ANY));
+      }
+      Metrics.converted(count, mark);
+      return quads;
+    }
+    catch (BufferUnderflowException e) {
+      throw new IllegalArgumentException("truncated statement batch");
+    }
+  }
+
+  private static Node read(ByteBuffer buffer, List<Node> terms) {
+    byte tag = buffer.get();
+    Node term;
+    switch (tag) {
+      case NIL:
+        return null;
+      case REFERENCE:
+        int index = buffer.getInt();
+        if (index < 0 || index >= terms.size())
+          throw new IllegalArgumentException("invalid term reference: " + index);
+        return terms.get(index);
+      case URI:
+        term = Node.createURI(readString(buffer));
+        break;
+      case NODE:
+        term = Node.createAnon(AnonId.create(readString(buffer)));
+        break;
+      case PLAIN:
+        term = Node.createLiteral(readString(buffer));
+        break;
+      case LANGUAGE:
+        term = Node.createLiteral(readString(buffer), readString(buffer), false);
+        break;
+      case TYPED:
+        String lexicalForm = readString(buffer);
+        term = Node.createLiteral(lexicalForm, null, TypeMapper.getInstance().getSafeTypeByName(readString(buffer)));
+        break;
+      default:
+        throw new IllegalArgumentException("invalid term tag: " + tag);
+    }
+    terms.add(term);
+    return term;
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0 || length > buffer.remaining())
+      throw new BufferUnderflowException();
+    String string;
+    if (buffer.hasArray()) {
+      string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF8);
+      buffer.position(buffer.position() + length);
+    }
+    else {
+      byte[] bytes = new byte[length];
+      buffer.get(bytes);
+      string = new String(bytes, UTF8);
+    }
+    return string;
+  }
+
+  /**
+   * Writes a batch of statements, numbering terms as they are written.
+   */
+  private static class Encoder {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream output = new DataOutputStream(bytes);
+    private final Map<Node, Integer> terms = new HashMap<Node, Integer>();
+
+    Encoder(int count) {
+      writeInt(count);
+    }
+
+    void write(Node subject, Node predicate, Node object, Node context) {
+      write(subject);
+      write(predicate);
+      write(object);
+      write((context != null && !Quad.isDefaultGraph(context)) ? context : null);
+    }
+
+    private void write(Node term) {
+      try {
+        if (term == null || term == Node.ANY) {
+          output.writeByte(NIL);
+          return;
+        }
+        Integer index = terms.get(term);
+        if (index != null) {
+          output.writeByte(REFERENCE);
+          output.writeInt(index);
+          return;
+        }
+        if (term.isURI()) {
+          output.writeByte(URI);
+          writeString(term.getURI());
+        }
+        else if (term.isBlank()) {
+          output.writeByte(NODE);
+          writeString(term.getBlankNodeLabel());
+        }
+        else if (term.isLiteral() && term.getLiteralDatatypeURI() != null) {
+          output.writeByte(TYPED);
+          writeString(term.getLiteralLexicalForm());
+          writeString(term.getLiteralDatatypeURI());
+        }
+        else if (term.isLiteral() && term.getLiteralLanguage().length() > 0) {
+          output.writeByte(LANGUAGE);
+          writeString(term.getLiteralLexicalForm());
+          writeString(term.getLiteralLanguage());
+        }
+        else if (term.isLiteral()) {
+          output.writeByte(PLAIN);
+          writeString(term.getLiteralLexicalForm());
+        }
+        else {
+          throw new IllegalArgumentException("cannot encode " + term);
+        }
+        terms.put(term, terms.size());
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e); // cannot happen
+      }
+    }
+
+    private void writeString(String string) throws IOException {
+      byte[] data = string.getBytes(UTF8);
+      output.writeInt(data.length);
+      output.write(data);
+    }
+
+    private void writeInt(int value) {
+      try {
+        output.writeInt(value);
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e); // cannot happen
+      }
+    }
+
+    byte[] toByteArray() {
+      return bytes.toByteArray();
+    }
+  }
+}
@@ -0,0 +1,165 @@
+package org.rubyforge.rdf.arq;
+
+import org.jruby.*;
+import org.jruby.runtime.ThreadContext;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.sparql.core.DatasetGraphBaseFind;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.util.iterator.Filter;
+import com.hp.hpl.jena.util.iterator.WrappedIterator;
+
+/**
+ * Wraps an RDF::Repository instance for Jena/ARQ compatibility.
+ *
+ * Each context of the repository is a named graph, and the statements
+ * without a context make up the default graph. Quad patterns with a bound
+ * graph name are passed down to the repository as context-restricted
+ * queries, and the graph names come from RDF::Repository#contexts.
+ *
+ * @author Arto Bendiken
+ */
+public class DatasetGraph extends DatasetGraphBaseFind {
+  private RubyObject repository;
+  private Factory factory;
+  private Graph defaultGraph;
+  private final Map<Node, Graph> graphs = new HashMap<Node, Graph>();
+
+  /**
+   * @param  repository  the RDF::Repository instance
+   */
+  public DatasetGraph(RubyObject repository) {
+    super();
+    this.repository   = repository;
+    this.factory      = Factory.getInstance(repository.getRuntime());
+    this.defaultGraph = new Graph(repository, Quad.defaultGraphIRI);
+  }
+
+  /**
+   * @return the factory used by this dataset
+   */
+  public Factory getFactory() {
+    return factory;
+  }
+
+  /**
+   * @see com.hp.hpl.jena.sparql.core.DatasetGraph#getDefaultGraph()
+   */
+  @Override
+  public Graph getDefaultGraph() {
+    return defaultGraph;
+  }
+
+  /**
+   * @see com.hp.hpl.jena.sparql.core.DatasetGraph#getGraph(Node)
+   */
+  @Override
+  public Graph getGraph(Node graphNode) {
+    if (Quad.isDefaultGraph(graphNode))
+      return defaultGraph;
+    synchronized (graphs) {
+      Graph graph = graphs.get(graphNode);
+      if (graph == null)
+        graphs.put(graphNode, graph = new Graph(repository, graphNode));
+      return graph;
+    }
+  }
+
+  /**
+   * @see com.hp.hpl.jena.sparql.core.DatasetGraph#containsGraph(Node)
+   */
+  @Override
+  public boolean containsGraph(Node graphNode) {
+    if (Quad.isDefaultGraph(graphNode))
+      return true;
+    ThreadContext context = factory.getCurrentContext();
+    if (repository.respondsTo("has_context?"))
+      return repository.callMethod(context, "has_context?", factory.newValue(graphNode)).isTrue();
+    Iterator<Node> iterator = listGraphNodes();
+    while (iterator.hasNext()) {
+      if (graphNode.equals(iterator.next()))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * @see com.hp.hpl.jena.sparql.core.DatasetGraph#listGraphNodes()
+   */
+  @Override
+  public Iterator<Node> listGraphNodes() {
+    return new NodeIterator((RubyObject)repository.callMethod(factory.getCurrentContext(), "contexts"));
+  }
+
+  /**
+   * @see com.hp.hpl.jena.sparql.core.DatasetGraph#add(Quad)
+   */
+  @Override
+  public void add(Quad quad) {
+    getGraph(quad.getGraph()).add(quad.asTriple());
+  }
+
+  /**
+   * @see com.hp.hpl.jena.sparql.core.DatasetGraph#delete(Quad)
+   */
+  @Override
+  public void delete(Quad quad) {
+    getGraph(quad.getGraph()).delete(quad.asTriple());
+  }
+
+  /**
+   * @see com.hp.hpl.jena.sparql.core.DatasetGraphBaseFind#findInDftGraph(Node, Node, Node)
+   */
+  @Override
+  protected Iterator<Quad> findInDftGraph(Node subject, Node predicate, Node object) {
+    defaultGraph.flush();
+    return new QuadIterator(defaultGraph.query(subject, predicate, object));
+  }
+
+  /**
+   * @see com.hp.hpl.jena.sparql.core.DatasetGraphBaseFind#findInSpecificNamedGraph(Node, Node, Node, Node)
+   */
+  @Override
+  protected Iterator<Quad> findInSpecificNamedGraph(Node graphNode, Node subject, Node predicate, Node object) {
+    Graph graph = getGraph(graphNode);
+    graph.flush();
+    return new QuadIterator(graph.query(subject, predicate, object));
+  }
+
+  /**
+   * @see com.hp.hpl.jena.sparql.core.DatasetGraphBaseFind#findInAnyNamedGraphs(Node, Node, Node)
+   */
+  @Override
+  protected Iterator<Quad> findInAnyNamedGraphs(Node subject, Node predicate, Node object) {
+    flush();
+    RubyObject matches = (RubyObject)repository.callMethod(factory.getCurrentContext(), "query", factory.newPattern(subject, predicate, object));
+    return WrappedIterator.create(new QuadIterator(matches)).filterDrop(new Filter<Quad>() {
+      public boolean accept(Quad quad) {
+        return quad.isDefaultGraph();
+      }
+    });
+  }
+
+  /**
+   * Writes any pending changes of write-behind graphs to the repository.
+   */
+  public void flush() {
+    defaultGraph.flush();
+    synchronized (graphs) {
+      for (Graph graph : graphs.values()) {
+        graph.flush();
+      }
+    }
+  }
+
+  /**
+   * @see com.hp.hpl.jena.sparql.core.DatasetGraph#close()
+   */
+  @Override
+  public void close() {
+    flush();
+    super.close();
+  }
+}
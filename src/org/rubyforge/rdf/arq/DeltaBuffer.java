@@ -0,0 +1,121 @@
+package org.rubyforge.rdf.arq;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import com.hp.hpl.jena.graph.Triple;
+
+/**
+ * Buffers pending additions and deletions for a write-behind graph.
+ *
+ * Operations on the same triple coalesce, with the latest one winning: an
+ * addition followed by a deletion of the same triple leaves only the
+ * deletion pending, and vice versa.
+ *
+ * @author Arto Bendiken
+ */
+public class DeltaBuffer {
+  public static final int DEFAULT_MAX_SIZE   = 1024;
+  public static final long DEFAULT_MAX_DELAY = 1000;
+
+  private final Map<Triple, Boolean> pending = new LinkedHashMap<Triple, Boolean>();
+  private int maxSize;
+  private long maxDelay;
+  private long since;
+
+  public DeltaBuffer() {
+    this(DEFAULT_MAX_SIZE, DEFAULT_MAX_DELAY);
+  }
+
+  /**
+   * @param  maxSize     the number of pending triples that triggers a flush
+   * @param  maxDelay    the age in milliseconds of the oldest pending triple that triggers a flush
+   */
+  public DeltaBuffer(int maxSize, long maxDelay) {
+    this.maxSize  = Math.max(1, maxSize);
+    this.maxDelay = maxDelay;
+  }
+
+  /**
+   * @return the age in milliseconds of the oldest pending triple that triggers a flush
+   */
+  public long getMaxDelay() {
+    return maxDelay;
+  }
+
+  /**
+   * @param  triple      the triple to add
+   */
+  public synchronized void add(Triple triple) {
+    record(triple, Boolean.TRUE);
+  }
+
+  /**
+   * @param  triple      the triple to delete
+   */
+  public synchronized void delete(Triple triple) {
+    record(triple, Boolean.FALSE);
+  }
+
+  private void record(Triple triple, Boolean operation) {
+    if (pending.isEmpty())
+      since = System.currentTimeMillis();
+    pending.remove(triple);
+    pending.put(triple, operation);
+  }
+
+  /**
+   * @param  triple      a concrete triple
+   * @return <code>TRUE</code> if an addition is pending, <code>FALSE</code>
+   *         if a deletion is pending, or <code>null</code>
+   */
+  public synchronized Boolean get(Triple triple) {
+    return pending.get(triple);
+  }
+
+  /**
+   * @return <code>true</code> if nothing is pending
+   */
+  public synchronized boolean isEmpty() {
+    return pending.isEmpty();
+  }
+
+  /**
+   * @return the number of pending operations
+   */
+  public synchronized int size() {
+    return pending.size();
+  }
+
+  /**
+   * @return <code>true</code> if the size or time threshold has been reached
+   */
+  public synchronized boolean isFlushDue() {
+    return pending.size() >= maxSize || (!pending.isEmpty() && System.currentTimeMillis() - since >= maxDelay);
+  }
+
+  /**
+   * @return a snapshot of the pending operations
+   */
+  public synchronized Map<Triple, Boolean> snapshot() {
+    return new HashMap<Triple, Boolean>(pending);
+  }
+
+  /**
+   * Removes and returns all pending operations.
+   *
+   * @return the pending operations
+   */
+  public synchronized Map<Triple, Boolean> drain() {
+    Map<Triple, Boolean> drained = new LinkedHashMap<Triple, Boolean>(pending);
+    pending.clear();
+    return drained;
+  }
+
+  /**
+   * Discards all pending operations.
+   */
+  public synchronized void clear() {
+    pending.clear();
+  }
+}
@@ -5,45 +5,410 @@ import org.jruby.runtime.builtin.IRubyObject;
 import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.Block;
 import org.jruby.exceptions.RaiseException;
+import org.jruby.runtime.CallSite;
+import org.jruby.runtime.MethodIndex;
+import org.jruby.util.ByteList;
+import org.rubyforge.rdf.Cache;
+import org.rubyforge.rdf.Metrics;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import com.hp.hpl.jena.datatypes.RDFDatatype;
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
 import com.hp.hpl.jena.graph.Triple;   
 import com.hp.hpl.jena.graph.TripleMatch;
 import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.impl.LiteralLabel;
+import com.hp.hpl.jena.graph.impl.LiteralLabelFactory;
 import com.hp.hpl.jena.sparql.core.Quad;
 import com.hp.hpl.jena.rdf.model.AnonId;
 
 /**
  * A factory class for instantiating RDF.rb objects.
  *
+ * Conversions from RDF.rb values dispatch on the identity of the value's
+ * class, which is resolved against the RDF.rb class hierarchy only the
+ * first time it is seen, and the accessors are invoked through cached
+ * call sites.
+ *
+ * Converted terms are kept in a bounded term dictionary that maps Jena
+ * nodes to RDF.rb values and RDF.rb values (by identity) back to nodes, so
+ * that recurring terms are neither reallocated nor re-dispatched. Its size
+ * defaults to the <code>rdf.arq.cache.size</code> system property.
+ *
+ * Literals keep their language tags and datatypes in both directions.
+ * Numeric and boolean literals are converted by value: instances of
+ * <code>RDF::Literal::Integer</code>, <code>Double</code> and
+ * <code>Boolean</code> holding a Ruby number or boolean become Jena typed
+ * literals without parsing their lexical forms, and Jena literals whose
+ * lexical forms Ruby prints alike become RDF.rb literals holding the Ruby
+ * value of the already-parsed Jena value. Literals are converted by value
+ * only where their lexical form is the canonical one, so that forms such
+ * as "01", "+5" or "1", or a double whose exponent Java prints differently
+ * from Ruby, are kept either way.
+ * Date-time literals go through their lexical forms, as RDF.rb holds them
+ * as <code>::DateTime</code> objects, which have no Java counterpart.
+ *
+ * Converted statements are counted in {@link Metrics}, and the term
+ * dictionary's hit rates are reported there as <code>values</code> and
+ * <code>nodes</code>.
+ *
  * @author Arto Bendiken
  */
 public class Factory extends org.rubyforge.rdf.Factory {
+  public static final int DEFAULT_CACHE_SIZE = 10000;
+
+  private enum Kind { NODE, URI, LITERAL, INTEGER, DOUBLE, BOOLEAN, OTHER }
+
+
+  private final Cache<Node, RubyObject> values;
+  private final Cache<Identity, Node> nodes;
+
+  private IRubyObject codec;
+
+  private final Map<RubyClass, Kind> kinds = new ConcurrentHashMap<RubyClass, Kind>();
+  private final CallSite subjectSite   = MethodIndex.getCallSite("subject");
+  private final CallSite predicateSite = MethodIndex.getCallSite("predicate");
+  private final CallSite objectSite    = MethodIndex.getCallSite("object");
+  private final CallSite contextSite   = MethodIndex.getCallSite("context");
+  private final CallSite valueSite     = MethodIndex.getCallSite("value");
+  private final CallSite idSite        = MethodIndex.getCallSite("id");
+  private final CallSite toStringSite  = MethodIndex.getCallSite("to_s");
+  private final CallSite languageSite  = MethodIndex.getCallSite("language");
+  private final CallSite datatypeSite  = MethodIndex.getCallSite("datatype");
+  private final CallSite literalSite   = MethodIndex.getCallSite("object");
+
   public Factory() {
-    super();
+    this(Ruby.getGlobalRuntime());
   }
 
   /**
    * @param  runtime     the Ruby runtime to use
    */
   public Factory(Ruby runtime) {
+    this(runtime, Integer.getInteger("rdf.arq.cache.size", DEFAULT_CACHE_SIZE));
+  }
+
+  /**
+   * @param  runtime     the Ruby runtime to use
+   * @param  cacheSize   the maximum number of terms cached in each direction
+   */
+  public Factory(Ruby runtime, int cacheSize) {
     super(runtime);
+    this.values = new Cache<Node, RubyObject>(cacheSize);
+    this.nodes  = new Cache<Identity, Node>(cacheSize);
+    Metrics.registerCache("values", values);
+    Metrics.registerCache("nodes", nodes);
+  }
+
+  /**
+   * @param  runtime     the Ruby runtime to use
+   * @return the shared factory for <code>runtime</code>
+   */
+  public static Factory getInstance(Ruby runtime) {
+    synchronized (org.rubyforge.rdf.Factory.class) {
+      org.rubyforge.rdf.Factory shared = getSharedInstance(runtime);
+      if (shared instanceof Factory)
+        return (Factory)shared;
+      // Replaces a plain factory, which holds no term dictionary.
+      Factory factory = new Factory(runtime);
+      setSharedInstance(runtime, factory);
+      return factory;
+    }
+  }
+
+  /**
+   * @param  value       an RDF::Value instance
+   * @return a Jena node
+   */
+  public static Node newNode(RubyObject value) {
+    return getInstance(value.getRuntime()).toNode(value);
   }
 
   /**
    * @param  value       an RDF::Value instance
    * @return a Jena node
    */
-  public static Node newNode(RubyObject value) { // TODO
-    String className = value.callMethod("class").toString();
-    if (className.equals("RDF::Node")) {
-      return Node.createAnon(AnonId.create(value.callMethod("id").toString()));
+  public Node toNode(IRubyObject value) {
+    if (value.isNil())
+      return null;
+    Identity key = new Identity(value);
+    Node node = nodes.get(key);
+    if (node == null && (node = convert(value)) != null) {
+      nodes.put(key, node);
+      if (value instanceof RubyObject)
+        values.put(node, (RubyObject)value);
     }
-    if (className.equals("RDF::URI")) {
-      return Node.createURI(value.toString());
+    return node;
+  }
+
+  /**
+   * @param  value       an RDF::Value instance
+   * @return a Jena node
+   */
+  private Node convert(IRubyObject value) {
+    ThreadContext context = getCurrentContext();
+    Kind kind = getKind(value);
+    switch (kind) {
+      case NODE:
+        return Node.createAnon(AnonId.create(idSite.call(context, value, value).toString()));
+      case URI:
+        return Node.createURI(toStringSite.call(context, value, value).toString());
+      case INTEGER:
+      case DOUBLE:
+      case BOOLEAN:
+        Node node = toTypedLiteral(context, kind, value);
+        if (node != null)
+          return node;
+        return toLiteral(context, value);
+      case LITERAL:
+        return toLiteral(context, value);
+      default:
+        return null;
     }
-    if (className.equals("RDF::Literal")) {
-      return Node.createLiteral(value.callMethod("value").toString()); // FIXME
+  }
+
+  /**
+   * @param  literal     an RDF::Literal instance
+   * @return a Jena literal with the literal's language tag or datatype
+   */
+  private Node toLiteral(ThreadContext context, IRubyObject literal) {
+    String lexicalForm = valueSite.call(context, literal, literal).toString();
+    IRubyObject language = languageSite.call(context, literal, literal);
+    if (!language.isNil())
+      return Node.createLiteral(lexicalForm, language.toString(), false);
+    Node datatype = toNode(datatypeSite.call(context, literal, literal));
+    if (datatype != null && datatype.isURI())
+      return Node.createLiteral(lexicalForm, null, TypeMapper.getInstance().getSafeTypeByName(datatype.getURI()));
+    return Node.createLiteral(lexicalForm);
+  }
+
+  /**
+   * @param  kind        the kind of literal
+   * @param  literal     an RDF::Literal instance
+   * @return a Jena typed literal, or <code>null</code> if the value is not
+   *         of the Ruby type expected for <code>kind</code>, or its
+   *         canonical form differs from the literal's lexical form
+   */
+  private Node toTypedLiteral(ThreadContext context, Kind kind, IRubyObject literal) {
+    IRubyObject object = literalSite.call(context, literal, literal);
+    Object value;
+    XSDDatatype datatype;
+    switch (kind) {
+      case INTEGER:
+        if (object instanceof RubyFixnum) {
+          long number = ((RubyFixnum)object).getLongValue();
+          value = (number == (int)number) ? (Number)Integer.valueOf((int)number) : (Number)Long.valueOf(number);
+        }
+        else if (object instanceof RubyBignum)
+          value = ((RubyBignum)object).getValue();
+        else
+          return null;
+        datatype = XSDDatatype.XSDinteger;
+        break;
+      case DOUBLE:
+        if (!(object instanceof RubyFloat))
+          return null;
+        value = Double.valueOf(((RubyFloat)object).getDoubleValue());
+        datatype = XSDDatatype.XSDdouble;
+        break;
+      case BOOLEAN:
+        if (!(object instanceof RubyBoolean))
+          return null;
+        value = Boolean.valueOf(object.isTrue());
+        datatype = XSDDatatype.XSDboolean;
+        break;
+      default:
+        return null;
     }
-    return null;
+    // A typed literal created from the value would print its canonical
+    // form, losing a lexical form such as "01", "+5" or "1".
+    if (!datatype.unparse(value).equals(valueSite.call(context, literal, literal).toString()))
+      return null;
+    return Node.createLiteral(LiteralLabelFactory.create(value, "", datatype));
+  }
+
+  /**
+   * @param  statement   an RDF::Statement instance
+   * @return a Jena triple
+   */
+  public Triple toTriple(IRubyObject statement) {
+    ThreadContext context = getCurrentContext();
+    long mark = Metrics.converting();
+    Triple triple = new Triple(
+      toNode(subjectSite.call(context, statement, statement)),
+      toNode(predicateSite.call(context, statement, statement)),
+      toNode(objectSite.call(context, statement, statement))
+    );
+    Metrics.converted(1, mark);
+    return triple;
+  }
+
+  /**
+   * Converts a chunk of statements with one call into Ruby, which packs
+   * them with <code>RDF::ARQ::Codec</code>, rather than three or four
+   * accessor calls per statement. Falls back to converting statement by
+   * statement where the chunk cannot be packed.
+   *
+   * @param  statements  an array of RDF::Statement instances
+   * @return ARQ quads, in the default graph if the statements have no context
+   */
+  public List<Quad> toQuads(RubyArray statements) {
+    RubyModule codec = getCodec();
+    if (codec != null) {
+      try {
+        ByteList bytes = codec.callMethod(getCurrentContext(), "pack", statements).convertToString().getByteList();
+        return Codec.decode(ByteBuffer.wrap(bytes.getUnsafeBytes(), bytes.getBegin(), bytes.getRealSize()));
+      }
+      catch (RaiseException e) {} // a term RDF::ARQ::Codec does not know how to pack
+    }
+    List<Quad> quads = new ArrayList<Quad>(statements.getLength());
+    for (int i = 0; i < statements.getLength(); i++) {
+      quads.add(toQuad(statements.entry(i)));
+    }
+    return quads;
+  }
+
+  /**
+   * @param  statements  an array of RDF::Statement instances
+   * @return Jena triples
+   * @see    #toQuads(RubyArray)
+   */
+  public List<Triple> toTriples(RubyArray statements) {
+    List<Quad> quads = toQuads(statements);
+    List<Triple> triples = new ArrayList<Triple>(quads.size());
+    for (Quad quad : quads) {
+      triples.add(quad.asTriple());
+    }
+    return triples;
+  }
+
+  /**
+   * @return the <code>RDF::ARQ::Codec</code> module, or <code>null</code> if it is not available
+   */
+  private synchronized RubyModule getCodec() {
+    // Resolved once, as autoloading is not safe from concurrent threads.
+    if (codec == null) {
+      IRubyObject arq = getRDF().getConstantAt("ARQ");
+      IRubyObject module = (arq instanceof RubyModule) ? ((RubyModule)arq).getConstant("Codec") : null;
+      codec = (module instanceof RubyModule) ? (RubyModule)module : getRuntime().getNil();
+    }
+    return (codec instanceof RubyModule) ? (RubyModule)codec : null;
+  }
+
+  /**
+   * @param  statement   an RDF::Statement instance
+   * @return the statement's predicate as a Jena node
+   */
+  public Node toPredicate(IRubyObject statement) {
+    return toNode(predicateSite.call(getCurrentContext(), statement, statement));
+  }
+
+  /**
+   * @param  statement   an RDF::Statement instance
+   * @return an ARQ quad, in the default graph if the statement has no context
+   */
+  public Quad toQuad(IRubyObject statement) {
+    ThreadContext context = getCurrentContext();
+    long mark = Metrics.converting();
+    Node graph = toNode(contextSite.call(context, statement, statement));
+    Quad quad = new Quad(
+      (graph != null) ? graph : Quad.defaultGraphNodeGenerated,
+      toNode(subjectSite.call(context, statement, statement)),
+      toNode(predicateSite.call(context, statement, statement)),
+      toNode(objectSite.call(context, statement, statement))
+    );
+    Metrics.converted(1, mark);
+    return quad;
+  }
+
+  /**
+   * @param  pattern     an RDF::Statement instance, with nil as the wildcard
+   * @return an ARQ quad pattern, with <code>Node.ANY</code> as the wildcard
+   */
+  public Quad toQuadPattern(IRubyObject pattern) {
+    ThreadContext context = getCurrentContext();
+    return new Quad(
+      toPatternNode(contextSite.call(context, pattern, pattern)),
+      toPatternNode(subjectSite.call(context, pattern, pattern)),
+      toPatternNode(predicateSite.call(context, pattern, pattern)),
+      toPatternNode(objectSite.call(context, pattern, pattern))
+    );
+  }
+
+  private Node toPatternNode(IRubyObject value) {
+    Node node = toNode(value);
+    return (node != null) ? node : Node.ANY;
+  }
+
+  /**
+   * @return the cache mapping Jena nodes to RDF.rb values
+   */
+  public Cache<Node, RubyObject> getValueCache() {
+    return values;
+  }
+
+  /**
+   * @return the cache mapping RDF.rb values to Jena nodes
+   */
+  public Cache<?, Node> getNodeCache() {
+    return nodes;
+  }
+
+  /**
+   * @param  size        the maximum number of terms cached in each direction
+   */
+  public void setCacheSize(int size) {
+    values.setCapacity(size);
+    nodes.setCapacity(size);
+  }
+
+  /**
+   * Classifies a value by the identity of its class, consulting the RDF.rb
+   * class hierarchy only for classes not seen before.
+   *
+   * @param  value       an RDF::Value instance
+   * @return the kind of term
+   */
+  private Kind getKind(IRubyObject value) {
+    RubyClass klass = value.getMetaClass().getRealClass();
+    Kind kind = kinds.get(klass);
+    if (kind == null) {
+      if (getNodeClass().isInstance(value))
+        kind = Kind.NODE;
+      else if (getURIClass().isInstance(value))
+        kind = Kind.URI;
+      else if (getLiteralClass().isInstance(value))
+        kind = getLiteralKind(klass);
+      else
+        kind = Kind.OTHER;
+      kinds.put(klass, kind);
+    }
+    return kind;
+  }
+
+  /**
+   * Classifies a literal class by the RDF.rb literal subclass it derives
+   * from. Classes are matched by name, so as not to trigger autoloading.
+   *
+   * @param  klass       a subclass of RDF::Literal
+   * @return the kind of literal
+   */
+  private Kind getLiteralKind(RubyClass klass) {
+    for (; klass != null && klass != getLiteralClass(); klass = klass.getSuperClass()) {
+      String name = klass.getName();
+      if ("RDF::Literal::Integer".equals(name))
+        return Kind.INTEGER;
+      if ("RDF::Literal::Double".equals(name))
+        return Kind.DOUBLE;
+      if ("RDF::Literal::Boolean".equals(name))
+        return Kind.BOOLEAN;
+    }
+    return Kind.LITERAL;
   }
 
   /**
@@ -53,15 +418,67 @@ public class Factory extends org.rubyforge.rdf.Factory {
   public RubyObject newValue(Node node) {
     if (node == null || node == Node.ANY)
       return getWildcard();
+    RubyObject value = values.get(node);
+    if (value == null && (value = convert(node)) != null) {
+      values.put(node, value);
+      nodes.put(new Identity(value), node);
+    }
+    return value;
+  }
+
+  /**
+   * @param  node        the Jena node
+   * @return an RDF::Value instance
+   */
+  private RubyObject convert(Node node) {
     if (node.isBlank())
       return newNode(node.getBlankNodeId().toString());
     if (node.isURI())
       return newURI(node.getURI());
     if (node.isLiteral())
-      return newLiteral(node.getLiteralValue()); // FIXME
+      return newLiteral(node);
     return null;
   }
 
+  /**
+   * @param  node        the Jena literal
+   * @return an RDF::Literal instance
+   */
+  private RubyObject newLiteral(Node node) {
+    String lexicalForm = node.getLiteralLexicalForm();
+    String language = node.getLiteralLanguage();
+    if (language != null && language.length() > 0)
+      return newLiteralWithLanguage(lexicalForm, language);
+    String datatype = node.getLiteralDatatypeURI();
+    if (datatype == null)
+      return newLiteral(lexicalForm);
+    IRubyObject value = newLiteralValue(node.getLiteral());
+    return newLiteralWithDatatype((value != null) ? value : newString(lexicalForm), newValue(Node.createURI(datatype)));
+  }
+
+  /**
+   * Returns the Ruby value of a typed literal if it maps onto a Ruby
+   * number or boolean, and the literal is in the form Ruby prints the
+   * value in, so that the lexical form is preserved.
+   *
+   * @param  literal     the Jena typed literal
+   * @return a Ruby object, or <code>null</code>
+   */
+  private IRubyObject newLiteralValue(LiteralLabel literal) {
+    if (!literal.isWellFormed())
+      return null;
+    Object value = literal.getValue();
+    if (!(value instanceof Number || value instanceof Boolean) || value instanceof BigDecimal)
+      return null;
+    RDFDatatype datatype = literal.getDatatype();
+    if (!literal.getLexicalForm().equals(datatype.unparse(value)))
+      return null;
+    IRubyObject object = newObject(value);
+    if (object instanceof RubyFloat && !literal.getLexicalForm().equals(object.asString().toString()))
+      return null;
+    return object;
+  }
+
   /**
    * @param  match       the Jena triple matcher
    * @return an RDF::Pattern instance
@@ -111,6 +528,22 @@ public class Factory extends org.rubyforge.rdf.Factory {
     return newQuad(subject, predicate, object, context); // FIXME
   }
 
+  /**
+   * @param  triple      the Jena triple pattern
+   * @return a Ruby array with 3 elements, with variables given as symbols
+   */
+  public RubyArray newQueryPattern(Triple triple) {
+    return newTriple(newTerm(triple.getSubject()), newTerm(triple.getPredicate()), newTerm(triple.getObject()));
+  }
+
+  /**
+   * @param  node        the Jena node or variable
+   * @return an RDF::Value instance, or a symbol naming a variable
+   */
+  public IRubyObject newTerm(Node node) {
+    return node.isVariable() ? getRuntime().newSymbol(node.getName()) : newValue(node);
+  }
+
   /**
    * @param  triple      the Jena triple
    * @return an RDF::Statement instance
@@ -134,7 +567,10 @@ public class Factory extends org.rubyforge.rdf.Factory {
    * @return an RDF::Statement instance
    */
   public RubyObject newStatement(Node subject, Node predicate, Node object) {
-    return newTriple(subject, predicate, object); // FIXME
+    long mark = Metrics.converting();
+    RubyObject statement = newStatement(newValue(subject), newValue(predicate), newValue(object));
+    Metrics.converted(1, mark);
+    return statement;
   }
 
   /**
@@ -145,7 +581,10 @@ public class Factory extends org.rubyforge.rdf.Factory {
    * @return an RDF::Statement instance
    */
   public RubyObject newStatement(Node subject, Node predicate, Node object, Node context) {
-    return newQuad(subject, predicate, object, context); // FIXME
+    long mark = Metrics.converting();
+    RubyObject statement = newStatement(newValue(subject), newValue(predicate), newValue(object), newContext(context));
+    Metrics.converted(1, mark);
+    return statement;
   }
 
   /**
@@ -163,7 +602,10 @@ public class Factory extends org.rubyforge.rdf.Factory {
    * @return a Ruby array with 3 elements
    */
   public RubyArray newTriple(Node subject, Node predicate, Node object) {
-    return newTriple(newValue(subject), newValue(predicate), newValue(object));
+    long mark = Metrics.converting();
+    RubyArray triple = newTriple(newValue(subject), newValue(predicate), newValue(object));
+    Metrics.converted(1, mark);
+    return triple;
   }
 
   /**
@@ -182,6 +624,38 @@ public class Factory extends org.rubyforge.rdf.Factory {
    * @return a Ruby array with 4 elements
    */
   public RubyArray newQuad(Node subject, Node predicate, Node object, Node context) {
-    return newQuad(newValue(subject), newValue(predicate), newValue(object), newValue(context));
+    long mark = Metrics.converting();
+    RubyArray quad = newQuad(newValue(subject), newValue(predicate), newValue(object), newContext(context));
+    Metrics.converted(1, mark);
+    return quad;
+  }
+
+  /**
+   * @param  node        the ARQ graph name
+   * @return an RDF::Value instance, or nil for the default graph
+   */
+  public RubyObject newContext(Node node) {
+    return (node != null && Quad.isDefaultGraph(node)) ? getWildcard() : newValue(node);
+  }
+
+  /**
+   * Wraps a Ruby object so that it is hashed and compared by identity.
+   */
+  private static final class Identity {
+    private final IRubyObject object;
+
+    Identity(IRubyObject object) {
+      this.object = object;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(object);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return (other instanceof Identity) && ((Identity)other).object == object;
+    }
   }
 }
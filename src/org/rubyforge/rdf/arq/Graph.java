@@ -1,23 +1,117 @@
 package org.rubyforge.rdf.arq;
 
 import org.jruby.*;
+import org.jruby.runtime.Arity;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.BlockCallback;
+import org.jruby.runtime.CallBlock;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+import org.rubyforge.rdf.Metrics;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import com.hp.hpl.jena.graph.Node;
 import com.hp.hpl.jena.graph.Triple;
 import com.hp.hpl.jena.graph.TripleMatch;
 import com.hp.hpl.jena.graph.impl.GraphBase;
+import com.hp.hpl.jena.sparql.core.Quad;
 import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.util.iterator.Filter;
+import com.hp.hpl.jena.util.iterator.WrappedIterator;
 
 /**
  * Wraps an RDF::Graph instance for Jena/ARQ compatibility.
  *
+ * In the optional write-behind mode, added and deleted triples are
+ * collected in a {@link DeltaBuffer} and written to the RDF::Graph in
+ * batches once the buffer reaches its size or time threshold, when a
+ * transaction commits, or on {@link #flush()}. The time threshold is
+ * checked on a background thread, so that the last changes of a burst
+ * reach the RDF::Graph, and readers on the Ruby side, without waiting for
+ * another write. Reads through Jena merge in the pending changes, so they
+ * always observe the latest writes.
+ *
+ * The graph's size and per-predicate counts are seeded once, on first
+ * use, and then maintained as triples are added and deleted. While they
+ * are maintained, each batch of writes goes through
+ * <code>RDF::ARQ::Changes</code>, which reports in the same call which
+ * triples actually changed the RDF::Graph. Changes made from Ruby, past
+ * this wrapper, are only detected on graphs extended with
+ * <code>RDF::ARQ::Versioned</code>, whose mutation version then triggers
+ * a recount; on other graphs the counts go stale until
+ * {@link #invalidate()} is called. These counts back the
+ * graph's {@link StatisticsHandler}, which {@link StageGenerator} uses to
+ * reorder basic graph patterns.
+ *
+ * A graph may also be restricted to a single context of an
+ * RDF::Repository, as for the named graphs of a {@link DatasetGraph}. The
+ * context is then passed down with each pattern, so that the repository
+ * does the selection. The default graph holds the statements without a
+ * context, which RDF.rb patterns cannot select, so these are selected by
+ * <code>RDF::ARQ::DefaultGraph</code> in the same call that queries the
+ * repository, or on the Java side from packed matches.
+ *
+ * The graph may be queried from several threads at once. Reads of the
+ * RDF::Graph share a read lock, while writes, flushes and transactions
+ * take the write lock, so that readers run in parallel and each writer
+ * has exclusive access. A transaction holds the write lock from
+ * <code>begin</code> until <code>commit</code> or <code>abort</code>, and
+ * buffers its changes in the meantime, so that queries on other threads
+ * block until it ends; see {@link TransactionHandler}. As the lock cannot
+ * be upgraded, writing, flushing or counting from a thread that holds the
+ * read lock, such as from Ruby code called back during a read, fails
+ * rather than deadlocks.
+ *
+ * With the binary transport enabled, pattern matches and inserted or
+ * deleted batches cross between Ruby and Java as byte strings packed by
+ * {@link Codec} and <code>RDF::ARQ::Codec</code>, rather than as RDF.rb
+ * statements whose terms are read one accessor call at a time.
+ *
+ * Calls into the RDF::Graph are counted and timed per method in
+ * {@link Metrics} while metrics are enabled, and pattern matches are
+ * reported to the thread's {@link QueryTrace} while a query is traced.
+ *
  * @author Arto Bendiken
  */
 public class Graph extends GraphBase {
   private RubyObject graph;
   private Factory factory;
+  private Node context;
+  private volatile DeltaBuffer buffer;
+  private TransactionHandler transactionHandler;
+  private volatile Cardinalities counts;
+  private volatile long countsVersion;
+  private volatile long writes;
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private DeltaBuffer savedBuffer;
+  private IRubyObject transaction;
+  private volatile boolean transactional;
+  private Boolean solvable;
+  private ScheduledFuture<?> flushes;
+  private static ScheduledExecutorService flusher;
+  private boolean binary;
+
+  static {
+    StageGenerator.register();
+  }
 
   public Graph() {
     super();
-    this.factory = new Factory();
+    this.factory = Factory.getInstance(Ruby.getGlobalRuntime());
     this.graph   = factory.newGraph();
   }
 
@@ -27,7 +121,723 @@ public class Graph extends GraphBase {
   public Graph(RubyObject graph) {
     super();
     this.graph   = graph;
-    this.factory = new Factory(graph.getRuntime());
+    this.factory = Factory.getInstance(graph.getRuntime());
+  }
+
+  /**
+   * Returns the graph wrapping an RDF::Graph instance, creating it on first
+   * use. Reusing one wrapper per RDF::Graph preserves its counts and
+   * mutation version across queries.
+   *
+   * @param  graph       the RDF::Graph instance
+   * @return the wrapping graph
+   */
+  public static Graph getInstance(RubyObject graph) {
+    synchronized (graph) {
+      Object instance = graph.getInternalVariable("__arq_graph__");
+      if (instance == null)
+        graph.setInternalVariable("__arq_graph__", instance = new Graph(graph));
+      return (Graph)instance;
+    }
+  }
+
+  /**
+   * @param  repository  the RDF::Repository instance
+   * @param  context     the graph name, or a default graph node
+   */
+  public Graph(RubyObject repository, Node context) {
+    this(repository);
+    this.context = context;
+  }
+
+  /**
+   * @return the factory used by this graph
+   */
+  public Factory getFactory() {
+    return factory;
+  }
+
+  /**
+   * @return the graph name this graph is restricted to, or <code>null</code>
+   */
+  public Node getContext() {
+    return context;
+  }
+
+  /**
+   * @see com.hp.hpl.jena.graph.impl.GraphBase#getBulkUpdateHandler()
+   */
+  @Override
+  public com.hp.hpl.jena.graph.BulkUpdateHandler getBulkUpdateHandler() {
+    return (bulkHandler != null) ? bulkHandler : (bulkHandler = new BulkUpdateHandler(this));
+  }
+
+  /**
+   * @see com.hp.hpl.jena.graph.impl.GraphBase#createStatisticsHandler()
+   */
+  @Override
+  protected com.hp.hpl.jena.graph.GraphStatisticsHandler createStatisticsHandler() {
+    return new StatisticsHandler(this);
+  }
+
+  /**
+   * @see com.hp.hpl.jena.graph.impl.GraphBase#getTransactionHandler()
+   */
+  @Override
+  public com.hp.hpl.jena.graph.TransactionHandler getTransactionHandler() {
+    return (transactionHandler != null) ? transactionHandler : (transactionHandler = new TransactionHandler(this));
+  }
+
+  /**
+   * Enables or disables the binary transport.
+   *
+   * @param  enabled     whether to exchange statements as packed byte strings
+   */
+  public void setBinaryTransport(boolean enabled) {
+    binary = enabled;
+  }
+
+  /**
+   * @return <code>true</code> if the binary transport is enabled
+   */
+  public boolean isBinaryTransport() {
+    return binary;
+  }
+
+  /**
+   * Begins a transaction, waiting for exclusive access. Changes are
+   * buffered until the transaction ends, and reads by the transaction's
+   * thread see them; nothing is flushed to the RDF::Graph before commit,
+   * so that an abort always discards all of them. If the RDF::Graph
+   * supports RDF.rb transactions, the changes are committed through one;
+   * otherwise a commit that fails part way may leave some of them written.
+   */
+  void begin() {
+    lockForWriting();
+    if (transactional) {
+      lock.writeLock().unlock();
+      throw new UnsupportedOperationException("nested transactions");
+    }
+    try {
+      flush();
+      RubyModule transactions = getARQModule("Transactions");
+      ThreadContext context = factory.getCurrentContext();
+      if (transactions != null && transactions.callMethod(context, "supported?", graph).isTrue())
+        transaction = transactions.callMethod(context, "begin", new IRubyObject[] {graph, factory.newContext(getNamedContext())});
+      savedBuffer   = buffer;
+      buffer        = new DeltaBuffer(Integer.MAX_VALUE, Long.MAX_VALUE);
+      transactional = true;
+    }
+    catch (RuntimeException e) {
+      lock.writeLock().unlock();
+      throw e;
+    }
+  }
+
+  /**
+   * Commits the current transaction, writing its changes to the RDF::Graph.
+   */
+  void commit() {
+    checkTransaction();
+    try {
+      List<Triple> additions = new ArrayList<Triple>();
+      List<Triple> deletions = new ArrayList<Triple>();
+      for (Map.Entry<Triple, Boolean> entry : buffer.drain().entrySet()) {
+        (entry.getValue() ? additions : deletions).add(entry.getKey());
+      }
+      if (transaction != null) {
+        if (counts != null) {
+          additions = select(distinct(additions), false);
+          deletions = select(distinct(deletions), true);
+        }
+        ThreadContext context = factory.getCurrentContext();
+        getARQModule("Transactions").callMethod(context, "commit", new IRubyObject[] {graph, transaction,
+          factory.getRuntime().newArrayNoCopy(newTriples(additions)), factory.getRuntime().newArrayNoCopy(newTriples(deletions))});
+        if (counts != null) {
+          for (Triple triple : additions) {
+            counts.add(triple.getPredicate(), 1);
+          }
+          for (Triple triple : deletions) {
+            counts.add(triple.getPredicate(), -1);
+          }
+          countsVersion = getRubyVersion();
+        }
+      }
+      else {
+        insert(additions);
+        delete(deletions);
+      }
+    }
+    finally {
+      endTransaction();
+    }
+  }
+
+  /**
+   * Aborts the current transaction, discarding its changes.
+   */
+  void abort() {
+    checkTransaction();
+    try {
+      buffer.clear();
+      if (transaction != null)
+        getARQModule("Transactions").callMethod(factory.getCurrentContext(), "rollback", new IRubyObject[] {graph, transaction});
+    }
+    finally {
+      endTransaction();
+    }
+  }
+
+  /**
+   * @return <code>true</code> if a transaction is in progress
+   */
+  public boolean isInTransaction() {
+    return transactional;
+  }
+
+  /**
+   * Takes the write lock.
+   *
+   * @throws IllegalStateException if the current thread holds only the read lock, which cannot be upgraded
+   */
+  private void lockForWriting() {
+    if (lock.getReadHoldCount() > 0 && !lock.isWriteLockedByCurrentThread())
+      throw new IllegalStateException("cannot write to the graph while reading it on the same thread");
+    lock.writeLock().lock();
+  }
+
+  private void checkTransaction() {
+    if (!transactional || !lock.isWriteLockedByCurrentThread())
+      throw new IllegalStateException("no transaction in progress on this thread");
+  }
+
+  private void endTransaction() {
+    transactional = false;
+    transaction   = null;
+    buffer        = savedBuffer;
+    savedBuffer   = null;
+    lock.writeLock().unlock();
+  }
+
+  /**
+   * Enables or disables write-behind mode with the default thresholds.
+   *
+   * @param  enabled     whether to buffer writes
+   */
+  public void setWriteBehind(boolean enabled) {
+    if (enabled)
+      setWriteBehind(DeltaBuffer.DEFAULT_MAX_SIZE, DeltaBuffer.DEFAULT_MAX_DELAY);
+    else {
+      lockForWriting();
+      try {
+        flush();
+        buffer = null;
+        cancelFlushes();
+      }
+      finally {
+        lock.writeLock().unlock();
+      }
+    }
+  }
+
+  /**
+   * Enables write-behind mode.
+   *
+   * @param  maxSize     the number of pending triples that triggers a flush
+   * @param  maxDelay    the age in milliseconds of the oldest pending triple that triggers a flush
+   */
+  public void setWriteBehind(int maxSize, long maxDelay) {
+    lockForWriting();
+    try {
+      flush();
+      buffer = new DeltaBuffer(maxSize, maxDelay);
+      cancelFlushes();
+      if (maxDelay > 0 && maxDelay < Long.MAX_VALUE) {
+        long period = Math.max(1, maxDelay / 2);
+        flushes = getFlusher().scheduleWithFixedDelay(new Flusher(this), period, period, TimeUnit.MILLISECONDS);
+      }
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void cancelFlushes() {
+    if (flushes != null)
+      flushes.cancel(false);
+    flushes = null;
+  }
+
+  /**
+   * @return the executor running the time-based flushes of all graphs
+   */
+  private static synchronized ScheduledExecutorService getFlusher() {
+    if (flusher == null) {
+      flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "Graph#flush");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return flusher;
+  }
+
+  /**
+   * Writes the pending changes to the RDF::Graph if the buffer has reached
+   * its time threshold, unless a transaction is in progress.
+   */
+  void flushIfDue() {
+    DeltaBuffer buffer = this.buffer;
+    if (buffer != null && !transactional && buffer.isFlushDue())
+      flush();
+  }
+
+  /**
+   * Flushes a graph once its pending changes are due, holding it weakly so
+   * that an abandoned graph stops being flushed.
+   */
+  private static class Flusher implements Runnable {
+    private final WeakReference<Graph> graph;
+
+    Flusher(Graph graph) {
+      this.graph = new WeakReference<Graph>(graph);
+    }
+
+    public void run() {
+      Graph graph = this.graph.get();
+      if (graph == null)
+        throw new IllegalStateException("graph collected"); // cancels further runs
+      try {
+        graph.flushIfDue();
+      }
+      catch (RuntimeException e) {
+        // The batch is lost, as with any failed flush; later ones are still flushed.
+      }
+    }
+  }
+
+  /**
+   * @return <code>true</code> if write-behind mode is enabled
+   */
+  public boolean isWriteBehind() {
+    return buffer != null;
+  }
+
+  /**
+   * Writes any pending changes to the RDF::Graph. The changes made within
+   * a transaction are only written when it commits.
+   */
+  public void flush() {
+    DeltaBuffer buffer = this.buffer;
+    if (buffer == null || buffer.isEmpty() || transactional)
+      return;
+    lockForWriting();
+    try {
+      buffer = this.buffer;
+      if (buffer == null || transactional)
+        return;
+      List<Triple> additions = new ArrayList<Triple>();
+      List<Triple> deletions = new ArrayList<Triple>();
+      for (Map.Entry<Triple, Boolean> entry : buffer.drain().entrySet()) {
+        (entry.getValue() ? additions : deletions).add(entry.getKey());
+      }
+      insert(additions);
+      delete(deletions);
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return the size and per-predicate counts of this graph
+   */
+  public Cardinalities getCardinalities() {
+    flush();
+    Cardinalities counts = this.counts;
+    long version = getRubyVersion();
+    if (counts != null && version == countsVersion)
+      return counts;
+    long written = writes;
+    counts = count();
+    // Writers update the installed counts under the write lock, so a write
+    // made while counting would be missing from these counts; they are
+    // then returned but not kept.
+    Lock lock = this.lock.readLock();
+    lock.lock();
+    try {
+      if (writes == written) {
+        this.counts = counts;
+        countsVersion = version;
+      }
+    }
+    finally {
+      lock.unlock();
+    }
+    return counts;
+  }
+
+  /**
+   * Returns a number that changes whenever this graph is changed, whether
+   * through Jena or, for graphs extended with <code>RDF::ARQ::Versioned</code>,
+   * from Ruby.
+   *
+   * @return the mutation version
+   */
+  public long getVersion() {
+    return writes + Math.max(0, getRubyVersion());
+  }
+
+  /**
+   * Counts the triples matching a pattern in a single Ruby call, which
+   * stops enumerating them once <code>limit</code> is reached and converts
+   * none of them.
+   *
+   * @param  pattern     the triple pattern
+   * @param  limit       the count to stop at
+   * @return the number of matching triples, or <code>limit</code> if there are at least as many
+   */
+  long count(Triple pattern, long limit) {
+    flush();
+    ThreadContext context = factory.getCurrentContext();
+    Ruby runtime = factory.getRuntime();
+    Lock lock = this.lock.readLock();
+    lock.lock();
+    long start = Metrics.begin();
+    try {
+      return RubyNumeric.num2long(getARQModule("Statistics").callMethod(context, "count", new IRubyObject[] {graph,
+        newPattern(pattern.getSubject(), pattern.getPredicate(), pattern.getObject()), runtime.newFixnum(limit), runtime.newBoolean(isDefaultGraph())}));
+    }
+    finally {
+      Metrics.end(Metrics.Call.COUNT, start);
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Matches a triple pattern, ignoring any pending changes.
+   *
+   * @param  subject     the subject term, or <code>Node.ANY</code>
+   * @param  predicate   the predicate term, or <code>Node.ANY</code>
+   * @param  object      the object term, or <code>Node.ANY</code>
+   * @return a Ruby array of the matching RDF::Statement instances
+   */
+  RubyArray query(Node subject, Node predicate, Node object) {
+    ThreadContext context = factory.getCurrentContext();
+    Lock lock = this.lock.readLock();
+    lock.lock();
+    long start = Metrics.begin();
+    try {
+      RubyObject pattern = newPattern(subject, predicate, object);
+      // The default graph's statements are selected in the same call.
+      IRubyObject matches = isDefaultGraph()
+        ? getARQModule("DefaultGraph").callMethod(context, "query", new IRubyObject[] {graph, pattern})
+        : graph.callMethod(context, "query", pattern);
+      return (matches instanceof RubyArray) ? (RubyArray)matches : (RubyArray)matches.callMethod(context, "to_a");
+    }
+    finally {
+      Metrics.end(Metrics.Call.QUERY, start);
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Matches a triple pattern through the binary transport, ignoring any
+   * pending changes.
+   *
+   * @param  pattern     the triple pattern, with <code>Node.ANY</code> as the wildcard
+   * @return the matching triples
+   */
+  List<Triple> findPacked(Triple pattern) {
+    ThreadContext context = factory.getCurrentContext();
+    RubyString packed = newString(Codec.encode(Collections.singletonList(pattern), getNamedContext()));
+    RubyString matches;
+    Lock lock = this.lock.readLock();
+    lock.lock();
+    long start = Metrics.begin();
+    try {
+      matches = getARQModule("Codec").callMethod(context, "query", new IRubyObject[] {graph, packed}).convertToString();
+    }
+    finally {
+      Metrics.end(Metrics.Call.QUERY, start);
+      lock.unlock();
+    }
+    ByteList bytes = matches.getByteList();
+    return restrictQuads(Codec.decode(ByteBuffer.wrap(bytes.getUnsafeBytes(), bytes.getBegin(), bytes.getRealSize())));
+  }
+
+  /**
+   * Drops the quads that have a context, if this is a default graph, as
+   * <code>RDF::ARQ::DefaultGraph</code> does for RDF.rb statements.
+   *
+   * @param  quads       decoded matches
+   * @return the matching triples belonging to this graph
+   */
+  private List<Triple> restrictQuads(List<Quad> quads) {
+    List<Triple> triples = new ArrayList<Triple>(quads.size());
+    for (Quad quad : quads) {
+      if (!isDefaultGraph() || quad.isDefaultGraph())
+        triples.add(quad.asTriple());
+    }
+    return triples;
+  }
+
+  /**
+   * @return <code>true</code> if the RDF::Graph evaluates whole basic graph
+   *         patterns natively, through <code>RDF::ARQ::BGP</code>, which it
+   *         cannot while a transaction has changes pending
+   */
+  public boolean isSolvable() {
+    if (solvable == null) {
+      RubyModule bgp = getBGPModule();
+      solvable = (context == null) && (bgp != null) && bgp.callMethod(factory.getCurrentContext(), "supported?", graph).isTrue();
+    }
+    return solvable && !transactional;
+  }
+
+  /**
+   * Evaluates a basic graph pattern in a single Ruby call. The solutions
+   * are left for the caller to convert as it consumes them, as
+   * {@link BasicPatternIterator} does a chunk at a time.
+   *
+   * @param  patterns    the triple patterns
+   * @return a Ruby array of RDF::Query::Solution instances
+   */
+  RubyArray solve(List<Triple> patterns) {
+    flush();
+    IRubyObject[] triples = new IRubyObject[patterns.size()];
+    for (int i = 0; i < triples.length; i++) {
+      triples[i] = factory.newQueryPattern(patterns.get(i));
+    }
+    ThreadContext context = factory.getCurrentContext();
+    Lock lock = this.lock.readLock();
+    lock.lock();
+    long start = Metrics.begin();
+    try {
+      return (RubyArray)getBGPModule().callMethod(context, "execute", new IRubyObject[] {graph, factory.getRuntime().newArray(triples)});
+    }
+    finally {
+      Metrics.end(Metrics.Call.QUERY, start);
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Matches a triple pattern through {@link #graphBaseFind}, for the caller
+   * to consume the matches as it goes.
+   *
+   * @param  pattern     the triple pattern, variables being treated as wildcards
+   * @return the matching triples, to be closed if not exhausted
+   */
+  ExtendedIterator<Triple> stream(Triple pattern) {
+    return find(wildcard(pattern.getSubject()), wildcard(pattern.getPredicate()), wildcard(pattern.getObject()));
+  }
+
+  /**
+   * Matches several triple patterns in a single Ruby call, which packs the
+   * matches of each pattern with <code>RDF::ARQ::Codec</code>. The batch of
+   * matches of each pattern is decoded when first asked for, the batches
+   * being decoded in order.
+   *
+   * @param  patterns    the triple patterns, variables being treated as wildcards
+   * @return the matching triples for each pattern
+   */
+  List<List<Triple>> findAll(final List<Triple> patterns) {
+    List<List<Triple>> results = new ArrayList<List<Triple>>(patterns.size());
+    RubyModule codec = transactional ? null : getARQModule("Codec");
+    if (codec == null) {
+      for (Triple pattern : patterns) {
+        results.add(find(wildcard(pattern.getSubject()), wildcard(pattern.getPredicate()), wildcard(pattern.getObject())).toList());
+      }
+      return results;
+    }
+    flush();
+    Metrics.probed(patterns.size());
+    List<Triple> wildcards = new ArrayList<Triple>(patterns.size());
+    for (Triple pattern : patterns) {
+      wildcards.add(Triple.create(wildcard(pattern.getSubject()), wildcard(pattern.getPredicate()), wildcard(pattern.getObject())));
+    }
+    RubyString packed = newString(Codec.encode(wildcards, getNamedContext()));
+    ThreadContext context = factory.getCurrentContext();
+    RubyString matches;
+    Lock lock = this.lock.readLock();
+    lock.lock();
+    long start = Metrics.begin();
+    try {
+      matches = codec.callMethod(context, "match", new IRubyObject[] {graph, packed}).convertToString();
+    }
+    finally {
+      Metrics.end(Metrics.Call.QUERY, start);
+      lock.unlock();
+    }
+    ByteList bytes = matches.getByteList();
+    final ByteBuffer buffer = ByteBuffer.wrap(bytes.getUnsafeBytes(), bytes.getBegin(), bytes.getRealSize());
+    final List<List<Triple>> decoded = results;
+    return new AbstractList<List<Triple>>() {
+      public List<Triple> get(int index) {
+        if (index < 0 || index >= patterns.size())
+          throw new IndexOutOfBoundsException(String.valueOf(index));
+        while (decoded.size() <= index) {
+          decoded.add(restrictQuads(Codec.decode(buffer)));
+        }
+        return decoded.get(index);
+      }
+
+      public int size() {
+        return patterns.size();
+      }
+    };
+  }
+
+  private static Node wildcard(Node node) {
+    return node.isVariable() ? Node.ANY : node;
+  }
+
+  /**
+   * @return <code>true</code> if this graph holds only the statements
+   *         without a context
+   */
+  private boolean isDefaultGraph() {
+    return context != null && Quad.isDefaultGraph(context);
+  }
+
+  /**
+   * @return the context of this graph if it is a named graph, else <code>null</code>
+   */
+  private Node getNamedContext() {
+    return (context != null && !isDefaultGraph()) ? context : null;
+  }
+
+  /**
+   * @return a pattern restricted to this graph's context, if any
+   */
+  private RubyObject newPattern(Node subject, Node predicate, Node object) {
+    return (context != null && !isDefaultGraph()) ? factory.newPattern(subject, predicate, object, context) : factory.newPattern(subject, predicate, object);
+  }
+
+  /**
+   * @return a statement in this graph's context, if any
+   */
+  private RubyArray newStatement(Triple triple) {
+    return (context != null && !isDefaultGraph()) ? factory.newQuad(triple.getSubject(), triple.getPredicate(), triple.getObject(), context) : factory.newTriple(triple);
+  }
+
+  /**
+   * @param  triple      a concrete triple
+   * @return <code>true</code> if the RDF::Graph contains the triple
+   */
+  private boolean containsInRuby(Triple triple) {
+    if (context != null)
+      return query(triple.getSubject(), triple.getPredicate(), triple.getObject()).getLength() > 0;
+    Lock lock = this.lock.readLock();
+    lock.lock();
+    long start = Metrics.begin();
+    try {
+      return graph.callMethod(factory.getCurrentContext(), "has_triple?", factory.newTriple(triple)).isTrue();
+    }
+    finally {
+      Metrics.end(Metrics.Call.HAS_TRIPLE, start);
+      lock.unlock();
+    }
+  }
+
+  RubyModule getBGPModule() {
+    return getARQModule("BGP");
+  }
+
+  /**
+   * @param  name        the name of a module nested in <code>RDF::ARQ</code>
+   * @return the module, or <code>null</code> if it is not available
+   */
+  private RubyModule getARQModule(String name) {
+    IRubyObject arq = factory.getRDF().getConstantAt("ARQ");
+    if (!(arq instanceof RubyModule))
+      return null;
+    IRubyObject module = ((RubyModule)arq).getConstant(name);
+    return (module instanceof RubyModule) ? (RubyModule)module : null;
+  }
+
+  /**
+   * Discards the maintained counts, so that they are recounted on next use.
+   */
+  public void invalidate() {
+    lockForWriting();
+    try {
+      counts = null;
+      writes++;
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return <code>true</code> if the RDF::Graph is extended with
+   *         <code>RDF::ARQ::Versioned</code>, so that {@link #getVersion()}
+   *         also changes when it is changed from Ruby
+   */
+  public boolean isVersioned() {
+    return graph.respondsTo("arq_version");
+  }
+
+  /**
+   * @return the mutation version of the RDF::Graph, or -1 if it is not
+   *         extended with <code>RDF::ARQ::Versioned</code>
+   */
+  private long getRubyVersion() {
+    return graph.respondsTo("arq_version") ? RubyNumeric.num2long(graph.callMethod(factory.getCurrentContext(), "arq_version")) : -1;
+  }
+
+  /**
+   * Counts the triples in the RDF::Graph with a single enumeration.
+   *
+   * @return the counts
+   */
+  private Cardinalities count() {
+    final Cardinalities counts = new Cardinalities();
+    ThreadContext context = factory.getCurrentContext();
+    if (this.context != null) {
+      RubyArray statements = query(Node.ANY, Node.ANY, Node.ANY);
+      for (int i = 0; i < statements.getLength(); i++) {
+        counts.add(factory.toPredicate(statements.entry(i)), 1);
+      }
+      return counts;
+    }
+    Block block = CallBlock.newCallClosure(graph, graph.getMetaClass(), Arity.ONE_ARGUMENT, new BlockCallback() {
+      public IRubyObject call(ThreadContext context, IRubyObject[] args, Block block) {
+        counts.add(factory.toPredicate(args[0]), 1);
+        return context.getRuntime().getNil();
+      }
+    }, context);
+    Lock lock = this.lock.readLock();
+    lock.lock();
+    long start = Metrics.begin();
+    try {
+      graph.callMethod(context, "each", IRubyObject.NULL_ARRAY, block);
+    }
+    finally {
+      Metrics.end(Metrics.Call.COUNT, start);
+      lock.unlock();
+    }
+    return counts;
+  }
+
+  /**
+   * @see com.hp.hpl.jena.graph.impl.GraphBase#close()
+   */
+  @Override
+  public void close() {
+    flush();
+    lockForWriting();
+    try {
+      cancelFlushes();
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+    super.close();
   }
 
   /**
@@ -35,7 +845,9 @@ public class Graph extends GraphBase {
    */
   @Override
   protected int graphBaseSize() {
-    return ((Number)graph.callMethod("count").toJava(Number.class)).intValue();
+    if (transactional && lock.isWriteLockedByCurrentThread() && !buffer.isEmpty())
+      return find(Node.ANY, Node.ANY, Node.ANY).toList().size();
+    return (int)Math.min(Integer.MAX_VALUE, getCardinalities().getSize());
   }
 
   /**
@@ -43,7 +855,22 @@ public class Graph extends GraphBase {
    */
   @Override
   protected boolean graphBaseContains(Triple triple) {
-    return graph.callMethod("has_triple?", factory.newTriple(triple)).isTrue();
+    Lock lock = this.lock.readLock();
+    lock.lock();
+    try {
+      DeltaBuffer buffer = this.buffer;
+      if (buffer != null && !buffer.isEmpty()) {
+        if (!triple.isConcrete())
+          return containsByFind(triple);
+        Boolean pending = buffer.get(triple);
+        if (pending != null)
+          return pending;
+      }
+      return containsInRuby(triple);
+    }
+    finally {
+      lock.unlock();
+    }
   }
 
   /**
@@ -51,7 +878,35 @@ public class Graph extends GraphBase {
    */
   @Override
   protected ExtendedIterator<Triple> graphBaseFind(TripleMatch match) {
-    return new TripleIterator(factory.getEnumerator(graph.callMethod("query", factory.newPattern(match))));
+    ExtendedIterator<Triple> iterator;
+    Map<Triple, Boolean> snapshot;
+    Metrics.probed(1);
+    // Match and take the pending changes under one read lock, so that a
+    // transaction in progress on another thread is not seen half-done.
+    Lock lock = this.lock.readLock();
+    lock.lock();
+    try {
+      iterator = binary ? WrappedIterator.create(findPacked(match.asTriple()).iterator()) : new TripleIterator(query(match.getMatchSubject(), match.getMatchPredicate(), match.getMatchObject()));
+      DeltaBuffer buffer = this.buffer;
+      if (buffer == null || buffer.isEmpty())
+        return iterator;
+      snapshot = buffer.snapshot();
+    }
+    finally {
+      lock.unlock();
+    }
+    final Map<Triple, Boolean> pending = snapshot;
+    List<Triple> additions = new ArrayList<Triple>();
+    Triple pattern = match.asTriple();
+    for (Map.Entry<Triple, Boolean> entry : pending.entrySet()) {
+      if (entry.getValue() && pattern.matches(entry.getKey()))
+        additions.add(entry.getKey());
+    }
+    return iterator.filterDrop(new Filter<Triple>() {
+      public boolean accept(Triple triple) {
+        return pending.containsKey(triple);
+      }
+    }).andThen(additions.iterator());
   }
 
   /**
@@ -60,7 +915,21 @@ public class Graph extends GraphBase {
    */
   @Override
   public void performAdd(Triple triple) {
-    graph.callMethod("insert", factory.newTriple(triple));
+    lockForWriting();
+    try {
+      writes++;
+      if (buffer != null) {
+        buffer.add(triple);
+        if (!transactional && buffer.isFlushDue())
+          flush();
+      }
+      else {
+        insert(Collections.singletonList(triple));
+      }
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
   }
 
   /**
@@ -69,6 +938,229 @@ public class Graph extends GraphBase {
    */
   @Override
   public void performDelete(Triple triple) {
-    graph.callMethod("delete", factory.newTriple(triple));
+    lockForWriting();
+    try {
+      writes++;
+      if (buffer != null) {
+        buffer.delete(triple);
+        if (!transactional && buffer.isFlushDue())
+          flush();
+      }
+      else {
+        delete(Collections.singletonList(triple));
+      }
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Inserts a batch of triples with a single Ruby call.
+   *
+   * @param  triples     the triples to insert
+   */
+  void performAdd(List<Triple> triples) {
+    lockForWriting();
+    try {
+      writes++;
+      if (transactional) {
+        for (Triple triple : triples) {
+          buffer.add(triple);
+        }
+        return;
+      }
+      flush();
+      insert(triples);
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Deletes a batch of triples with a single Ruby call.
+   *
+   * @param  triples     the triples to delete
+   */
+  void performDelete(List<Triple> triples) {
+    lockForWriting();
+    try {
+      writes++;
+      if (transactional) {
+        for (Triple triple : triples) {
+          buffer.delete(triple);
+        }
+        return;
+      }
+      flush();
+      delete(triples);
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Deletes all triples matching a pattern without converting them to
+   * Jena triples on the way.
+   *
+   * @param  subject     the subject term, or <code>Node.ANY</code>
+   * @param  predicate   the predicate term, or <code>Node.ANY</code>
+   * @param  object      the object term, or <code>Node.ANY</code>
+   */
+  void performRemove(Node subject, Node predicate, Node object) {
+    lockForWriting();
+    try {
+      remove(subject, predicate, object);
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void remove(Node subject, Node predicate, Node object) {
+    writes++;
+    if (transactional) {
+      for (Triple triple : find(subject, predicate, object).toList()) {
+        buffer.delete(triple);
+      }
+      return;
+    }
+    flush();
+    if (context == null && subject == Node.ANY && predicate == Node.ANY && object == Node.ANY) {
+      graph.callMethod(factory.getCurrentContext(), "clear");
+      if (counts != null) {
+        counts.clear();
+        countsVersion = getRubyVersion();
+      }
+    }
+    else {
+      ThreadContext context = factory.getCurrentContext();
+      RubyArray matches = query(subject, predicate, object);
+      if (matches.getLength() > 0) {
+        long start = Metrics.begin();
+        graph.callMethod(context, "delete", matches.toJavaArray());
+        Metrics.end(Metrics.Call.DELETE, start);
+        if (counts != null) {
+          for (int i = 0; i < matches.getLength(); i++) {
+            counts.add(factory.toPredicate(matches.entry(i)), -1);
+          }
+          countsVersion = getRubyVersion();
+        }
+      }
+    }
+  }
+
+  private void insert(List<Triple> triples) {
+    if (counts != null)
+      triples = distinct(triples);
+    if (triples.isEmpty())
+      return;
+    long start = Metrics.begin();
+    if (counts != null)
+      triples = change("insert", triples);
+    else if (binary)
+      getARQModule("Codec").callMethod(factory.getCurrentContext(), "insert", new IRubyObject[] {graph, newString(Codec.encode(triples, getNamedContext()))});
+    else
+      graph.callMethod(factory.getCurrentContext(), "insert", newTriples(triples));
+    Metrics.end(Metrics.Call.INSERT, start);
+    if (counts != null) {
+      for (Triple triple : triples) {
+        counts.add(triple.getPredicate(), 1);
+      }
+      countsVersion = getRubyVersion();
+    }
+  }
+
+  private void delete(List<Triple> triples) {
+    if (counts != null)
+      triples = distinct(triples);
+    if (triples.isEmpty())
+      return;
+    long start = Metrics.begin();
+    if (counts != null)
+      triples = change("delete", triples);
+    else if (binary)
+      getARQModule("Codec").callMethod(factory.getCurrentContext(), "delete", new IRubyObject[] {graph, newString(Codec.encode(triples, getNamedContext()))});
+    else
+      graph.callMethod(factory.getCurrentContext(), "delete", newTriples(triples));
+    Metrics.end(Metrics.Call.DELETE, start);
+    if (counts != null) {
+      for (Triple triple : triples) {
+        counts.add(triple.getPredicate(), -1);
+      }
+      countsVersion = getRubyVersion();
+    }
+  }
+
+  /**
+   * Inserts or deletes a batch through <code>RDF::ARQ::Changes</code>,
+   * which reports in the same call which triples changed the RDF::Graph.
+   *
+   * @param  method      <code>"insert"</code> or <code>"delete"</code>
+   * @param  triples     the distinct triples to write
+   * @return the triples actually inserted or deleted
+   */
+  private List<Triple> change(String method, List<Triple> triples) {
+    return pick(triples, getARQModule("Changes").callMethod(factory.getCurrentContext(), method, new IRubyObject[] {graph, newBatch(triples)}));
+  }
+
+  /**
+   * @param  triples     the distinct triples to check
+   * @param  present     whether to select the triples present in, or absent from, the RDF::Graph
+   * @return the selected triples
+   */
+  private List<Triple> select(List<Triple> triples, boolean present) {
+    if (triples.isEmpty())
+      return triples;
+    long start = Metrics.begin();
+    try {
+      return pick(triples, getARQModule("Changes").callMethod(factory.getCurrentContext(), "select",
+        new IRubyObject[] {graph, newBatch(triples), factory.getRuntime().newBoolean(present)}));
+    }
+    finally {
+      Metrics.end(Metrics.Call.HAS_TRIPLE, start);
+    }
+  }
+
+  /**
+   * @param  triples     a list of triples
+   * @param  positions   a Ruby array of positions in <code>triples</code>
+   * @return the triples at <code>positions</code>
+   */
+  private static List<Triple> pick(List<Triple> triples, IRubyObject positions) {
+    RubyArray array = positions.convertToArray();
+    List<Triple> picked = new ArrayList<Triple>(array.getLength());
+    for (int i = 0; i < array.getLength(); i++) {
+      picked.add(triples.get(RubyNumeric.fix2int(array.entry(i))));
+    }
+    return picked;
+  }
+
+  private static List<Triple> distinct(List<Triple> triples) {
+    return new ArrayList<Triple>(new LinkedHashSet<Triple>(triples));
+  }
+
+  /**
+   * @param  triples     a list of triples
+   * @return the triples as RDF.rb statements, or packed if the binary transport is enabled
+   */
+  private IRubyObject newBatch(List<Triple> triples) {
+    if (binary)
+      return newString(Codec.encode(triples, getNamedContext()));
+    return factory.getRuntime().newArrayNoCopy(newTriples(triples));
+  }
+
+  private RubyString newString(byte[] bytes) {
+    return RubyString.newString(factory.getRuntime(), new ByteList(bytes, false));
+  }
+
+  private IRubyObject[] newTriples(List<Triple> triples) {
+    IRubyObject[] statements = new IRubyObject[triples.size()];
+    for (int i = 0; i < statements.length; i++) {
+      statements[i] = newStatement(triples.get(i));
+    }
+    return statements;
   }
 }
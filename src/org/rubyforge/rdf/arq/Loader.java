@@ -0,0 +1,295 @@
+package org.rubyforge.rdf.arq;
+
+import org.jruby.*;
+import org.jruby.runtime.builtin.IRubyObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.sparql.core.Quad;
+import org.openjena.atlas.lib.Sink;
+import org.openjena.riot.Lang;
+import org.openjena.riot.RiotReader;
+
+/**
+ * Loads RDF files into a repository using Jena's streaming RIOT parsers.
+ *
+ * Each file is parsed on a worker thread, with several files parsed in
+ * parallel. Parsed statements are collected into batches, which for an
+ * RDF.rb repository are also converted into RDF.rb statements on the
+ * worker. The calling thread inserts the batches as they arrive, with a
+ * single <code>insert</code> call each, so parsing and conversion are
+ * pipelined with insertion. The queue between the workers and the caller
+ * is bounded, which bounds memory use regardless of file size. If parsing
+ * or inserting fails, the remaining workers are cancelled and waited for
+ * before the error is rethrown.
+ *
+ * The format of each file is guessed from its extension, with N-Triples
+ * as the fallback.
+ *
+ * @author Arto Bendiken
+ */
+public class Loader {
+  public static final int DEFAULT_BATCH_SIZE = 10000;
+  public static final int DEFAULT_THREADS    = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+  private static final Object DONE = new Object();
+  private static final RuntimeException CANCELLED = new RuntimeException("Loader#cancel");
+
+  private RubyObject repository;
+  private Store store;
+  private Factory factory;
+  private int batchSize;
+  private int threads;
+
+  /**
+   * @param  repository  the RDF::Repository instance to load into
+   */
+  public Loader(RubyObject repository) {
+    this(repository, DEFAULT_BATCH_SIZE, DEFAULT_THREADS);
+  }
+
+  /**
+   * @param  repository  the RDF::Repository instance to load into
+   * @param  batchSize   the number of statements per insert call
+   * @param  threads     the maximum number of files parsed in parallel
+   */
+  public Loader(RubyObject repository, int batchSize, int threads) {
+    this.repository = repository;
+    this.factory    = Factory.getInstance(repository.getRuntime());
+    this.batchSize  = Math.max(1, batchSize);
+    this.threads    = Math.max(1, threads);
+  }
+
+  /**
+   * Loads quads straight into a store, without converting them into
+   * RDF.rb statements.
+   *
+   * @param  store       the store to load into
+   * @param  batchSize   the number of statements per batch
+   * @param  threads     the maximum number of files parsed in parallel
+   */
+  public Loader(Store store, int batchSize, int threads) {
+    this.store     = store;
+    this.factory   = store.getFactory();
+    this.batchSize = Math.max(1, batchSize);
+    this.threads   = Math.max(1, threads);
+  }
+
+  /**
+   * @param  file        the file to load
+   * @return the number of statements loaded
+   */
+  public long load(String file) {
+    return load(new String[] {file});
+  }
+
+  /**
+   * @param  files       the files to load
+   * @return the number of statements loaded
+   */
+  public long load(String[] files) {
+    if (files.length == 0)
+      return 0;
+    int workers = Math.min(threads, files.length);
+    final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(2 * workers);
+    final AtomicBoolean cancelled = new AtomicBoolean();
+    ExecutorService executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "Loader");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    for (final String file : files) {
+      executor.execute(new Runnable() {
+        public void run() {
+          parse(file, queue, cancelled);
+        }
+      });
+    }
+    executor.shutdown();
+    long count = 0;
+    Throwable error = null;
+    int pending = files.length;
+    try {
+      while (pending > 0) {
+        Object batch = take(queue);
+        if (batch == DONE)
+          pending--;
+        else if (batch instanceof Throwable) {
+          if (error == null)
+            error = (Throwable)batch;
+          cancelled.set(true);
+        }
+        else if (!cancelled.get())
+          count += insert(batch);
+      }
+    }
+    finally {
+      if (pending > 0) {
+        // An insert failed: stop the workers, and let those blocked on the
+        // queue finish, so that no thread is left behind.
+        cancelled.set(true);
+        drain(queue, pending, executor);
+      }
+    }
+    if (error instanceof RuntimeException)
+      throw (RuntimeException)error;
+    if (error instanceof Error)
+      throw (Error)error;
+    if (error != null)
+      throw new RuntimeException(error);
+    return count;
+  }
+
+  /**
+   * Parses a file into batches. Runs on a worker thread.
+   *
+   * @param  file        the file to parse
+   * @param  queue       the queue to put the batches into
+   * @param  cancelled   whether the load has been cancelled
+   */
+  private void parse(String file, BlockingQueue<Object> queue, AtomicBoolean cancelled) {
+    try {
+      if (cancelled.get())
+        return;
+      final Batcher batcher = new Batcher(queue, cancelled);
+      Lang lang = Lang.guess(file, Lang.NTRIPLES);
+      if (lang.isQuads()) {
+        RiotReader.parseQuads(file, lang, null, batcher);
+      }
+      else {
+        RiotReader.parseTriples(file, lang, null, new Sink<Triple>() {
+          public void send(Triple triple) {
+            batcher.send(new Quad(Quad.defaultGraphNodeGenerated, triple));
+          }
+          public void flush() {
+            batcher.flush();
+          }
+          public void close() {}
+        });
+      }
+      batcher.flush();
+    }
+    catch (Throwable error) {
+      if (error != CANCELLED)
+        put(queue, error);
+    }
+    finally {
+      put(queue, DONE);
+    }
+  }
+
+  /**
+   * @param  batch       a list of quads, or a Ruby array of RDF::Statement instances
+   * @return the number of statements inserted
+   */
+  @SuppressWarnings("unchecked")
+  private int insert(Object batch) {
+    if (store != null) {
+      List<Quad> quads = (List<Quad>)batch;
+      store.add(quads);
+      return quads.size();
+    }
+    RubyArray statements = (RubyArray)batch;
+    repository.callMethod(factory.getCurrentContext(), "insert", statements.toJavaArray());
+    return statements.getLength();
+  }
+
+  /**
+   * @param  quads       the parsed quads
+   * @return the batch to hand over to the calling thread
+   */
+  private Object convert(List<Quad> quads) {
+    if (store != null)
+      return quads;
+    IRubyObject[] statements = new IRubyObject[quads.size()];
+    for (int i = 0; i < statements.length; i++) {
+      statements[i] = factory.newStatement(quads.get(i));
+    }
+    return factory.getRuntime().newArrayNoCopy(statements);
+  }
+
+  private static Object take(BlockingQueue<Object> queue) {
+    try {
+      return queue.take();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Discards batches until every worker still running has finished, or
+   * interrupts the workers if the calling thread is itself interrupted.
+   *
+   * @param  queue       the queue between the workers and the caller
+   * @param  pending     the number of workers that have not finished
+   * @param  executor    the executor running the workers
+   */
+  private static void drain(BlockingQueue<Object> queue, int pending, ExecutorService executor) {
+    try {
+      while (pending > 0) {
+        if (queue.take() == DONE)
+          pending--;
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Puts an element into the queue, blocking while the queue is full. The
+   * calling thread keeps draining the queue after a failure, so this never
+   * blocks indefinitely.
+   */
+  private static void put(BlockingQueue<Object> queue, Object element) {
+    try {
+      queue.put(element);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw CANCELLED;
+    }
+  }
+
+  /**
+   * Collects parsed quads into batches.
+   */
+  private class Batcher implements Sink<Quad> {
+    private final BlockingQueue<Object> queue;
+    private final AtomicBoolean cancelled;
+    private List<Quad> batch = new ArrayList<Quad>(batchSize);
+
+    Batcher(BlockingQueue<Object> queue, AtomicBoolean cancelled) {
+      this.queue     = queue;
+      this.cancelled = cancelled;
+    }
+
+    public void send(Quad quad) {
+      if (cancelled.get())
+        throw CANCELLED;
+      batch.add(quad);
+      if (batch.size() >= batchSize)
+        flush();
+    }
+
+    public void flush() {
+      if (batch.isEmpty())
+        return;
+      put(queue, convert(batch));
+      batch = new ArrayList<Quad>(batchSize);
+    }
+
+    public void close() {}
+  }
+}
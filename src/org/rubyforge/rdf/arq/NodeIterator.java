@@ -10,11 +10,24 @@ import com.hp.hpl.jena.graph.Node;
  * @author Arto Bendiken
  */
 public class NodeIterator extends org.rubyforge.rdf.EnumeratorIterator<Node> {
+  private Factory factory;
+
   /**
    * @see org.rubyforge.rdf.EnumeratorIterator#Constructor(RubyObject)
    */
   public NodeIterator(RubyObject object) {
     super(object);
+    this.factory = Factory.getInstance(object.getRuntime());
+  }
+
+  /**
+   * @param  object      a Ruby object responding to #to_enum
+   * @param  mode        the iteration mode
+   * @param  chunkSize   the number of values to convert per round trip
+   */
+  public NodeIterator(RubyObject object, Mode mode, int chunkSize) {
+    super(object, mode, chunkSize);
+    this.factory = Factory.getInstance(object.getRuntime());
   }
 
   /**
@@ -22,6 +35,7 @@ public class NodeIterator extends org.rubyforge.rdf.EnumeratorIterator<Node> {
    */
   public NodeIterator(RubyEnumerator enumerator) {
     super(enumerator);
+    this.factory = Factory.getInstance(enumerator.getRuntime());
   }
 
   /**
@@ -29,6 +43,6 @@ public class NodeIterator extends org.rubyforge.rdf.EnumeratorIterator<Node> {
    * @return an ARQ node instance
    */
   protected Node yield(RubyObject value) {
-    return Factory.newNode(value);
+    return factory.toNode(value);
   }
 }
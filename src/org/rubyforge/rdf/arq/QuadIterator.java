@@ -1,6 +1,7 @@
 package org.rubyforge.rdf.arq;
 
 import org.jruby.*;
+import java.util.List;
 import com.hp.hpl.jena.sparql.core.Quad;
 
 /**
@@ -10,11 +11,24 @@ import com.hp.hpl.jena.sparql.core.Quad;
  * @author Arto Bendiken
  */
 public class QuadIterator extends org.rubyforge.rdf.EnumeratorIterator<Quad> {
+  private Factory factory;
+
   /**
    * @see org.rubyforge.rdf.EnumeratorIterator#Constructor(RubyObject)
    */
   public QuadIterator(RubyObject object) {
     super(object);
+    this.factory = Factory.getInstance(object.getRuntime());
+  }
+
+  /**
+   * @param  object      a Ruby object responding to #to_enum
+   * @param  mode        the iteration mode
+   * @param  chunkSize   the number of statements to convert per round trip
+   */
+  public QuadIterator(RubyObject object, Mode mode, int chunkSize) {
+    super(object, mode, chunkSize);
+    this.factory = Factory.getInstance(object.getRuntime());
   }
 
   /**
@@ -22,6 +36,16 @@ public class QuadIterator extends org.rubyforge.rdf.EnumeratorIterator<Quad> {
    */
   public QuadIterator(RubyEnumerator enumerator) {
     super(enumerator);
+    this.factory = Factory.getInstance(enumerator.getRuntime());
+  }
+
+  /**
+   * @param  statements  a chunk of RDF::Statement instances
+   * @param  buffer      the buffer to append the ARQ quad instances to
+   */
+  @Override
+  protected void yield(RubyArray statements, List<Quad> buffer) {
+    buffer.addAll(factory.toQuads(statements));
   }
 
   /**
@@ -29,11 +53,6 @@ public class QuadIterator extends org.rubyforge.rdf.EnumeratorIterator<Quad> {
    * @return an ARQ quad instance
    */
   protected Quad yield(RubyObject statement) {
-    return new Quad(
-      Factory.newNode((RubyObject)statement.callMethod("context")),
-      Factory.newNode((RubyObject)statement.callMethod("subject")),
-      Factory.newNode((RubyObject)statement.callMethod("predicate")),
-      Factory.newNode((RubyObject)statement.callMethod("object"))
-    );
+    return factory.toQuad(statement);
   }
 }
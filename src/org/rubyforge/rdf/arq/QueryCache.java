@@ -0,0 +1,171 @@
+package org.rubyforge.rdf.arq;
+
+import org.rubyforge.rdf.Cache;
+import org.rubyforge.rdf.Metrics;
+
+/**
+ * Caches query plans keyed by their normalized SPARQL text, so that a
+ * query sent repeatedly is parsed and optimized only once.
+ *
+ * @author Arto Bendiken
+ */
+public class QueryCache {
+  public static final int DEFAULT_SIZE = Integer.getInteger("rdf.arq.query.cache", 1000);
+
+  private static QueryCache instance;
+
+  private final Cache<String, QueryPlan> plans;
+
+  /**
+   * @return the shared query cache
+   */
+  public static synchronized QueryCache getInstance() {
+    if (instance == null)
+      Metrics.registerCache("plans", (instance = new QueryCache(DEFAULT_SIZE)).plans);
+    return instance;
+  }
+
+  /**
+   * @param  size        the maximum number of cached plans
+   */
+  public QueryCache(int size) {
+    this.plans = new Cache<String, QueryPlan>(size);
+  }
+
+  /**
+   * Returns the plan for a query, parsing and optimizing it on a miss.
+   *
+   * @param  sparql      the SPARQL query text
+   * @return the query plan
+   */
+  public QueryPlan get(String sparql) {
+    String key = normalize(sparql);
+    QueryPlan plan = plans.get(key);
+    if (plan == null)
+      plans.put(key, plan = new QueryPlan(sparql));
+    return plan;
+  }
+
+  /**
+   * @return the cached plans
+   */
+  public Cache<String, QueryPlan> getPlans() {
+    return plans;
+  }
+
+  /**
+   * @param  size        the maximum number of cached plans, or 0 to disable caching
+   */
+  public void setSize(int size) {
+    plans.setCapacity(size);
+  }
+
+  /**
+   * @return the number of lookups that found a plan
+   */
+  public long getHits() {
+    return plans.getHits();
+  }
+
+  /**
+   * @return the number of lookups that parsed a query
+   */
+  public long getMisses() {
+    return plans.getMisses();
+  }
+
+  /**
+   * @return the number of plans evicted to stay within capacity
+   */
+  public long getEvictions() {
+    return plans.getEvictions();
+  }
+
+  /**
+   * Removes all cached plans.
+   */
+  public void clear() {
+    plans.clear();
+  }
+
+  /**
+   * Collapses runs of whitespace and strips comments, leaving string
+   * literals and IRIs untouched.
+   *
+   * @param  sparql      the SPARQL query text
+   * @return the normalized text
+   */
+  public static String normalize(String sparql) {
+    StringBuilder buffer = new StringBuilder(sparql.length());
+    int length = sparql.length();
+    boolean space = false;
+    for (int i = 0; i < length; i++) {
+      char c = sparql.charAt(i);
+      if (c == '"' || c == '\'') {
+        int end = skipString(sparql, i);
+        space = append(buffer, space);
+        buffer.append(sparql, i, end);
+        i = end - 1;
+      }
+      else if (c == '<' && isIRI(sparql, i)) {
+        int end = sparql.indexOf('>', i) + 1;
+        space = append(buffer, space);
+        buffer.append(sparql, i, end);
+        i = end - 1;
+      }
+      else if (c == '#') {
+        while (i + 1 < length && sparql.charAt(i + 1) != '\n' && sparql.charAt(i + 1) != '\r')
+          i++;
+        space = true;
+      }
+      else if (Character.isWhitespace(c)) {
+        space = true;
+      }
+      else {
+        space = append(buffer, space);
+        buffer.append(c);
+      }
+    }
+    return buffer.toString();
+  }
+
+  private static boolean append(StringBuilder buffer, boolean space) {
+    if (space && buffer.length() > 0)
+      buffer.append(' ');
+    return false;
+  }
+
+  /**
+   * @return the index just past the string literal starting at <code>start</code>
+   */
+  private static int skipString(String sparql, int start) {
+    char quote = sparql.charAt(start);
+    boolean isLong = sparql.startsWith(new String(new char[] {quote, quote, quote}), start);
+    int i = start + (isLong ? 3 : 1);
+    while (i < sparql.length()) {
+      char c = sparql.charAt(i);
+      if (c == '\\')
+        i += 2;
+      else if (c == quote && (!isLong || sparql.startsWith(new String(new char[] {quote, quote, quote}), i)))
+        return i + (isLong ? 3 : 1);
+      else
+        i++;
+    }
+    return sparql.length();
+  }
+
+  /**
+   * @return <code>true</code> if an IRI reference starts at <code>start</code>,
+   *         rather than a less-than operator
+   */
+  private static boolean isIRI(String sparql, int start) {
+    for (int i = start + 1; i < sparql.length(); i++) {
+      char c = sparql.charAt(i);
+      if (c == '>')
+        return true;
+      if (c <= ' ' || "<\"{}|^`\\".indexOf(c) >= 0)
+        return false;
+    }
+    return false;
+  }
+}
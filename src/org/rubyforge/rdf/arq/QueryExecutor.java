@@ -0,0 +1,292 @@
+package org.rubyforge.rdf.arq;
+
+import org.jruby.*;
+import org.jruby.runtime.builtin.IRubyObject;
+import java.util.List;
+import java.util.Map;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.sparql.core.DatasetGraphFactory;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+
+/**
+ * Executes SPARQL queries over wrapped RDF.rb graphs and repositories.
+ *
+ * <code>SELECT</code> queries return their solutions, and
+ * <code>CONSTRUCT</code> and <code>DESCRIBE</code> queries their triples,
+ * streamed as they are read.
+ *
+ * Query plans are taken from the shared {@link QueryCache}, so that
+ * repeated queries are neither parsed nor optimized again. When the shared
+ * {@link ResultCache} is enabled, the solutions of queries against a graph
+ * extended with <code>RDF::ARQ::Versioned</code> are cached as well. Any
+ * query may instead be traced, to find out where its time is spent; see
+ * {@link QueryTrace}.
+ *
+ * @author Arto Bendiken
+ */
+public class QueryExecutor {
+  /**
+   * @param  graph       the graph to query
+   * @param  sparql      the SPARQL <code>SELECT</code> query
+   * @return the solutions, streamed
+   */
+  public static SolutionIterator select(Graph graph, String sparql) {
+    return select(graph, sparql, null);
+  }
+
+  /**
+   * @param  graph       the graph to query
+   * @param  sparql      the SPARQL <code>SELECT</code> query
+   * @param  bindings    a Ruby hash of parameter values keyed by variable
+   *                     name, or <code>null</code>
+   * @return the solutions, streamed
+   */
+  public static SolutionIterator select(Graph graph, String sparql,
+      Map<?, ?> bindings) {
+    QueryPlan plan = getSelectPlan(sparql);
+    Factory factory = graph.getFactory();
+    Binding binding = newBinding(factory, bindings);
+    ResultCache cache = ResultCache.getInstance();
+    // Changes made from Ruby to other graphs would go unnoticed.
+    if (!cache.isEnabled() || !graph.isVersioned()) {
+      return new SolutionIterator(plan.execute(newDataset(graph), binding),
+        plan.getResultVars(), factory);
+    }
+    ResultCache.Key key =
+      new ResultCache.Key(plan, binding, graph, graph.getVersion());
+    List<Binding> solutions = cache.get(key);
+    if (solutions != null) {
+      return new SolutionIterator(
+        new QueryIterPlainWrapper(solutions.iterator()),
+        plan.getResultVars(), factory);
+    }
+    SolutionIterator iterator = new SolutionIterator(
+      plan.execute(newDataset(graph), binding), plan.getResultVars(), factory);
+    iterator.record(cache, key);
+    return iterator;
+  }
+
+  /**
+   * @param  dataset     the dataset to query
+   * @param  sparql      the SPARQL <code>SELECT</code> query
+   * @return the solutions, streamed
+   */
+  public static SolutionIterator select(DatasetGraph dataset, String sparql) {
+    return select(dataset, sparql, null);
+  }
+
+  /**
+   * @param  dataset     the dataset to query
+   * @param  sparql      the SPARQL <code>SELECT</code> query
+   * @param  bindings    a Ruby hash of parameter values keyed by variable
+   *                     name, or <code>null</code>
+   * @return the solutions, streamed
+   */
+  public static SolutionIterator select(DatasetGraph dataset, String sparql,
+      Map<?, ?> bindings) {
+    QueryPlan plan = getSelectPlan(sparql);
+    Factory factory = dataset.getFactory();
+    return new SolutionIterator(
+      plan.execute(dataset, newBinding(factory, bindings)),
+      plan.getResultVars(), factory);
+  }
+
+  /**
+   * @param  store       the store to query
+   * @param  sparql      the SPARQL <code>SELECT</code> query
+   * @param  bindings    a Ruby hash of parameter values keyed by variable
+   *                     name, or <code>null</code>
+   * @param  named       whether to query contexts as named graphs, rather
+   *                     than all statements as the default graph
+   * @return the solutions, streamed
+   */
+  public static SolutionIterator select(Store store, String sparql,
+      Map<?, ?> bindings, boolean named) {
+    QueryPlan plan = getSelectPlan(sparql);
+    Factory factory = store.getFactory();
+    return new SolutionIterator(
+      plan.execute(newDataset(store, named), newBinding(factory, bindings)),
+      plan.getResultVars(), factory);
+  }
+
+  /**
+   * @param  graph       the graph to query
+   * @param  sparql      the SPARQL <code>CONSTRUCT</code> or
+   *                     <code>DESCRIBE</code> query
+   * @param  bindings    a Ruby hash of parameter values keyed by variable
+   *                     name, or <code>null</code>
+   * @return the triples, streamed
+   */
+  public static TripleStream triples(Graph graph, String sparql,
+      Map<?, ?> bindings) {
+    QueryPlan plan = QueryCache.getInstance().get(sparql);
+    Factory factory = graph.getFactory();
+    return new TripleStream(plan, newDataset(graph),
+      newBinding(factory, bindings), factory);
+  }
+
+  /**
+   * @param  dataset     the dataset to query
+   * @param  sparql      the SPARQL <code>CONSTRUCT</code> or
+   *                     <code>DESCRIBE</code> query
+   * @param  bindings    a Ruby hash of parameter values keyed by variable
+   *                     name, or <code>null</code>
+   * @return the triples, streamed
+   */
+  public static TripleStream triples(DatasetGraph dataset, String sparql,
+      Map<?, ?> bindings) {
+    QueryPlan plan = QueryCache.getInstance().get(sparql);
+    Factory factory = dataset.getFactory();
+    return new TripleStream(plan, dataset, newBinding(factory, bindings),
+      factory);
+  }
+
+  /**
+   * @param  store       the store to query
+   * @param  sparql      the SPARQL <code>CONSTRUCT</code> or
+   *                     <code>DESCRIBE</code> query
+   * @param  bindings    a Ruby hash of parameter values keyed by variable
+   *                     name, or <code>null</code>
+   * @param  named       whether to query contexts as named graphs, rather
+   *                     than all statements as the default graph
+   * @return the triples, streamed
+   */
+  public static TripleStream triples(Store store, String sparql,
+      Map<?, ?> bindings, boolean named) {
+    QueryPlan plan = QueryCache.getInstance().get(sparql);
+    Factory factory = store.getFactory();
+    return new TripleStream(plan, newDataset(store, named),
+      newBinding(factory, bindings), factory);
+  }
+
+  /**
+   * Executes a query to completion while recording a profile of each of
+   * its operators. The result cache is bypassed.
+   *
+   * @param  graph       the graph to query
+   * @param  sparql      the SPARQL query
+   * @param  bindings    a Ruby hash of parameter values keyed by variable
+   *                     name, or <code>null</code>
+   * @return the trace of the execution
+   * @see    QueryTrace
+   */
+  public static QueryTrace trace(Graph graph, String sparql,
+      Map<?, ?> bindings) {
+    return trace(newDataset(graph), sparql,
+      newBinding(graph.getFactory(), bindings));
+  }
+
+  /**
+   * @param  dataset     the dataset to query
+   * @param  sparql      the SPARQL query
+   * @param  bindings    a Ruby hash of parameter values keyed by variable
+   *                     name, or <code>null</code>
+   * @return the trace of the execution
+   * @see    #trace(Graph, String, Map)
+   */
+  public static QueryTrace trace(DatasetGraph dataset, String sparql,
+      Map<?, ?> bindings) {
+    return trace(dataset, sparql, newBinding(dataset.getFactory(), bindings));
+  }
+
+  /**
+   * @param  store       the store to query
+   * @param  sparql      the SPARQL query
+   * @param  bindings    a Ruby hash of parameter values keyed by variable
+   *                     name, or <code>null</code>
+   * @param  named       whether to query contexts as named graphs, rather
+   *                     than all statements as the default graph
+   * @return the trace of the execution
+   * @see    #trace(Graph, String, Map)
+   */
+  public static QueryTrace trace(Store store, String sparql,
+      Map<?, ?> bindings, boolean named) {
+    return trace(newDataset(store, named), sparql,
+      newBinding(store.getFactory(), bindings));
+  }
+
+  private static QueryTrace trace(
+      com.hp.hpl.jena.sparql.core.DatasetGraph dataset, String sparql,
+      Binding binding) {
+    QueryPlan plan = QueryCache.getInstance().get(sparql);
+    QueryTrace trace = new QueryTrace();
+    long start = System.nanoTime(), rows = 0;
+    QueryIterator solutions = plan.execute(dataset, binding, trace);
+    try {
+      while (solutions.hasNext()) {
+        solutions.nextBinding();
+        rows++;
+      }
+    }
+    finally {
+      solutions.close();
+    }
+    trace.finish(rows, System.nanoTime() - start);
+    return trace;
+  }
+
+  private static com.hp.hpl.jena.sparql.core.DatasetGraph newDataset(
+      Graph graph) {
+    return DatasetGraphFactory.createOneGraph(graph);
+  }
+
+  private static com.hp.hpl.jena.sparql.core.DatasetGraph newDataset(
+      Store store, boolean named) {
+    return named ? store.getDataset()
+      : DatasetGraphFactory.createOneGraph(store.getUnionGraph());
+  }
+
+  /**
+   * Returns the names of the variables a <code>SELECT</code> query
+   * projects, from its cached plan, without executing it.
+   *
+   * @param  sparql      the SPARQL <code>SELECT</code> query
+   * @return the names of the projected variables
+   */
+  public static List<String> getVariableNames(String sparql) {
+    return getSelectPlan(sparql).getResultVars();
+  }
+
+  private static QueryPlan getSelectPlan(String sparql) {
+    QueryPlan plan = QueryCache.getInstance().get(sparql);
+    if (!plan.getQuery().isSelectType())
+      throw new IllegalArgumentException("expected a SELECT query");
+    return plan;
+  }
+
+  /**
+   * @param  factory     the factory used to convert values
+   * @param  bindings    RDF::Value instances or Jena nodes keyed by
+   *                     variable name, or <code>null</code>
+   * @return an ARQ binding
+   */
+  static Binding newBinding(final Factory factory, Map<?, ?> bindings) {
+    final Binding binding = new BindingMap();
+    if (bindings instanceof RubyHash) {
+      // Visit the Ruby hash directly to avoid converting keys and values to
+      // Java objects.
+      ((RubyHash)bindings).visitAll(new RubyHash.Visitor() {
+        public void visit(IRubyObject key, IRubyObject value) {
+          Node node = factory.toNode(value);
+          if (node != null)
+            binding.add(Var.alloc(key.asJavaString()), node);
+        }
+      });
+    }
+    else if (bindings != null) {
+      for (Map.Entry<?, ?> entry : bindings.entrySet()) {
+        Object value = entry.getValue();
+        Node node = (value instanceof Node) ? (Node)value
+          : (value instanceof IRubyObject) ? factory.toNode((IRubyObject)value)
+          : null;
+        if (node != null)
+          binding.add(Var.alloc(entry.getKey().toString()), node);
+      }
+    }
+    return binding;
+  }
+}
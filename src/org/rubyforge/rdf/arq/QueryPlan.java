@@ -0,0 +1,115 @@
+package org.rubyforge.rdf.arq;
+
+import java.util.List;
+import com.hp.hpl.jena.query.ARQ;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.sparql.ARQConstants;
+import com.hp.hpl.jena.sparql.algebra.Algebra;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.sparql.core.Substitute;
+import com.hp.hpl.jena.sparql.engine.ExecutionContext;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterRoot;
+import com.hp.hpl.jena.sparql.engine.main.QC;
+import com.hp.hpl.jena.sparql.util.Context;
+import com.hp.hpl.jena.sparql.util.NodeFactory;
+
+/**
+ * A parsed SPARQL query together with its optimized algebra expression.
+ *
+ * Plans are immutable and may be executed any number of times, from any
+ * thread, against any dataset. Parameters are supplied as an initial
+ * binding, which is substituted into the algebra expression in the same
+ * way that ARQ's main query engine handles initial bindings.
+ *
+ * ARQ's aggregators keep their groups in the aggregator itself, so a
+ * query with aggregates is compiled afresh for each execution instead of
+ * sharing one algebra expression between concurrent executions.
+ *
+ * @author Arto Bendiken
+ */
+public class QueryPlan {
+  private final String sparql;
+  private final Query query;
+  private final Op op;
+
+  /**
+   * @param  sparql      the SPARQL query text
+   */
+  public QueryPlan(String sparql) {
+    this(QueryFactory.create(sparql), sparql);
+  }
+
+  /**
+   * @param  query       the parsed SPARQL query
+   */
+  public QueryPlan(Query query) {
+    this(query, null);
+  }
+
+  private QueryPlan(Query query, String sparql) {
+    query.setResultVars();
+    this.sparql = sparql;
+    this.query  = query;
+    this.op     = Algebra.optimize(Algebra.compile(query));
+  }
+
+  /**
+   * @return the parsed query
+   */
+  public Query getQuery() {
+    return query;
+  }
+
+  /**
+   * @return the optimized algebra expression
+   */
+  public Op getOp() {
+    return op;
+  }
+
+  /**
+   * @return the names of the projected variables
+   */
+  public List<String> getResultVars() {
+    return query.getResultVars();
+  }
+
+  /**
+   * @param  dataset     the dataset to query
+   * @param  binding     the parameter values, or an empty binding
+   * @return the solutions, streamed
+   */
+  public QueryIterator execute(DatasetGraph dataset, Binding binding) {
+    return execute(dataset, binding, null);
+  }
+
+  /**
+   * @param  dataset     the dataset to query
+   * @param  binding     the parameter values, or an empty binding
+   * @param  trace       the trace to record the execution into, or <code>null</code>
+   * @return the solutions, streamed
+   */
+  public QueryIterator execute(DatasetGraph dataset, Binding binding, QueryTrace trace) {
+    Context context = ARQ.getContext().copy();
+    if (dataset.getContext() != null)
+      context.putAll(dataset.getContext());
+    context.set(ARQConstants.sysCurrentTime, NodeFactory.nowAsDateTime());
+    Op op = query.hasAggregators() ? compile() : this.op;
+    if (!binding.isEmpty())
+      op = Substitute.substitute(op, binding);
+    if (trace != null)
+      QC.setFactory(context, trace.getFactory());
+    ExecutionContext execution = new ExecutionContext(context, dataset.getDefaultGraph(), dataset, QC.getFactory(context));
+    return QC.execute(op, QueryIterRoot.create(binding, execution), execution);
+  }
+
+  private Op compile() {
+    Query query = (sparql != null) ? QueryFactory.create(sparql) : this.query.cloneQuery();
+    query.setResultVars();
+    return Algebra.optimize(Algebra.compile(query));
+  }
+}
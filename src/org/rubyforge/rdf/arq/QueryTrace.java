@@ -0,0 +1,410 @@
+package org.rubyforge.rdf.arq;
+
+import org.rubyforge.rdf.Metrics;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.op.Op0;
+import com.hp.hpl.jena.sparql.algebra.op.Op1;
+import com.hp.hpl.jena.sparql.algebra.op.Op2;
+import com.hp.hpl.jena.sparql.algebra.op.OpBGP;
+import com.hp.hpl.jena.sparql.algebra.op.OpN;
+import com.hp.hpl.jena.sparql.engine.ExecutionContext;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIteratorWrapper;
+import com.hp.hpl.jena.sparql.engine.main.OpExecutor;
+import com.hp.hpl.jena.sparql.engine.main.OpExecutorFactory;
+
+/**
+ * A profile of one query execution, as the query's algebra expression
+ * annotated per operator.
+ *
+ * Each operator records the rows it produced, the triple patterns it
+ * matched against the RDF::Graph, the time spent in calls into Ruby and
+ * the time spent in Java, joining, filtering and converting, and the
+ * statements converted between Ruby and Java together with the bytes
+ * allocated to convert them. Times are exclusive of the operator's
+ * children, so that they add up to the time of the whole query.
+ *
+ * Operators are timed by wrapping the query iterator of each operator
+ * that ARQ's {@link OpExecutor} builds. Ruby calls, pattern matches and
+ * conversions are received as a {@link Metrics.Tracer} installed on the
+ * executing thread while one of the operators is running. Operators that
+ * ARQ executes again for each input binding, with the binding substituted
+ * in, such as the right-hand side of an <code>OPTIONAL</code>, are merged
+ * into one operator showing the expression before substitution.
+ * Allocations are measured with the JVM's per-thread allocation counter,
+ * where available.
+ *
+ * @see    QueryExecutor#trace(Graph, String, java.util.Map)
+ * @author Arto Bendiken
+ */
+public class QueryTrace implements Metrics.Tracer {
+  private final List<Operator> roots = new ArrayList<Operator>();
+  private final LinkedList<Frame> stack = new LinkedList<Frame>();
+  private Metrics.Tracer previous;
+  private long rows;
+  private long nanos;
+
+  /**
+   * @return the factory of operator executors that record into this trace
+   */
+  OpExecutorFactory getFactory() {
+    return new OpExecutorFactory() {
+      public OpExecutor create(ExecutionContext execCxt) {
+        return new Executor(execCxt);
+      }
+    };
+  }
+
+  /**
+   * @return the outermost operator of the algebra expression, or <code>null</code> if nothing was executed
+   */
+  public Operator getRoot() {
+    return roots.isEmpty() ? null : roots.get(0);
+  }
+
+  /**
+   * @return the number of solutions of the query
+   */
+  public long getRows() {
+    return rows;
+  }
+
+  /**
+   * @return the time taken by the query, in nanoseconds
+   */
+  public long getNanos() {
+    return nanos;
+  }
+
+  /**
+   * @param  rows        the number of solutions of the query
+   * @param  nanos       the time taken by the query, in nanoseconds
+   */
+  void finish(long rows, long nanos) {
+    this.rows  = rows;
+    this.nanos = nanos;
+  }
+
+  /**
+   * @see org.rubyforge.rdf.Metrics.Tracer#called(Metrics.Call, long)
+   */
+  public void called(Metrics.Call call, long nanos) {
+    Frame frame = stack.peek();
+    if (frame != null) {
+      frame.ruby += nanos;
+      frame.operator.calls++;
+    }
+  }
+
+  /**
+   * @see org.rubyforge.rdf.Metrics.Tracer#probed(int)
+   */
+  public void probed(int patterns) {
+    Frame frame = stack.peek();
+    if (frame != null)
+      frame.operator.probes += patterns;
+  }
+
+  /**
+   * @see org.rubyforge.rdf.Metrics.Tracer#converted(int, long)
+   */
+  public void converted(int count, long bytes) {
+    Frame frame = stack.peek();
+    if (frame != null) {
+      frame.operator.conversions += count;
+      frame.operator.conversionBytes += bytes;
+    }
+  }
+
+  /**
+   * Renders the annotated algebra expression, one operator per line.
+   */
+  @Override
+  public String toString() {
+    StringBuilder buffer = new StringBuilder();
+    buffer.append(String.format(Locale.ROOT, "%d rows in %.3f ms%n", rows, nanos / 1e6));
+    for (Operator root : roots) {
+      root.append(buffer, 0);
+    }
+    return buffer.toString();
+  }
+
+  private Operator open(Op op) {
+    Frame frame = stack.peek();
+    List<Operator> siblings = (frame != null) ? frame.operator.children : roots;
+    Op template = (frame != null) ? template(frame.operator.op, op) : op;
+    for (Operator operator : siblings) {
+      if (operator.op == template)
+        return operator;
+    }
+    Operator operator = new Operator(template);
+    siblings.add(operator);
+    return operator;
+  }
+
+  /**
+   * @param  parent      the expression of the executing operator
+   * @param  op          the expression being executed
+   * @return the operand of <code>parent</code> that <code>op</code> was
+   *         substituted from, or <code>op</code> itself
+   */
+  private static Op template(Op parent, Op op) {
+    List<Op> operands = operands(parent);
+    for (Op operand : operands) {
+      if (operand == op)
+        return op;
+    }
+    String shape = shape(op);
+    // Substitutions happen in the operands evaluated last, such as the right-hand side of a conditional.
+    for (int i = operands.size() - 1; i >= 0; i--) {
+      if (shape(operands.get(i)).equals(shape))
+        return operands.get(i);
+    }
+    return op;
+  }
+
+  private static List<Op> operands(Op op) {
+    List<Op> operands = new ArrayList<Op>();
+    if (op instanceof Op1)
+      operands.add(((Op1)op).getSubOp());
+    else if (op instanceof Op2) {
+      operands.add(((Op2)op).getLeft());
+      operands.add(((Op2)op).getRight());
+    }
+    else if (op instanceof OpN)
+      operands.addAll(((OpN)op).getElements());
+    return operands;
+  }
+
+  private void enter(Operator operator) {
+    if (stack.isEmpty())
+      previous = Metrics.setTracer(this);
+    stack.push(new Frame(operator));
+  }
+
+  private void exit() {
+    Frame frame = stack.pop();
+    long elapsed = System.nanoTime() - frame.start;
+    frame.operator.rubyNanos += frame.ruby;
+    frame.operator.javaNanos += Math.max(0, elapsed - frame.children - frame.ruby);
+    Frame parent = stack.peek();
+    if (parent != null)
+      parent.children += elapsed;
+    else
+      Metrics.setTracer(previous);
+  }
+
+  /**
+   * @return the operator names of <code>op</code> and its descendants,
+   *         which stay the same when values are substituted into it
+   */
+  private static String shape(Op op) {
+    StringBuilder buffer = new StringBuilder(op.getName());
+    if (op instanceof OpBGP)
+      buffer.append(((OpBGP)op).getPattern().size());
+    List<Op> operands = operands(op);
+    if (!operands.isEmpty()) {
+      buffer.append('(');
+      for (Op operand : operands) {
+        buffer.append(shape(operand)).append(' ');
+      }
+      buffer.setCharAt(buffer.length() - 1, ')');
+    }
+    return buffer.toString();
+  }
+
+  /**
+   * The measurements of one operator of the algebra expression.
+   */
+  public static class Operator {
+    private final Op op;
+    private final List<Operator> children = new ArrayList<Operator>();
+    private long rows;
+    private long probes;
+    private long calls;
+    private long rubyNanos;
+    private long javaNanos;
+    private long conversions;
+    private long conversionBytes;
+
+    Operator(Op op) {
+      this.op = op;
+    }
+
+    /**
+     * @return the algebra expression of this operator
+     */
+    public Op getOp() {
+      return op;
+    }
+
+    /**
+     * @return the operators executed by this operator
+     */
+    public List<Operator> getChildren() {
+      return Collections.unmodifiableList(children);
+    }
+
+    /**
+     * @return the number of rows produced
+     */
+    public long getRows() {
+      return rows;
+    }
+
+    /**
+     * @return the number of triple patterns matched against the RDF::Graph
+     */
+    public long getProbes() {
+      return probes;
+    }
+
+    /**
+     * @return the number of calls into Ruby
+     */
+    public long getCalls() {
+      return calls;
+    }
+
+    /**
+     * @return the time spent in calls into Ruby, in nanoseconds
+     */
+    public long getRubyNanos() {
+      return rubyNanos;
+    }
+
+    /**
+     * @return the time spent in Java, excluding calls into Ruby, in nanoseconds
+     */
+    public long getJavaNanos() {
+      return javaNanos;
+    }
+
+    /**
+     * @return the number of statements converted between Ruby and Java
+     */
+    public long getConversions() {
+      return conversions;
+    }
+
+    /**
+     * @return the bytes allocated to convert statements, or 0 if unknown
+     */
+    public long getConversionBytes() {
+      return conversionBytes;
+    }
+
+    void append(StringBuilder buffer, int depth) {
+      for (int i = 0; i < depth; i++) {
+        buffer.append("  ");
+      }
+      buffer.append(label(op));
+      buffer.append(String.format(Locale.ROOT, "  rows=%d probes=%d calls=%d ruby=%.3fms java=%.3fms converted=%d (%d bytes)%n",
+        rows, probes, calls, rubyNanos / 1e6, javaNanos / 1e6, conversions, conversionBytes));
+      for (Operator child : children) {
+        child.append(buffer, depth + 1);
+      }
+    }
+
+    /**
+     * @return the whole expression of a leaf operator, or the first line of
+     *         any other, which names the operator and its arguments
+     */
+    private static String label(Op op) {
+      String sse = op.toString().trim();
+      if (op instanceof Op0)
+        return sse.replaceAll("\\s+", " ");
+      int newline = sse.indexOf('\n');
+      return (newline < 0) ? sse : sse.substring(0, newline).trim();
+    }
+  }
+
+  /**
+   * An operator running on the executing thread.
+   */
+  private static class Frame {
+    final Operator operator;
+    final long start = System.nanoTime();
+    long children;
+    long ruby;
+
+    Frame(Operator operator) {
+      this.operator = operator;
+    }
+  }
+
+  /**
+   * Builds the query iterator of each operator within a frame of its own,
+   * and wraps it to time the operator as it runs.
+   */
+  private class Executor extends OpExecutor {
+    Executor(ExecutionContext execCxt) {
+      super(execCxt);
+    }
+
+    @Override
+    public QueryIterator executeOp(Op op, QueryIterator input) {
+      Operator operator = open(op);
+      enter(operator);
+      try {
+        return new Iterator(super.executeOp(op, input), operator);
+      }
+      finally {
+        exit();
+      }
+    }
+  }
+
+  /**
+   * Times an operator's query iterator and counts its rows.
+   */
+  private class Iterator extends QueryIteratorWrapper {
+    private final Operator operator;
+
+    Iterator(QueryIterator iterator, Operator operator) {
+      super(iterator);
+      this.operator = operator;
+    }
+
+    @Override
+    protected boolean hasNextBinding() {
+      enter(operator);
+      try {
+        return super.hasNextBinding();
+      }
+      finally {
+        exit();
+      }
+    }
+
+    @Override
+    protected Binding moveToNextBinding() {
+      enter(operator);
+      try {
+        Binding binding = super.moveToNextBinding();
+        operator.rows++;
+        return binding;
+      }
+      finally {
+        exit();
+      }
+    }
+
+    @Override
+    protected void closeIterator() {
+      enter(operator);
+      try {
+        super.closeIterator();
+      }
+      finally {
+        exit();
+      }
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package org.rubyforge.rdf.arq;
+
+import com.hp.hpl.jena.graph.GraphStatisticsHandler;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.sparql.engine.optimizer.reorder.PatternElements;
+import com.hp.hpl.jena.sparql.engine.optimizer.reorder.PatternTriple;
+import com.hp.hpl.jena.sparql.engine.optimizer.reorder.ReorderTransformationBase;
+import com.hp.hpl.jena.sparql.sse.Item;
+
+/**
+ * Reorders basic graph patterns by their estimated cardinality, most
+ * selective pattern first.
+ *
+ * Estimates come from a graph statistics handler. A position bound by an
+ * earlier pattern in the reordered BGP is not known in advance, so the
+ * estimate for the pattern with that position unbound is divided by a
+ * fixed selectivity factor for the position.
+ *
+ * @author Arto Bendiken
+ */
+public class Reorder extends ReorderTransformationBase {
+  private static final double SUBJECT_FACTOR   = 100;
+  private static final double PREDICATE_FACTOR = 2;
+  private static final double OBJECT_FACTOR    = 10;
+
+  private GraphStatisticsHandler statistics;
+
+  /**
+   * @param  statistics  the statistics to estimate cardinalities with
+   */
+  public Reorder(GraphStatisticsHandler statistics) {
+    super();
+    this.statistics = statistics;
+  }
+
+  /**
+   * @see com.hp.hpl.jena.sparql.engine.optimizer.reorder.ReorderTransformationBase#weight(PatternTriple)
+   */
+  @Override
+  protected double weight(PatternTriple pattern) {
+    long count = statistics.getStatistic(node(pattern.subject), node(pattern.predicate), node(pattern.object));
+    if (count < 0)
+      return defaultWeight(pattern);
+    double weight = count;
+    if (isBound(pattern.subject))
+      weight /= SUBJECT_FACTOR;
+    if (isBound(pattern.predicate))
+      weight /= PREDICATE_FACTOR;
+    if (isBound(pattern.object))
+      weight /= OBJECT_FACTOR;
+    return weight;
+  }
+
+  /**
+   * @param  item        a pattern element
+   * @return the concrete node, or <code>Node.ANY</code>
+   */
+  private static Node node(Item item) {
+    if (item.isNode() && item.getNode().isConcrete())
+      return item.getNode();
+    return Node.ANY;
+  }
+
+  /**
+   * @param  item        a pattern element
+   * @return <code>true</code> if bound by an earlier pattern
+   */
+  private static boolean isBound(Item item) {
+    return item.equals(PatternElements.TERM);
+  }
+}
@@ -0,0 +1,257 @@
+package org.rubyforge.rdf.arq;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.rubyforge.rdf.Metrics;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+
+/**
+ * Caches the solutions of queries against arq.Graph instances.
+ *
+ * Entries are keyed by the query plan, the parameter values, the graph and
+ * the graph's mutation version, so any change to the graph makes its older
+ * entries unreachable; these then age out. Only graphs extended with
+ * <code>RDF::ARQ::Versioned</code> change their version when changed from
+ * Ruby, so only their results should be cached. Keys hold their graph
+ * weakly, so that cached results do not keep discarded graphs alive.
+ * Entries are weighed by their estimated memory footprint, and the least
+ * recently used ones are evicted once the total weight exceeds the
+ * maximum. Only queries that are read to exhaustion are cached.
+ *
+ * The cache is disabled unless a maximum weight is set, either with
+ * {@link #setMaxWeight(long)} or the <code>rdf.arq.result.cache</code>
+ * system property.
+ *
+ * @author Arto Bendiken
+ */
+public class ResultCache implements Metrics.CacheStatistics {
+  public static final long DEFAULT_MAX_WEIGHT = Long.getLong("rdf.arq.result.cache", 0);
+
+  private static ResultCache instance;
+
+  private final LinkedHashMap<Key, List<Binding>> entries = new LinkedHashMap<Key, List<Binding>>(16, 0.75f, true);
+  private final Map<Key, Long> weights = new HashMap<Key, Long>();
+  private volatile long maxWeight;
+  private long weight;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /**
+   * @return the shared result cache
+   */
+  public static synchronized ResultCache getInstance() {
+    if (instance == null)
+      Metrics.registerCache("results", instance = new ResultCache(DEFAULT_MAX_WEIGHT));
+    return instance;
+  }
+
+  /**
+   * @param  maxWeight   the maximum total weight in bytes, or 0 to disable caching
+   */
+  public ResultCache(long maxWeight) {
+    this.maxWeight = Math.max(0, maxWeight);
+  }
+
+  /**
+   * @return <code>true</code> if results are cached
+   */
+  public boolean isEnabled() {
+    return maxWeight > 0;
+  }
+
+  /**
+   * @return the maximum total weight in bytes
+   */
+  public synchronized long getMaxWeight() {
+    return maxWeight;
+  }
+
+  /**
+   * @param  maxWeight   the maximum total weight in bytes, or 0 to disable caching
+   */
+  public synchronized void setMaxWeight(long maxWeight) {
+    this.maxWeight = Math.max(0, maxWeight);
+    evict();
+  }
+
+  /**
+   * @return the estimated total weight of the cached results in bytes
+   */
+  public synchronized long getWeight() {
+    return weight;
+  }
+
+  /**
+   * @return the number of cached results
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * @param  key         the cache key
+   * @return the cached solutions, or <code>null</code>
+   */
+  public synchronized List<Binding> get(Key key) {
+    List<Binding> solutions = entries.get(key);
+    if (solutions != null) hits++; else misses++;
+    return solutions;
+  }
+
+  /**
+   * @param  key         the cache key
+   * @param  solutions   the solutions
+   * @param  weight      the estimated weight of the solutions in bytes
+   */
+  public synchronized void put(Key key, List<Binding> solutions, long weight) {
+    if (weight > maxWeight)
+      return;
+    Long previous = weights.put(key, weight);
+    if (previous != null)
+      this.weight -= previous;
+    entries.put(key, solutions);
+    this.weight += weight;
+    evict();
+  }
+
+  /**
+   * Removes all cached results.
+   */
+  public synchronized void clear() {
+    entries.clear();
+    weights.clear();
+    weight = 0;
+  }
+
+  /**
+   * @return the number of lookups that found cached results
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * @return the number of lookups that found no cached results
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * @return the number of results evicted to stay within the maximum weight
+   */
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * Resets the hit, miss and eviction counters.
+   */
+  public synchronized void resetStatistics() {
+    hits = misses = evictions = 0;
+  }
+
+  private void evict() {
+    Iterator<Key> keys = entries.keySet().iterator();
+    while (weight > maxWeight && keys.hasNext()) {
+      Key key = keys.next();
+      keys.remove();
+      weight -= weights.remove(key);
+      evictions++;
+    }
+  }
+
+  /**
+   * Copies a solution, keeping only the projected variables, so that the
+   * cached copy does not hold on to the rest of the query's state.
+   *
+   * @param  binding     the solution
+   * @param  vars        the projected variables
+   * @return the copy
+   */
+  static Binding copy(Binding binding, List<Var> vars) {
+    Binding copy = new BindingMap();
+    for (Var var : vars) {
+      Node node = binding.get(var);
+      if (node != null)
+        copy.add(var, node);
+    }
+    return copy;
+  }
+
+  /**
+   * @param  binding     a solution
+   * @return its estimated weight in bytes
+   */
+  static long weigh(Binding binding) {
+    long weight = 64;
+    Iterator<Var> vars = binding.vars();
+    while (vars.hasNext()) {
+      weight += 48 + weigh(binding.get(vars.next()));
+    }
+    return weight;
+  }
+
+  private static long weigh(Node node) {
+    if (node == null)
+      return 0;
+    if (node.isURI())
+      return 32 + 2 * node.getURI().length();
+    if (node.isLiteral())
+      return 64 + 2 * node.getLiteralLexicalForm().length();
+    return 48;
+  }
+
+  /**
+   * Identifies the results of a query plan with given parameter values
+   * against a given version of a graph.
+   */
+  public static final class Key {
+    private final QueryPlan plan;
+    private final Map<Var, Node> parameters;
+    private final WeakReference<Graph> graph;
+    private final int graphHash;
+    private final long version;
+
+    /**
+     * @param  plan        the query plan
+     * @param  parameters  the parameter values
+     * @param  graph       the graph queried
+     * @param  version     the graph's mutation version
+     */
+    public Key(QueryPlan plan, Binding parameters, Graph graph, long version) {
+      this.plan       = plan;
+      this.parameters = new HashMap<Var, Node>();
+      this.graph      = new WeakReference<Graph>(graph);
+      this.graphHash  = System.identityHashCode(graph);
+      this.version    = version;
+      Iterator<Var> vars = parameters.vars();
+      while (vars.hasNext()) {
+        Var var = vars.next();
+        this.parameters.put(var, parameters.get(var));
+      }
+    }
+
+    @Override
+    public int hashCode() {
+      return (System.identityHashCode(plan) * 31 + graphHash) * 31 + parameters.hashCode() + (int)(version ^ (version >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key))
+        return false;
+      Key key = (Key)other;
+      Graph graph = this.graph.get();
+      return key.plan == plan && graph != null && key.graph.get() == graph && key.version == version && key.parameters.equals(parameters);
+    }
+  }
+}
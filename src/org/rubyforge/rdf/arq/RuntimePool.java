@@ -0,0 +1,313 @@
+package org.rubyforge.rdf.arq;
+
+import org.jruby.*;
+import org.jruby.exceptions.RaiseException;
+import org.jruby.runtime.builtin.IRubyObject;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * A pool of independent JRuby runtimes, each holding its own copy of an
+ * RDF.rb graph or repository, for executing queries in parallel.
+ *
+ * A query against an RDF.rb graph converts and enumerates values on the
+ * graph's runtime, so queries against one graph share that runtime's
+ * locks and caches. A pool instead leases each query a runtime of its own
+ * for as long as the query runs, along with the runtime's
+ * {@link Factory} and a {@link Graph} over its copy of the data, so
+ * independent queries do not contend with one another. The copies must
+ * only be read while the pool is in use.
+ *
+ * Each runtime is created the first time it is needed, by evaluating a
+ * Ruby script that returns the graph or repository, for example
+ * <code>require 'rdf/ntriples'; RDF::Repository.load('data.nt')</code>.
+ * The runtimes share the load path of the global runtime unless one is
+ * given. The pool size defaults to the <code>rdf.arq.runtimes</code>
+ * system property, or to the number of processors. Callers waiting for a
+ * runtime are woken when one is released, when a runtime fails to be
+ * created and frees its place in the pool, and when the pool is closed.
+ *
+ * @author Arto Bendiken
+ */
+public class RuntimePool {
+  public static final int DEFAULT_SIZE = Integer.getInteger("rdf.arq.runtimes", Runtime.getRuntime().availableProcessors());
+
+  private final int size;
+  private final String script;
+  private final List<String> loadPaths;
+  private final Queue<Lease> idle = new LinkedList<Lease>();
+  private final List<Lease> leases = new ArrayList<Lease>();
+  private boolean closed;
+
+  /**
+   * @param  script      the Ruby script returning the RDF.rb graph or repository
+   */
+  public RuntimePool(String script) {
+    this(DEFAULT_SIZE, script);
+  }
+
+  /**
+   * @param  size        the maximum number of runtimes
+   * @param  script      the Ruby script returning the RDF.rb graph or repository
+   */
+  public RuntimePool(int size, String script) {
+    this(size, script, Ruby.isGlobalRuntimeReady() ? getLoadPaths(Ruby.getGlobalRuntime()) : new ArrayList<String>());
+  }
+
+  /**
+   * @param  size        the maximum number of runtimes
+   * @param  script      the Ruby script returning the RDF.rb graph or repository
+   * @param  loadPaths   the load path of each runtime
+   */
+  public RuntimePool(int size, String script, List<String> loadPaths) {
+    if (size < 1)
+      throw new IllegalArgumentException("size must be positive");
+    this.size      = size;
+    this.script    = script;
+    this.loadPaths = new ArrayList<String>(loadPaths);
+  }
+
+  /**
+   * @return the maximum number of runtimes
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * @return the number of runtimes created so far
+   */
+  public synchronized int getRuntimeCount() {
+    return leases.size();
+  }
+
+  /**
+   * @return the number of runtimes currently leased
+   */
+  public synchronized int getLeasedCount() {
+    return leases.size() - idle.size();
+  }
+
+  /**
+   * Leases a runtime, creating one if none is idle and the pool is not
+   * full, and otherwise waiting for one to be released.
+   *
+   * @return the lease, which must be released when done
+   * @throws IllegalStateException if the pool is closed, or is closed while waiting
+   */
+  public Lease lease() {
+    synchronized (this) {
+      while (!closed && idle.isEmpty() && leases.size() >= size) {
+        try {
+          wait();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("interrupted while waiting for a runtime");
+        }
+      }
+      if (closed)
+        throw new IllegalStateException("runtime pool is closed");
+      Lease lease = idle.poll();
+      if (lease != null) {
+        lease.leased = true;
+        return lease;
+      }
+      // Reserve the slot before the runtime is created, which may be slow.
+      leases.add(null);
+    }
+    return create();
+  }
+
+  /**
+   * Executes a <code>SELECT</code> query on a leased runtime. The runtime
+   * is released when the returned iterator is exhausted or closed.
+   *
+   * @param  sparql      the SPARQL <code>SELECT</code> query
+   * @param  bindings    parameter values as Jena nodes keyed by variable name, or <code>null</code>
+   * @return the solutions, streamed
+   */
+  public SolutionIterator select(String sparql, Map<?, ?> bindings) {
+    Lease lease = lease();
+    try {
+      SolutionIterator solutions = QueryExecutor.select(lease.getGraph(), sparql, bindings);
+      solutions.hold(lease);
+      return solutions;
+    }
+    catch (RuntimeException e) {
+      lease.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Executes a <code>CONSTRUCT</code> or <code>DESCRIBE</code> query on a
+   * leased runtime. The runtime is released when the returned stream is
+   * exhausted or closed.
+   *
+   * @param  sparql      the SPARQL <code>CONSTRUCT</code> or <code>DESCRIBE</code> query
+   * @param  bindings    parameter values as Jena nodes keyed by variable name, or <code>null</code>
+   * @return the triples, streamed
+   */
+  public TripleStream triples(String sparql, Map<?, ?> bindings) {
+    Lease lease = lease();
+    try {
+      TripleStream triples = QueryExecutor.triples(lease.getGraph(), sparql, bindings);
+      triples.hold(lease);
+      return triples;
+    }
+    catch (RuntimeException e) {
+      lease.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Closes this pool, tearing down idle runtimes at once and leased ones
+   * as they are released.
+   */
+  public synchronized void close() {
+    closed = true;
+    Lease lease;
+    while ((lease = idle.poll()) != null) {
+      leases.remove(lease);
+      lease.runtime.tearDown();
+    }
+    notifyAll();
+  }
+
+  private Lease create() {
+    Lease lease;
+    try {
+      lease = newLease();
+    }
+    catch (RuntimeException e) {
+      synchronized (this) {
+        leases.remove(null);
+        notifyAll();
+      }
+      throw e;
+    }
+    synchronized (this) {
+      leases.set(leases.indexOf(null), lease);
+      if (closed) {
+        leases.remove(lease);
+        lease.runtime.tearDown();
+        throw new IllegalStateException("runtime pool is closed");
+      }
+      lease.leased = true;
+    }
+    return lease;
+  }
+
+  private Lease newLease() {
+    RubyInstanceConfig config = new RubyInstanceConfig();
+    config.setLoadPaths(loadPaths);
+    Ruby runtime = Ruby.newInstance(config);
+    try {
+      IRubyObject repository = runtime.evalScriptlet(script);
+      if (!(repository instanceof RubyObject))
+        throw new IllegalArgumentException("the script must return an RDF.rb graph or repository");
+      return new Lease(this, runtime, (RubyObject)repository);
+    }
+    catch (RaiseException e) {
+      runtime.tearDown();
+      // The Ruby exception belongs to the new runtime, where no caller can rescue it.
+      throw new IllegalArgumentException("the script failed: " + e.getMessage());
+    }
+    catch (RuntimeException e) {
+      runtime.tearDown();
+      throw e;
+    }
+  }
+
+  private synchronized void release(Lease lease) {
+    if (!lease.leased)
+      return;
+    lease.leased = false;
+    if (closed) {
+      leases.remove(lease);
+      lease.runtime.tearDown();
+    }
+    else {
+      idle.add(lease);
+      notifyAll();
+    }
+  }
+
+  private static List<String> getLoadPaths(Ruby runtime) {
+    List<String> loadPaths = new ArrayList<String>();
+    for (IRubyObject path : ((RubyArray)runtime.getLoadService().getLoadPath()).toJavaArray()) {
+      loadPaths.add(path.toString());
+    }
+    return loadPaths;
+  }
+
+  /**
+   * A runtime leased from the pool, together with its factory and its copy
+   * of the data. A lease must be used by one query at a time.
+   */
+  public static class Lease {
+    private final RuntimePool pool;
+    private final Ruby runtime;
+    private final RubyObject repository;
+    private final Factory factory;
+    private final Graph graph;
+    private DatasetGraph dataset;
+    private boolean leased;
+
+    Lease(RuntimePool pool, Ruby runtime, RubyObject repository) {
+      this.pool       = pool;
+      this.runtime    = runtime;
+      this.repository = repository;
+      this.factory    = Factory.getInstance(runtime);
+      this.graph      = Graph.getInstance(repository);
+    }
+
+    /**
+     * @return the leased Ruby runtime
+     */
+    public Ruby getRuntime() {
+      return runtime;
+    }
+
+    /**
+     * @return the factory of the leased runtime
+     */
+    public Factory getFactory() {
+      return factory;
+    }
+
+    /**
+     * @return the RDF.rb graph or repository in the leased runtime
+     */
+    public RubyObject getRepository() {
+      return repository;
+    }
+
+    /**
+     * @return the graph over the RDF.rb graph or repository
+     */
+    public Graph getGraph() {
+      return graph;
+    }
+
+    /**
+     * @return the dataset over the RDF.rb repository
+     */
+    public synchronized DatasetGraph getDataset() {
+      return (dataset != null) ? dataset : (dataset = new DatasetGraph(repository));
+    }
+
+    /**
+     * Returns the runtime to the pool. Releasing a lease more than once
+     * has no effect.
+     */
+    public void release() {
+      pool.release(this);
+    }
+  }
+}
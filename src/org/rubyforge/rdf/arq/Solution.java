@@ -0,0 +1,91 @@
+package org.rubyforge.rdf.arq;
+
+import org.jruby.*;
+import org.jruby.runtime.builtin.IRubyObject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+
+/**
+ * Wraps an ARQ binding for access from Ruby.
+ *
+ * Values are converted into RDF.rb values only as they are read, so that
+ * variables the caller never looks at cost nothing, unless the solution
+ * comes from a pooled runtime, whose values are converted up front.
+ *
+ * @author Arto Bendiken
+ */
+public class Solution {
+  private Binding binding;
+  private Factory factory;
+  private Map<String, IRubyObject> values;
+
+  /**
+   * @param  binding     the ARQ binding
+   * @param  factory     the factory used to convert values
+   */
+  public Solution(Binding binding, Factory factory) {
+    this.binding = binding;
+    this.factory = factory;
+  }
+
+  /**
+   * @return the ARQ binding
+   */
+  public Binding getBinding() {
+    return binding;
+  }
+
+  /**
+   * @param  name        the variable name
+   * @return an RDF::Value instance, or nil if the variable is unbound
+   */
+  public IRubyObject get(String name) {
+    IRubyObject value = (values != null) ? values.get(name) : null;
+    if (value == null) {
+      Node node = binding.get(Var.alloc(name));
+      value = (node != null) ? factory.newValue(node) : factory.getRuntime().getNil();
+      if (values == null)
+        values = new HashMap<String, IRubyObject>(4);
+      values.put(name, value);
+    }
+    return value;
+  }
+
+  /**
+   * Converts the values of the given variables at once, so that reading
+   * them no longer needs the factory.
+   *
+   * @param  names       the variable names
+   */
+  void convert(List<String> names) {
+    for (String name : names) {
+      get(name);
+    }
+  }
+
+  /**
+   * @param  name        the variable name
+   * @return <code>true</code> if the variable is bound
+   */
+  public boolean isBound(String name) {
+    return binding.get(Var.alloc(name)) != null;
+  }
+
+  /**
+   * @return the names of the bound variables
+   */
+  public List<String> getVariableNames() {
+    List<String> names = new ArrayList<String>(binding.size());
+    Iterator<Var> vars = binding.vars();
+    while (vars.hasNext()) {
+      names.add(vars.next().getVarName());
+    }
+    return names;
+  }
+}
@@ -0,0 +1,138 @@
+package org.rubyforge.rdf.arq;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+
+/**
+ * Streams the solutions of a SPARQL <code>SELECT</code> query.
+ *
+ * Solutions are produced by ARQ one at a time as they are requested.
+ * Closing the iterator aborts the query execution, so a caller that stops
+ * early never pays for the solutions it did not read.
+ *
+ * The solutions of a query run on a {@link RuntimePool} are converted as
+ * soon as they are read, as the pooled runtime their values belong to is
+ * released, and may be leased to another query, once the iterator closes.
+ *
+ * @author Arto Bendiken
+ */
+public class SolutionIterator implements Iterator<Solution> {
+  private QueryIterator bindings;
+  private List<String> variableNames;
+  private Factory factory;
+  private boolean closed;
+  private RuntimePool.Lease lease;
+  private ResultCache cache;
+  private ResultCache.Key key;
+  private List<Var> vars;
+  private List<Binding> recorded;
+  private long weight;
+
+  /**
+   * @param  bindings    the query's solutions
+   * @param  variableNames the names of the projected variables
+   * @param  factory     the factory used to convert values
+   */
+  public SolutionIterator(QueryIterator bindings, List<String> variableNames, Factory factory) {
+    this.bindings      = bindings;
+    this.variableNames = variableNames;
+    this.factory       = factory;
+  }
+
+  /**
+   * @return the names of the projected variables
+   */
+  public List<String> getVariableNames() {
+    return variableNames;
+  }
+
+  /**
+   * Records the solutions as they are read, and stores them in the cache
+   * once they have all been read.
+   *
+   * @param  cache       the result cache
+   * @param  key         the key to store the solutions under
+   */
+  void record(ResultCache cache, ResultCache.Key key) {
+    this.cache    = cache;
+    this.key      = key;
+    this.vars     = Var.varList(variableNames);
+    this.recorded = new ArrayList<Binding>();
+  }
+
+  /**
+   * @see java.util.Iterator#hasNext()
+   */
+  @Override
+  public boolean hasNext() {
+    if (closed)
+      return false;
+    if (bindings.hasNext())
+      return true;
+    if (recorded != null)
+      cache.put(key, recorded, weight);
+    close();
+    return false;
+  }
+
+  /**
+   * @see java.util.Iterator#next()
+   */
+  @Override
+  public Solution next() {
+    if (!hasNext())
+      throw new NoSuchElementException();
+    Binding binding = bindings.nextBinding();
+    if (recorded != null) {
+      binding = ResultCache.copy(binding, vars);
+      weight += ResultCache.weigh(binding);
+      if (weight <= cache.getMaxWeight()) recorded.add(binding); else recorded = null;
+    }
+    Solution solution = new Solution(binding, factory);
+    if (lease != null)
+      solution.convert(variableNames);
+    return solution;
+  }
+
+  /**
+   * @see java.util.Iterator#remove()
+   */
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException("SolutionIterator#remove");
+  }
+
+  /**
+   * Releases a pooled runtime when this iterator is closed.
+   *
+   * @param  lease       the lease of the runtime the query runs on
+   */
+  void hold(RuntimePool.Lease lease) {
+    this.lease = lease;
+  }
+
+  /**
+   * Aborts the query execution and releases its resources.
+   */
+  public void close() {
+    if (closed)
+      return;
+    closed   = true;
+    recorded = null;
+    bindings.close();
+    if (lease != null)
+      lease.release();
+  }
+
+  /**
+   * @return <code>true</code> if this iterator has been closed
+   */
+  public boolean isClosed() {
+    return closed;
+  }
+}
@@ -0,0 +1,65 @@
+package org.rubyforge.rdf.arq;
+
+import com.hp.hpl.jena.graph.GraphStatisticsHandler;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.ARQ;
+import com.hp.hpl.jena.sparql.core.BasicPattern;
+import com.hp.hpl.jena.sparql.engine.ExecutionContext;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterSingleton;
+import com.hp.hpl.jena.sparql.engine.main.StageBuilder;
+
+/**
+ * An ARQ stage generator for basic graph patterns over arq.Graph.
+ *
+ * Patterns are reordered by estimated selectivity using the graph's
+ * statistics. When the RDF::Graph evaluates whole basic graph patterns
+ * natively and there is a single input binding, the BGP is then sent to
+ * Ruby in one call. Otherwise it is evaluated triple by triple, each triple
+ * pattern being joined with blocks of input bindings at a time, so that
+ * the number of Ruby calls grows with the number of blocks rather than of
+ * input bindings. Patterns over other graphs are handed to the previously
+ * installed generator.
+ *
+ * @author Arto Bendiken
+ */
+public class StageGenerator implements com.hp.hpl.jena.sparql.engine.main.StageGenerator {
+  private com.hp.hpl.jena.sparql.engine.main.StageGenerator parent;
+
+  /**
+   * @param  parent      the generator to use for other graphs
+   */
+  public StageGenerator(com.hp.hpl.jena.sparql.engine.main.StageGenerator parent) {
+    this.parent = parent;
+  }
+
+  /**
+   * Installs this stage generator in ARQ's global context, unless already
+   * installed.
+   */
+  public static synchronized void register() {
+    com.hp.hpl.jena.sparql.engine.main.StageGenerator current = StageBuilder.getGenerator(ARQ.getContext());
+    if (!(current instanceof StageGenerator))
+      StageBuilder.setGenerator(ARQ.getContext(), new StageGenerator(current));
+  }
+
+  /**
+   * @see com.hp.hpl.jena.sparql.engine.main.StageGenerator#execute(BasicPattern, QueryIterator, ExecutionContext)
+   */
+  @Override
+  public QueryIterator execute(BasicPattern pattern, QueryIterator input, ExecutionContext execCxt) {
+    if (!(execCxt.getActiveGraph() instanceof Graph))
+      return parent.execute(pattern, input, execCxt);
+    GraphStatisticsHandler statistics = execCxt.getActiveGraph().getStatisticsHandler();
+    if (statistics != null && pattern.size() > 1)
+      pattern = new Reorder(statistics).reorder(pattern);
+    Graph graph = (Graph)execCxt.getActiveGraph();
+    if (input instanceof QueryIterSingleton && graph.isSolvable())
+      return new BasicPatternIterator(graph, pattern, input, execCxt);
+    QueryIterator chain = input;
+    for (Triple triple : pattern) {
+      chain = new BlockJoinIterator(graph, triple, chain, execCxt);
+    }
+    return chain;
+  }
+}
@@ -0,0 +1,63 @@
+package org.rubyforge.rdf.arq;
+
+import org.rubyforge.rdf.Cache;
+import com.hp.hpl.jena.graph.GraphStatisticsHandler;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+
+/**
+ * Provides triple pattern cardinalities for an arq.Graph.
+ *
+ * The total size and the per-predicate counts come from the graph's
+ * maintained {@link Cardinalities}. Patterns with a bound subject or object
+ * are counted by the RDF::Graph itself, in a single Ruby call that stops
+ * at {@link #COUNT_LIMIT} matches, which is as precise as ordering the
+ * patterns of a query needs. The results are cached until the graph's
+ * mutation version changes.
+ *
+ * @author Arto Bendiken
+ */
+public class StatisticsHandler implements GraphStatisticsHandler {
+  public static final int DEFAULT_CACHE_SIZE = 1000;
+  public static final long COUNT_LIMIT = 10000;
+
+  private Graph graph;
+  private Cache<Triple, Long> cache;
+  private long version = -1;
+
+  /**
+   * @param  graph       the graph to provide statistics for
+   */
+  public StatisticsHandler(Graph graph) {
+    this.graph = graph;
+    this.cache = new Cache<Triple, Long>(DEFAULT_CACHE_SIZE);
+  }
+
+  /**
+   * @see com.hp.hpl.jena.graph.GraphStatisticsHandler#getStatistic(Node, Node, Node)
+   */
+  @Override
+  public long getStatistic(Node subject, Node predicate, Node object) {
+    subject   = concrete(subject);
+    predicate = concrete(predicate);
+    object    = concrete(object);
+    if (subject == Node.ANY && object == Node.ANY) {
+      Cardinalities counts = graph.getCardinalities();
+      return (predicate == Node.ANY) ? counts.getSize() : counts.getCount(predicate);
+    }
+    long current = graph.getVersion();
+    if (current != version) {
+      cache.clear();
+      version = current;
+    }
+    Triple pattern = Triple.create(subject, predicate, object);
+    Long count = cache.get(pattern);
+    if (count == null)
+      cache.put(pattern, count = graph.count(pattern, COUNT_LIMIT));
+    return count;
+  }
+
+  private static Node concrete(Node node) {
+    return (node != null && node.isConcrete()) ? node : Node.ANY;
+  }
+}
@@ -0,0 +1,248 @@
+package org.rubyforge.rdf.arq;
+
+import org.jruby.*;
+import org.jruby.runtime.builtin.IRubyObject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.compose.MultiUnion;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.sparql.core.DatasetGraphFactory;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.tdb.TDB;
+import com.hp.hpl.jena.tdb.TDBFactory;
+import com.hp.hpl.jena.tdb.store.DatasetGraphTDB;
+
+/**
+ * Stores RDF.rb statements in a Jena dataset, for use as the storage of an
+ * <code>RDF::ARQ::Repository</code>. The dataset is either held in memory
+ * or persisted in a Jena TDB database.
+ *
+ * Statements are converted into quads once, as they are inserted, and
+ * lookups run against the dataset's indexes. Only the statements returned
+ * to Ruby are converted back into RDF.rb values.
+ *
+ * @author Arto Bendiken
+ */
+public class Store {
+  public static final int DEFAULT_BATCH_SIZE = 1024;
+
+  private DatasetGraph dataset;
+  private Factory factory;
+
+  /**
+   * Creates an in-memory store.
+   *
+   * @param  runtime     the Ruby runtime
+   */
+  public Store(Ruby runtime) {
+    this(runtime, DatasetGraphFactory.createMem());
+  }
+
+  /**
+   * @param  runtime     the Ruby runtime
+   * @param  dataset     the dataset to store statements in
+   */
+  public Store(Ruby runtime, DatasetGraph dataset) {
+    this.dataset = dataset;
+    this.factory = Factory.getInstance(runtime);
+  }
+
+  /**
+   * Opens a persistent store in a Jena TDB database, creating the
+   * database if the directory is empty. TDB memory-maps its indexes and
+   * node table, so opening an existing database does not load it.
+   *
+   * @param  runtime     the Ruby runtime
+   * @param  directory   the database directory
+   * @return the store
+   */
+  public static Store open(Ruby runtime, String directory) {
+    return new Store(runtime, TDBFactory.createDatasetGraph(directory));
+  }
+
+  /**
+   * @return <code>true</code> if this store is persistent
+   */
+  public boolean isDurable() {
+    return dataset instanceof DatasetGraphTDB;
+  }
+
+  /**
+   * Writes any changes to disk, if this store is persistent.
+   */
+  public void sync() {
+    if (dataset instanceof DatasetGraphTDB)
+      TDB.sync(dataset);
+  }
+
+  /**
+   * @return the underlying dataset
+   */
+  public DatasetGraph getDataset() {
+    return dataset;
+  }
+
+  /**
+   * Returns a graph holding the statements in all contexts, as RDF.rb
+   * queries see the repository.
+   *
+   * @return the union of the default graph and the named graphs
+   */
+  public com.hp.hpl.jena.graph.Graph getUnionGraph() {
+    List<com.hp.hpl.jena.graph.Graph> graphs = new ArrayList<com.hp.hpl.jena.graph.Graph>();
+    graphs.add(dataset.getDefaultGraph());
+    Iterator<Node> iterator = dataset.listGraphNodes();
+    while (iterator.hasNext()) {
+      graphs.add(dataset.getGraph(iterator.next()));
+    }
+    return (graphs.size() == 1) ? graphs.get(0) : new MultiUnion(graphs.iterator());
+  }
+
+  /**
+   * @return the factory used by this store
+   */
+  public Factory getFactory() {
+    return factory;
+  }
+
+  /**
+   * @param  statements  a Ruby array of RDF::Statement instances
+   */
+  public void insert(RubyArray statements) {
+    for (int i = 0; i < statements.getLength(); i++) {
+      dataset.add(factory.toQuad(statements.entry(i)));
+    }
+  }
+
+  /**
+   * @param  batch       RDF.rb statements packed by <code>RDF::ARQ::Codec</code>
+   */
+  public void insertPacked(byte[] batch) {
+    add(Codec.decode(batch));
+  }
+
+  /**
+   * @param  quads       the quads to add
+   */
+  public void add(Collection<Quad> quads) {
+    for (Quad quad : quads) {
+      dataset.add(quad);
+    }
+  }
+
+  /**
+   * @param  statements  a Ruby array of RDF::Statement instances
+   */
+  public void delete(RubyArray statements) {
+    for (int i = 0; i < statements.getLength(); i++) {
+      dataset.delete(factory.toQuad(statements.entry(i)));
+    }
+  }
+
+  /**
+   * @param  batch       RDF.rb statements packed by <code>RDF::ARQ::Codec</code>
+   */
+  public void deletePacked(byte[] batch) {
+    for (Quad quad : Codec.decode(batch)) {
+      dataset.delete(quad);
+    }
+  }
+
+  /**
+   * Removes all statements.
+   */
+  public void clear() {
+    List<Node> graphs = new ArrayList<Node>();
+    Iterator<Node> iterator = dataset.listGraphNodes();
+    while (iterator.hasNext()) {
+      graphs.add(iterator.next());
+    }
+    for (Node graph : graphs) {
+      dataset.removeGraph(graph);
+    }
+    dataset.getDefaultGraph().getBulkUpdateHandler().removeAll();
+  }
+
+  /**
+   * @param  statement   an RDF::Statement instance, a nil context matching any context
+   * @return <code>true</code> if the store contains the statement
+   */
+  public boolean contains(IRubyObject statement) {
+    Quad quad = factory.toQuadPattern(statement);
+    return dataset.contains(quad.getGraph(), quad.getSubject(), quad.getPredicate(), quad.getObject());
+  }
+
+  /**
+   * @return the number of statements
+   */
+  public long count() {
+    long count = dataset.getDefaultGraph().size();
+    Iterator<Node> graphs = dataset.listGraphNodes();
+    while (graphs.hasNext()) {
+      count += dataset.getGraph(graphs.next()).size();
+    }
+    return count;
+  }
+
+  /**
+   * @param  pattern     an RDF::Statement instance, with nil as the wildcard
+   * @return the matching quads
+   */
+  public Iterator<Quad> find(IRubyObject pattern) {
+    Quad quad = factory.toQuadPattern(pattern);
+    return dataset.find(quad.getGraph(), quad.getSubject(), quad.getPredicate(), quad.getObject());
+  }
+
+  /**
+   * @param  pattern     an RDF::Statement instance, with nil as the wildcard
+   * @return a Ruby array of the matching RDF::Statement instances
+   */
+  public RubyArray query(IRubyObject pattern) {
+    Iterator<Quad> quads = find(pattern);
+    RubyArray statements = factory.getRuntime().newArray();
+    while (quads.hasNext()) {
+      statements.append(factory.newStatement(quads.next()));
+    }
+    return statements;
+  }
+
+  /**
+   * Converts up to <code>limit</code> quads into RDF.rb statements.
+   *
+   * @param  quads       the quads to convert
+   * @param  limit       the maximum number of statements to return
+   * @return a Ruby array of RDF::Statement instances, empty once the quads are exhausted
+   */
+  public RubyArray next(Iterator<Quad> quads, int limit) {
+    RubyArray statements = factory.getRuntime().newArray(Math.max(0, limit));
+    for (int i = 0; i < limit && quads.hasNext(); i++) {
+      statements.append(factory.newStatement(quads.next()));
+    }
+    return statements;
+  }
+
+  /**
+   * @return a Ruby array of the RDF::Resource instances used as contexts
+   */
+  public RubyArray contexts() {
+    RubyArray contexts = factory.getRuntime().newArray();
+    Iterator<Node> graphs = dataset.listGraphNodes();
+    while (graphs.hasNext()) {
+      Node graph = graphs.next();
+      if (!dataset.getGraph(graph).isEmpty())
+        contexts.append(factory.newValue(graph));
+    }
+    return contexts;
+  }
+
+  /**
+   * Writes any changes to disk and closes the underlying dataset.
+   */
+  public void close() {
+    sync();
+    dataset.close();
+  }
+}
@@ -0,0 +1,65 @@
+package org.rubyforge.rdf.arq;
+
+import com.hp.hpl.jena.graph.impl.TransactionHandlerBase;
+
+/**
+ * Maps Jena transactions onto RDF.rb transactions.
+ *
+ * Beginning a transaction takes the graph's write lock, which is held
+ * until the transaction commits or aborts, and flushes any earlier pending
+ * changes. Reads and queries of the graph on other threads block for as
+ * long as the transaction is open, so transactions should be short. The
+ * changes made within the transaction are buffered, however many there
+ * are, and are visible to reads on the transaction's thread; the
+ * write-behind buffer is never flushed while a transaction is open.
+ * Committing writes them to the RDF::Graph, through an RDF.rb transaction
+ * if the graph supports them, and aborting discards them. Transactions can
+ * therefore always be aborted, whether or not the RDF::Graph supports
+ * RDF.rb transactions, but only those it supports commit atomically.
+ *
+ * @author Arto Bendiken
+ */
+public class TransactionHandler extends TransactionHandlerBase {
+  private Graph graph;
+
+  /**
+   * @param  graph       the graph to manage
+   */
+  public TransactionHandler(Graph graph) {
+    super();
+    this.graph = graph;
+  }
+
+  /**
+   * @return <code>true</code>, as changes are held back until commit
+   * @see com.hp.hpl.jena.graph.TransactionHandler#transactionsSupported()
+   */
+  @Override
+  public boolean transactionsSupported() {
+    return true;
+  }
+
+  /**
+   * @see com.hp.hpl.jena.graph.TransactionHandler#begin()
+   */
+  @Override
+  public void begin() {
+    graph.begin();
+  }
+
+  /**
+   * @see com.hp.hpl.jena.graph.TransactionHandler#commit()
+   */
+  @Override
+  public void commit() {
+    graph.commit();
+  }
+
+  /**
+   * @see com.hp.hpl.jena.graph.TransactionHandler#abort()
+   */
+  @Override
+  public void abort() {
+    graph.abort();
+  }
+}
@@ -2,6 +2,8 @@ package org.rubyforge.rdf.arq;
 
 import org.jruby.*;
 import java.util.Iterator;
+import java.util.List;
+import org.rubyforge.rdf.EnumeratorIterator;
 import com.hp.hpl.jena.graph.Triple;
 import com.hp.hpl.jena.graph.TripleMatch;
 import com.hp.hpl.jena.graph.Node;
@@ -17,8 +19,7 @@ import com.hp.hpl.jena.util.iterator.NiceIterator;
  */
 public class TripleIterator extends NiceIterator<Triple> implements Iterable<Triple>, ExtendedIterator<Triple>, com.hp.hpl.jena.graph.TripleIterator {
   private Factory factory;
-  private RubyEnumerator enumerator;
-  private RubyObject generator;
+  private EnumeratorIterator<Triple> iterator;
 
   public TripleIterator() {} // FIXME
 
@@ -26,17 +27,32 @@ public class TripleIterator extends NiceIterator<Triple> implements Iterable<Tri
    * @param  object      a Ruby object responding to #to_enum
    */
   public TripleIterator(RubyObject object) {
-    this((RubyEnumerator)object.callMethod("to_enum"));
+    this(object, EnumeratorIterator.getDefaultMode(), EnumeratorIterator.getDefaultChunkSize());
+  }
+
+  /**
+   * @param  object      a Ruby object responding to #to_enum
+   * @param  mode        the iteration mode
+   * @param  chunkSize   the number of statements to convert per round trip
+   */
+  public TripleIterator(RubyObject object, EnumeratorIterator.Mode mode, int chunkSize) {
+    this.factory  = Factory.getInstance(object.getRuntime());
+    this.iterator = new EnumeratorIterator<Triple>(object, mode, chunkSize) {
+      protected void yield(RubyArray statements, List<Triple> buffer) {
+        TripleIterator.this.yield(statements, buffer);
+      }
+
+      protected Triple yield(RubyObject statement) {
+        return TripleIterator.this.yield(statement);
+      }
+    };
   }
 
   /**
    * @param  enumerator  a Ruby enumerator
    */
   public TripleIterator(RubyEnumerator enumerator) {
-    this.factory    = new Factory(enumerator.getRuntime());
-    factory.require("generator");
-    this.generator  = factory.newInstance(factory.getClass("Generator").getClass("Threaded"), enumerator);
-    this.enumerator = enumerator;
+    this((RubyObject)enumerator);
   }
 
   /**
@@ -52,7 +68,7 @@ public class TripleIterator extends NiceIterator<Triple> implements Iterable<Tri
    */
   @Override
   public boolean hasNext() {
-    return generator.callMethod("next?").isTrue();
+    return iterator.hasNext();
   }
 
   /**
@@ -60,7 +76,18 @@ public class TripleIterator extends NiceIterator<Triple> implements Iterable<Tri
    */
   @Override
   public Triple next() {
-    return yield((RubyObject)generator.callMethod("next"));
+    return iterator.next();
+  }
+
+  /**
+   * Cancels any background producer and releases the enumerator.
+   *
+   * @see com.hp.hpl.jena.util.iterator.ClosableIterator#close()
+   */
+  @Override
+  public void close() {
+    if (iterator != null)
+      iterator.close();
   }
 
   /**
@@ -71,15 +98,19 @@ public class TripleIterator extends NiceIterator<Triple> implements Iterable<Tri
     return next();
   }
 
+  /**
+   * @param  statements  a chunk of RDF::Statement instances
+   * @param  buffer      the buffer to append the Triple instances to
+   */
+  protected void yield(RubyArray statements, List<Triple> buffer) {
+    buffer.addAll(factory.toTriples(statements));
+  }
+
   /**
    * @param  statement   an RDF::Statement instance
    * @return a Triple instance
    */
   protected Triple yield(RubyObject statement) {
-    return new Triple(
-      Factory.newNode((RubyObject)statement.callMethod("subject")),
-      Factory.newNode((RubyObject)statement.callMethod("predicate")),
-      Factory.newNode((RubyObject)statement.callMethod("object"))
-    );
+    return factory.toTriple(statement);
   }
 }
@@ -0,0 +1,213 @@
+package org.rubyforge.rdf.arq;
+
+import org.jruby.*;
+import org.rubyforge.rdf.Cache;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.syntax.Template;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * Streams the triples of a SPARQL <code>CONSTRUCT</code> or
+ * <code>DESCRIBE</code> query.
+ *
+ * Unlike ARQ's own query execution, the triples are never collected into
+ * a Jena model: the template of a <code>CONSTRUCT</code> query is
+ * instantiated for each solution as the solutions are read, and the
+ * resources of a <code>DESCRIBE</code> query are described one at a time.
+ * Memory use is therefore bounded by the batch size rather than by the
+ * size of the result. A <code>DESCRIBE</code> query remembers the last
+ * {@link #MAX_DESCRIBED} resources it described, so that a resource bound
+ * in several solutions is described once; one recurring after that many
+ * others may be described again.
+ *
+ * Since no model is built, duplicate triples are not removed across
+ * solutions. Inserting them into an RDF.rb graph or repository discards
+ * them as usual.
+ *
+ * @author Arto Bendiken
+ */
+public class TripleStream implements Iterator<Triple> {
+  public static final int DEFAULT_BATCH_SIZE = 1024;
+  public static final int MAX_DESCRIBED      = 10000;
+
+  private QueryIterator bindings;
+  private Factory factory;
+  private Template template;
+  private com.hp.hpl.jena.graph.Graph graph;
+  private List<Var> vars;
+  private Cache<Node, Boolean> described;
+  private LinkedList<Node> resources;
+  private LinkedList<Triple> pending = new LinkedList<Triple>();
+  private boolean closed;
+  private RuntimePool.Lease lease;
+
+  /**
+   * @param  plan        the plan of a <code>CONSTRUCT</code> or <code>DESCRIBE</code> query
+   * @param  dataset     the dataset to query
+   * @param  binding     the parameter values, or an empty binding
+   * @param  factory     the factory used to convert values
+   */
+  public TripleStream(QueryPlan plan, DatasetGraph dataset, Binding binding, Factory factory) {
+    Query query = plan.getQuery();
+    this.factory = factory;
+    if (query.isConstructType()) {
+      this.template = query.getConstructTemplate();
+      this.bindings = plan.execute(dataset, binding);
+    }
+    else if (query.isDescribeType()) {
+      this.graph     = dataset.getDefaultGraph();
+      this.described = new Cache<Node, Boolean>(MAX_DESCRIBED, 1);
+      this.resources = new LinkedList<Node>();
+      for (Node resource : query.getResultURIs()) {
+        describe(resource);
+      }
+      if (query.getQueryPattern() != null) {
+        this.vars     = Var.varList(plan.getResultVars());
+        this.bindings = plan.execute(dataset, binding);
+      }
+    }
+    else {
+      throw new IllegalArgumentException("expected a CONSTRUCT or DESCRIBE query");
+    }
+  }
+
+  /**
+   * @see java.util.Iterator#hasNext()
+   */
+  @Override
+  public boolean hasNext() {
+    if (closed)
+      return false;
+    while (pending.isEmpty()) {
+      if (!advance()) {
+        close();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @see java.util.Iterator#next()
+   */
+  @Override
+  public Triple next() {
+    if (!hasNext())
+      throw new NoSuchElementException();
+    return pending.removeFirst();
+  }
+
+  /**
+   * Converts up to <code>limit</code> triples into RDF.rb statements.
+   *
+   * @param  limit       the maximum number of statements to return
+   * @return a Ruby array of RDF::Statement instances, empty once the triples are exhausted
+   */
+  public RubyArray next(int limit) {
+    RubyArray statements = factory.getRuntime().newArray(Math.max(0, limit));
+    for (int i = 0; i < limit && hasNext(); i++) {
+      statements.append(factory.newStatement(next()));
+    }
+    return statements;
+  }
+
+  /**
+   * @see java.util.Iterator#remove()
+   */
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException("TripleStream#remove");
+  }
+
+  /**
+   * Releases a pooled runtime when this stream is closed.
+   *
+   * @param  lease       the lease of the runtime the query runs on
+   */
+  void hold(RuntimePool.Lease lease) {
+    this.lease = lease;
+  }
+
+  /**
+   * Aborts the query execution and releases its resources.
+   */
+  public void close() {
+    if (closed)
+      return;
+    closed = true;
+    pending.clear();
+    if (bindings != null)
+      bindings.close();
+    if (lease != null)
+      lease.release();
+  }
+
+  /**
+   * @return <code>true</code> if this stream has been closed
+   */
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Produces the triples for the next solution or described resource.
+   *
+   * @return <code>false</code> once the query is exhausted
+   */
+  private boolean advance() {
+    if (template != null) {
+      if (!bindings.hasNext())
+        return false;
+      // Blank nodes in the template are fresh for each solution.
+      template.subst(pending, new HashMap<Node, Node>(), bindings.nextBinding());
+      return true;
+    }
+    if (resources.isEmpty()) {
+      if (bindings == null || !bindings.hasNext())
+        return false;
+      Binding binding = bindings.nextBinding();
+      for (Var var : vars) {
+        Node resource = binding.get(var);
+        if (resource != null)
+          describe(resource);
+      }
+      return true;
+    }
+    // Describe the resource by its outgoing triples, following blank
+    // nodes in the object position as ARQ's default describe handler does.
+    ExtendedIterator<Triple> triples = graph.find(resources.removeFirst(), Node.ANY, Node.ANY);
+    try {
+      while (triples.hasNext()) {
+        Triple triple = triples.next();
+        pending.add(triple);
+        if (triple.getObject().isBlank())
+          describe(triple.getObject());
+      }
+    }
+    finally {
+      triples.close();
+    }
+    return true;
+  }
+
+  /**
+   * @param  resource    a resource to describe, unless already described
+   */
+  private void describe(Node resource) {
+    if (resource.isLiteral() || described.get(resource) != null)
+      return;
+    described.put(resource, Boolean.TRUE);
+    resources.add(resource);
+  }
+}